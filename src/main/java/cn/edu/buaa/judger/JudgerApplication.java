@@ -9,7 +9,7 @@ import org.springframework.context.annotation.ComponentScan;
 @SpringBootApplication
 @MapperScan("cn.edu.buaa.judger.mapper")
 @EnableCaching
-@ComponentScan(basePackages = {"cn.edu.buaa.judger.mapper", "cn.edu.buaa.judger.core", "cn.edu.buaa.judger.application", "cn.edu.buaa.judger.service"})
+@ComponentScan(basePackages = {"cn.edu.buaa.judger.mapper", "cn.edu.buaa.judger.core", "cn.edu.buaa.judger.application", "cn.edu.buaa.judger.service", "cn.edu.buaa.judger.controller", "cn.edu.buaa.judger.config"})
 public class JudgerApplication {
 
     public static void main(String[] args) {
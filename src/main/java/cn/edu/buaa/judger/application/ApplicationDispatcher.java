@@ -1,6 +1,5 @@
 package cn.edu.buaa.judger.application;
 
-import cn.edu.buaa.judger.core.Dispatcher;
 import cn.edu.buaa.judger.mapper.JudgeResultMapper;
 import cn.edu.buaa.judger.model.JudgeResult;
 import cn.edu.buaa.judger.service.JMSProducerService;
@@ -10,15 +9,17 @@ import org.springframework.stereotype.Component;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
 
 @Component
 public class ApplicationDispatcher {
     /**
-     * 自动注入的Dispatcher对象.
-     * 用于完成评测作业的任务调度.
+     * 自动注入的SubmissionScheduler对象.
+     * 用于调度等待评测的请求.
      */
     @Autowired
-    private Dispatcher judgerDispatcher;
+    private SubmissionScheduler submissionScheduler;
 
     @Autowired
     private JMSProducerService jmsProducerService;
@@ -28,14 +29,28 @@ public class ApplicationDispatcher {
 
     /**
      * 收到消息队列的新的评测请求时的回调函数.
+     * 评测请求将交由SubmissionScheduler按优先级和公平性调度; 等待队列已满时返回的Future对象以异常结束.
      * @param submissionId - 评测记录的唯一标识符
+     * @param studentId - 提交代码的学生ID(未知时为0)
+     * @param contestId - 提交所属的竞赛ID(练习时为0)
+     * @param isRejudge - 是否为重新评测
+     * @return 评测完成时完成的Future对象
      */
-    public void onSubmissionCreated(long submissionId) {
+    public CompletableFuture<Void> onSubmissionCreated(long submissionId, long studentId,
+                                                       int contestId, boolean isRejudge) {
+        SubmissionPriority priority = SubmissionPriority.PRACTICE;
+        if ( isRejudge ) {
+            priority = SubmissionPriority.REJUDGE;
+        } else if ( contestId > 0 ) {
+            priority = SubmissionPriority.CONTEST;
+        }
+        SubmissionRequest request = new SubmissionRequest(submissionId, studentId, contestId, priority);
         try {
-            judgerDispatcher.createNewTask(submissionId);
-        } catch (Exception ex) {
-            ex.printStackTrace();
+            return submissionScheduler.submit(request);
+        } catch (RejectedExecutionException ex) {
+            request.getCompletion().completeExceptionally(ex);
         }
+        return request.getCompletion();
     }
 
     /**
@@ -62,6 +77,7 @@ public class ApplicationDispatcher {
         mapMessage.put("submissionId", submissionId);
         mapMessage.put("event", "CompileFinished");
         mapMessage.put("isSuccessful", isSuccessful);
+        mapMessage.put("isCached", Boolean.TRUE.equals(result.get("isCached")));
         mapMessage.put("compileLog", compileLog);
         jmsProducerService.sendMessage(mapMessage);
     }
@@ -108,7 +124,7 @@ public class ApplicationDispatcher {
             if ( "AC".equals(currentRuntimeResultSlug) ) {
                 totalScore += score;
             }
-            if ( !"AC".equals(currentRuntimeResultSlug) ) {
+            if ( !"AC".equals(currentRuntimeResultSlug) && !"SK".equals(currentRuntimeResultSlug) ) {
                 runtimeResultSlug = currentRuntimeResultSlug;
             }
         }
@@ -132,12 +148,20 @@ public class ApplicationDispatcher {
     private String getCompileLog(Map<String, Object> result) {
         boolean isSuccessful = (boolean)result.get("isSuccessful");
         String compileLog = (String)result.get("log");
-        StringBuilder formatedLogBuilder = new StringBuilder();
-        formatedLogBuilder.append(String.format("Compile %s.\n\n", new Object[] { isSuccessful ? "Successful" : "Error" }));
-        if ( !isSuccessful ) {
-            formatedLogBuilder.append(compileLog.replace("\n", "\n\n"));
-            formatedLogBuilder.append("\nCompile Error, Time = 0 ms, Memory = 0 KB, Score = 0.\n");
+        if ( isSuccessful ) {
+            return "Compile Successful.\n\n";
         }
+        // 编译日志的长度已有上限, 换行符加倍后的长度至多为原来的两倍
+        StringBuilder formatedLogBuilder = new StringBuilder(compileLog.length() * 2 + 80);
+        formatedLogBuilder.append("Compile Error.\n\n");
+        for ( int i = 0; i < compileLog.length(); ++ i ) {
+            char c = compileLog.charAt(i);
+            formatedLogBuilder.append(c);
+            if ( c == '\n' ) {
+                formatedLogBuilder.append('\n');
+            }
+        }
+        formatedLogBuilder.append("\nCompile Error, Time = 0 ms, Memory = 0 KB, Score = 0.\n");
         return formatedLogBuilder.toString();
     }
 
@@ -195,6 +219,12 @@ public class ApplicationDispatcher {
     private String getRuntimeResultName(String runtimeResultSlug) {
         JudgeResult judgeResult = judgeResultMapper.getJudgeResultBySlug(runtimeResultSlug);
         if ( judgeResult == null ) {
+            if ( "SK".equals(runtimeResultSlug) ) {
+                return "Skipped";
+            }
+            if ( "OLE".equals(runtimeResultSlug) ) {
+                return "Output Limit Exceeded";
+            }
             return "System Error";
         }
         return judgeResult.getJudgeResultName();
@@ -0,0 +1,21 @@
+package cn.edu.buaa.judger.application;
+
+/**
+ * 评测请求的优先级类别
+ */
+public enum SubmissionPriority {
+    /**
+     * 正在进行的竞赛中的提交
+     */
+    CONTEST,
+
+    /**
+     * 练习中的提交
+     */
+    PRACTICE,
+
+    /**
+     * 管理员发起的重新评测
+     */
+    REJUDGE
+}
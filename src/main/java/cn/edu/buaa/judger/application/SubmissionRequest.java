@@ -0,0 +1,94 @@
+package cn.edu.buaa.judger.application;
+
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 等待调度的评测请求
+ */
+public class SubmissionRequest {
+    /**
+     * 评测记录的唯一标识符
+     */
+    private final long submissionId;
+
+    /**
+     * 提交代码的学生ID(未知时为0)
+     */
+    private final long studentId;
+
+    /**
+     * 提交所属的竞赛ID(练习时为0)
+     */
+    private final int contestId;
+
+    /**
+     * 评测请求的优先级类别
+     */
+    private final SubmissionPriority priority;
+
+    /**
+     * 评测请求到达的时间(ms)
+     */
+    private final long arrivalTime;
+
+    /**
+     * 评测请求的截止时间(ms), 调度器优先评测截止时间最早的请求
+     */
+    private long deadline;
+
+    /**
+     * 评测完成(评测结果已发布)时完成的Future对象
+     */
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    public SubmissionRequest(long submissionId, long studentId, int contestId, SubmissionPriority priority) {
+        this.submissionId = submissionId;
+        this.studentId = studentId;
+        this.contestId = contestId;
+        this.priority = priority;
+        this.arrivalTime = System.currentTimeMillis();
+    }
+
+    public long getSubmissionId() {
+        return submissionId;
+    }
+
+    public long getStudentId() {
+        return studentId;
+    }
+
+    public int getContestId() {
+        return contestId;
+    }
+
+    public SubmissionPriority getPriority() {
+        return priority;
+    }
+
+    public long getArrivalTime() {
+        return arrivalTime;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    public void setDeadline(long deadline) {
+        this.deadline = deadline;
+    }
+
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+
+    @Override
+    public String toString() {
+        return "SubmissionRequest{" +
+                "submissionId=" + submissionId +
+                ", studentId=" + studentId +
+                ", contestId=" + contestId +
+                ", priority=" + priority +
+                ", deadline=" + deadline +
+                '}';
+    }
+}
@@ -0,0 +1,325 @@
+package cn.edu.buaa.judger.application;
+
+import cn.edu.buaa.judger.core.Dispatcher;
+import cn.edu.buaa.judger.core.JudgeSlotPool;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.Comparator;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 评测请求调度器.
+ * 位于消息队列与Dispatcher之间, 按截止时间最早优先的顺序将评测请求分发至评测槽位.
+ * 截止时间由评测请求的优先级类别决定, 并按学生和竞赛进行公平分配:
+ * 同一学生(或同一竞赛)积压的评测请求越多, 其后续请求的截止时间越晚.
+ */
+@Component
+public class SubmissionScheduler {
+    private static final Logger LOGGER = LoggerFactory.getLogger(SubmissionScheduler.class);
+
+    /**
+     * 等待队列的最大长度.
+     * 队列已满时, 新的评测请求将被拒绝, 由JMSConsumerService在队列有空闲位置后再从消息队列中接收.
+     * 重新评测最多占用等待队列的一半, 其余位置留给竞赛和练习提交.
+     */
+    @Value("${judger.scheduler.capacity}")
+    private int capacity;
+
+    /**
+     * 竞赛提交的期望评测时间(ms)
+     */
+    @Value("${judger.scheduler.contestDeadline}")
+    private long contestDeadline;
+
+    /**
+     * 练习提交的期望评测时间(ms)
+     */
+    @Value("${judger.scheduler.practiceDeadline}")
+    private long practiceDeadline;
+
+    /**
+     * 重新评测的期望评测时间(ms)
+     */
+    @Value("${judger.scheduler.rejudgeDeadline}")
+    private long rejudgeDeadline;
+
+    @Autowired
+    private JudgeSlotPool judgeSlotPool;
+
+    /**
+     * 自动注入的Dispatcher对象.
+     * 用于完成评测作业的任务调度.
+     */
+    @Autowired
+    private Dispatcher judgerDispatcher;
+
+    /**
+     * 按截止时间排序的等待队列
+     */
+    private final PriorityQueue<SubmissionRequest> queue = new PriorityQueue<>(
+            Comparator.comparingLong(SubmissionRequest::getDeadline)
+                    .thenComparingLong(SubmissionRequest::getArrivalTime));
+
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition notEmpty = lock.newCondition();
+
+    /**
+     * 各优先级类别在等待队列中的请求数量
+     */
+    private final Map<SubmissionPriority, Integer> queueDepths = new EnumMap<>(SubmissionPriority.class);
+
+    /**
+     * 各学生最近一次评测请求的截止时间
+     */
+    private final Map<Long, Long> studentDeadlines = new HashMap<>();
+
+    /**
+     * 各竞赛最近一次评测请求的截止时间
+     */
+    private final Map<Integer, Long> contestDeadlines = new HashMap<>();
+
+    /**
+     * 各学生尚未完成评测的请求数量
+     */
+    private final Map<Long, Integer> studentPendings = new HashMap<>();
+
+    /**
+     * 各竞赛尚未完成评测的请求数量
+     */
+    private final Map<Integer, Integer> contestPendings = new HashMap<>();
+
+    /**
+     * 从等待队列中取出评测请求并执行评测的线程池
+     */
+    private ExecutorService workers;
+
+    @PostConstruct
+    private void initialize() {
+        for ( SubmissionPriority priority : SubmissionPriority.values() ) {
+            queueDepths.put(priority, 0);
+        }
+        int slots = judgeSlotPool.getSlots();
+        workers = Executors.newFixedThreadPool(slots);
+        for ( int i = 0; i < slots; ++ i ) {
+            workers.submit(this::dispatch);
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        workers.shutdownNow();
+    }
+
+    /**
+     * 将评测请求加入等待队列.
+     * 该方法不会阻塞, 调用前应通过isAccepting(SubmissionPriority)方法确认队列中有空闲位置.
+     * @param request - 评测请求
+     * @return 评测完成时完成的Future对象
+     * @throws RejectedExecutionException - 等待队列中没有该优先级类别可用的位置
+     */
+    public CompletableFuture<Void> submit(SubmissionRequest request) {
+        lock.lock();
+        try {
+            if ( !isAccepting(request.getPriority()) ) {
+                throw new RejectedExecutionException(String.format("[Submission #%d] Rejected, QueueDepth=%d",
+                        new Object[] { request.getSubmissionId(), queue.size() }));
+            }
+            request.setDeadline(getDeadline(request));
+            queue.offer(request);
+            queueDepths.merge(request.getPriority(), 1, Integer::sum);
+            if ( request.getStudentId() > 0 ) {
+                studentPendings.merge(request.getStudentId(), 1, Integer::sum);
+            }
+            if ( request.getContestId() > 0 ) {
+                contestPendings.merge(request.getContestId(), 1, Integer::sum);
+            }
+            notEmpty.signal();
+            LOGGER.info(String.format("[Submission #%d] Scheduled as %s, QueueDepth=%d",
+                    new Object[] { request.getSubmissionId(), request.getPriority(), queue.size() }));
+        } finally {
+            lock.unlock();
+        }
+        return request.getCompletion();
+    }
+
+    /**
+     * 计算评测请求的截止时间.
+     * 同一学生的请求依次顺延一个期望评测时间;
+     * 同一竞赛的请求依次顺延期望评测时间与槽位数量之比, 即一个竞赛最多同时占满全部槽位.
+     * 调用时需持有锁.
+     * @param request - 评测请求
+     * @return 截止时间(ms)
+     */
+    private long getDeadline(SubmissionRequest request) {
+        long now = request.getArrivalTime();
+        long expectedTime = getExpectedTime(request.getPriority());
+        long deadline = now + expectedTime;
+        if ( request.getContestId() > 0 ) {
+            Long contestDeadline = contestDeadlines.get(request.getContestId());
+            if ( contestDeadline != null ) {
+                deadline = Math.max(deadline, contestDeadline + expectedTime / judgeSlotPool.getSlots());
+            }
+            contestDeadlines.put(request.getContestId(), deadline);
+        }
+        if ( request.getStudentId() > 0 ) {
+            Long studentDeadline = studentDeadlines.get(request.getStudentId());
+            if ( studentDeadline != null ) {
+                deadline = Math.max(deadline, studentDeadline + expectedTime);
+            }
+            studentDeadlines.put(request.getStudentId(), deadline);
+        }
+        return deadline;
+    }
+
+    /**
+     * 获取优先级类别对应的期望评测时间.
+     * @param priority - 评测请求的优先级类别
+     * @return 期望评测时间(ms)
+     */
+    private long getExpectedTime(SubmissionPriority priority) {
+        switch ( priority ) {
+            case CONTEST:
+                return contestDeadline;
+            case REJUDGE:
+                return rejudgeDeadline;
+            default:
+                return practiceDeadline;
+        }
+    }
+
+    /**
+     * 从等待队列中取出截止时间最早的评测请求.
+     * @return 评测请求
+     * @throws InterruptedException
+     */
+    private SubmissionRequest take() throws InterruptedException {
+        lock.lockInterruptibly();
+        try {
+            while ( queue.isEmpty() ) {
+                notEmpty.await();
+            }
+            SubmissionRequest request = queue.poll();
+            queueDepths.merge(request.getPriority(), -1, Integer::sum);
+            return request;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 评测完成后更新学生和竞赛尚未完成的请求数量.
+     * 当学生(或竞赛)没有尚未完成的请求时, 清除其截止时间记录.
+     * @param request - 评测请求
+     */
+    private void onFinished(SubmissionRequest request) {
+        lock.lock();
+        try {
+            long studentId = request.getStudentId();
+            if ( studentId > 0 && studentPendings.merge(studentId, -1, Integer::sum) <= 0 ) {
+                studentPendings.remove(studentId);
+                studentDeadlines.remove(studentId);
+            }
+            int contestId = request.getContestId();
+            if ( contestId > 0 && contestPendings.merge(contestId, -1, Integer::sum) <= 0 ) {
+                contestPendings.remove(contestId);
+                contestDeadlines.remove(contestId);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 不断从等待队列中取出评测请求并执行评测.
+     */
+    private void dispatch() {
+        while ( !Thread.currentThread().isInterrupted() ) {
+            SubmissionRequest request;
+            try {
+                request = take();
+            } catch ( InterruptedException ex ) {
+                break;
+            }
+            try {
+                LOGGER.info(String.format("[Submission #%d] Dispatched after waiting %d ms",
+                        new Object[] { request.getSubmissionId(), System.currentTimeMillis() - request.getArrivalTime() }));
+                judgerDispatcher.createNewTask(request.getSubmissionId());
+                request.getCompletion().complete(null);
+            } catch ( InterruptedException ex ) {
+                request.getCompletion().completeExceptionally(ex);
+                break;
+            } catch ( Exception ex ) {
+                ex.printStackTrace();
+                request.getCompletion().completeExceptionally(ex);
+            } finally {
+                onFinished(request);
+            }
+        }
+    }
+
+    /**
+     * 判断等待队列中是否还有某一优先级类别可用的位置.
+     * 重新评测只能占用等待队列的前一半位置, 大量重新评测积压时竞赛和练习提交仍能进入等待队列.
+     * @param priority - 评测请求的优先级类别
+     * @return 是否可以加入该优先级类别的评测请求
+     */
+    public boolean isAccepting(SubmissionPriority priority) {
+        lock.lock();
+        try {
+            int limit = priority == SubmissionPriority.REJUDGE ? Math.max(1, capacity / 2) : capacity;
+            return queue.size() < limit;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取等待队列中的评测请求数量.
+     * @return 等待队列中的评测请求数量
+     */
+    public int getQueueDepth() {
+        lock.lock();
+        try {
+            return queue.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取各优先级类别在等待队列中的请求数量.
+     * @return 各优先级类别在等待队列中的请求数量
+     */
+    public Map<SubmissionPriority, Integer> getQueueDepths() {
+        lock.lock();
+        try {
+            return new EnumMap<>(queueDepths);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 获取等待队列的最大长度.
+     * @return 等待队列的最大长度
+     */
+    public int getCapacity() {
+        return capacity;
+    }
+}
@@ -0,0 +1,67 @@
+package cn.edu.buaa.judger.config;
+
+import com.github.benmanes.caffeine.cache.Caffeine;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.caffeine.CaffeineCache;
+import org.springframework.cache.support.SimpleCacheManager;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基础数据缓存的配置.
+ * 编程语言、试题、测试点元数据、竞赛和评测结果在评测过程中几乎不变, 因此缓存在评测机内存中.
+ * 缓存项在过期或收到失效通知(见CacheInvalidationService)后重新从数据库读取.
+ */
+@Configuration
+public class CacheConfig {
+    /**
+     * 缓存的名称
+     */
+    public static final String LANGUAGES = "languages";
+
+    public static final String PROBLEMS = "problems";
+
+    /**
+     * 试题各测试点的元数据(含测试点数据的长度和摘要, 计算时需读取全部测试点数据)
+     */
+    public static final String CHECKPOINTS = "checkpoints";
+
+    public static final String CONTESTS = "contests";
+
+    public static final String JUDGE_RESULTS = "judgeResults";
+
+    /**
+     * 每个缓存的最大缓存项数量
+     */
+    @Value("${judger.cache.maximumSize}")
+    private long maximumSize;
+
+    /**
+     * 缓存项写入后的有效时间(秒)
+     */
+    @Value("${judger.cache.expireAfterWrite}")
+    private long expireAfterWrite;
+
+    /**
+     * 基础数据的缓存管理器.
+     * @return CacheManager对象
+     */
+    @Bean
+    public CacheManager cacheManager() {
+        List<CaffeineCache> caches = new ArrayList<>();
+        for ( String cacheName : new String[] { LANGUAGES, PROBLEMS, CHECKPOINTS, CONTESTS, JUDGE_RESULTS } ) {
+            caches.add(new CaffeineCache(cacheName, Caffeine.newBuilder()
+                    .maximumSize(maximumSize)
+                    .expireAfterWrite(expireAfterWrite, TimeUnit.SECONDS)
+                    .build()));
+        }
+        SimpleCacheManager cacheManager = new SimpleCacheManager();
+        cacheManager.setCaches(caches);
+        return cacheManager;
+    }
+}
@@ -0,0 +1,33 @@
+package cn.edu.buaa.judger.config;
+
+import org.springframework.boot.autoconfigure.jms.DefaultJmsListenerContainerFactoryConfigurer;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.jms.config.DefaultJmsListenerContainerFactory;
+
+import javax.jms.ConnectionFactory;
+
+/**
+ * 消息队列的配置.
+ * 评测请求由JMSConsumerService的专用线程以独占的会话接收, 不使用监听容器;
+ * 每条消息在其评测结果发布后才由该线程单独确认, 以便评测机异常退出时未完成的评测请求能被重新投递.
+ */
+@Configuration
+public class JmsConfig {
+    /**
+     * 缓存失效通知的监听容器工厂.
+     * 失效通知以主题(Topic)的形式发布, 每个评测机均会收到.
+     * @param configurer - Spring Boot的默认配置
+     * @param connectionFactory - 消息队列的连接工厂
+     * @return DefaultJmsListenerContainerFactory对象
+     */
+    @Bean
+    public DefaultJmsListenerContainerFactory topicListenerContainerFactory(
+            DefaultJmsListenerContainerFactoryConfigurer configurer, ConnectionFactory connectionFactory) {
+        DefaultJmsListenerContainerFactory factory = new DefaultJmsListenerContainerFactory();
+        configurer.configure(factory, connectionFactory);
+        factory.setPubSubDomain(true);
+        factory.setConcurrency("1");
+        return factory;
+    }
+}
@@ -0,0 +1,84 @@
+package cn.edu.buaa.judger.controller;
+
+import cn.edu.buaa.judger.application.SubmissionScheduler;
+import cn.edu.buaa.judger.core.CheckpointCache;
+import cn.edu.buaa.judger.core.CompileCache;
+import cn.edu.buaa.judger.core.Dispatcher;
+import cn.edu.buaa.judger.core.ForkServerSandboxBackend;
+import cn.edu.buaa.judger.core.JudgeSlotPool;
+import cn.edu.buaa.judger.core.JudgeStage;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * 评测机运行状态
+ * 用于观察评测槽位、等待队列、评测流水线各阶段, 测试点和编译缓存的使用情况以及启动进程的启动延迟.
+ */
+@RestController
+public class StatusController {
+    @Autowired
+    private JudgeSlotPool judgeSlotPool;
+
+    @Autowired
+    private SubmissionScheduler submissionScheduler;
+
+    @Autowired
+    private Dispatcher judgerDispatcher;
+
+    @Autowired
+    private CheckpointCache checkpointCache;
+
+    @Autowired
+    private CompileCache compileCache;
+
+    @Autowired
+    private ForkServerSandboxBackend forkServerSandboxBackend;
+
+    /**
+     * 获取评测机的运行状态.
+     * @return 包含评测机运行状态的Map<String, Object>对象
+     */
+    @GetMapping("/status")
+    public Map<String, Object> getStatus() {
+        Map<String, Object> status = new LinkedHashMap<>();
+        status.put("slots", judgeSlotPool.getSlots());
+        status.put("idleSlots", judgeSlotPool.getIdleSlots());
+        status.put("queueCapacity", submissionScheduler.getCapacity());
+        status.put("queueDepth", submissionScheduler.getQueueDepth());
+        status.put("queueDepths", submissionScheduler.getQueueDepths());
+        Map<String, Object> stages = new LinkedHashMap<>();
+        for ( JudgeStage stage : judgerDispatcher.getStages() ) {
+            Map<String, Object> stageStatus = new LinkedHashMap<>();
+            stageStatus.put("threads", stage.getThreads());
+            stageStatus.put("activeThreads", stage.getActiveThreads());
+            stageStatus.put("queueDepth", stage.getQueueDepth());
+            stageStatus.put("completedTasks", stage.getCompletedTasks());
+            stages.put(stage.getName(), stageStatus);
+        }
+        status.put("stages", stages);
+        Map<String, Object> checkpointCacheStatus = new LinkedHashMap<>();
+        checkpointCacheStatus.put("capacity", checkpointCache.getCapacity());
+        checkpointCacheStatus.put("size", checkpointCache.getSize());
+        checkpointCacheStatus.put("problems", checkpointCache.getProblems());
+        checkpointCacheStatus.put("hits", checkpointCache.getHits());
+        checkpointCacheStatus.put("misses", checkpointCache.getMisses());
+        checkpointCacheStatus.put("evictions", checkpointCache.getEvictions());
+        status.put("checkpointCache", checkpointCacheStatus);
+        Map<String, Object> compileCacheStatus = new LinkedHashMap<>();
+        compileCacheStatus.put("capacity", compileCache.getCapacity());
+        compileCacheStatus.put("size", compileCache.getSize());
+        compileCacheStatus.put("hits", compileCache.getHits());
+        compileCacheStatus.put("misses", compileCache.getMisses());
+        status.put("compileCache", compileCacheStatus);
+        Map<String, Object> launcherStatus = new LinkedHashMap<>();
+        launcherStatus.put("spawns", forkServerSandboxBackend.getSpawns());
+        launcherStatus.put("averageSpawnLatency", forkServerSandboxBackend.getAverageSpawnLatency());
+        launcherStatus.put("maxSpawnLatency", forkServerSandboxBackend.getMaxSpawnLatency());
+        status.put("launcher", launcherStatus);
+        return status;
+    }
+}
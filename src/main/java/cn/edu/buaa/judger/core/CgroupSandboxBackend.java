@@ -0,0 +1,426 @@
+package cn.edu.buaa.judger.core;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于cgroup v2的沙箱后端.
+ * 每次运行程序时在judger.sandbox.cgroupRoot下创建一个新的cgroup, 通过memory.max, pids.max和cpuset.cpus限制程序,
+ * 并从memory.stat和cpu.stat读取程序使用的内存和CPU时间, 运行结束后通过cgroup.kill终止cgroup中的所有进程.
+ *
+ * 程序由/bin/sh启动: shell将自身加入cgroup后exec辅助命令(默认为setpriv)切换至低权限用户,
+ * 再exec待执行的程序, 因此无需su或登录.
+ * shell和辅助命令同样计入cgroup的CPU时间, 因此首次运行时测量只运行/bin/true的CPU时间作为基准并从结果中扣除;
+ * 内存取运行期间采样的匿名内存(memory.stat的anon)的最大值, 不包括程序写入输出文件产生的页缓存.
+ * 评测机需以root用户运行, 且cgroupRoot需位于cgroup v2层级中并可由评测机写入.
+ */
+@Component
+public class CgroupSandboxBackend implements SandboxBackend {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CgroupSandboxBackend.class);
+
+    /**
+     * 沙箱后端的名称
+     */
+    public static final String NAME = "cgroup";
+
+    /**
+     * 检查程序资源占用的时间间隔(单位ms)
+     */
+    private static final long POLL_INTERVAL = 10;
+
+    /**
+     * 等待cgroup中的进程全部退出的时间限制(单位ms)
+     */
+    private static final long RELEASE_TIMEOUT = 1000;
+
+    /**
+     * 测量CPU时间基准时的运行次数(取中位数)
+     */
+    private static final int BASELINE_RUNS = 5;
+
+    /**
+     * 评测机使用的cgroup目录
+     */
+    @Value("${judger.sandbox.cgroupRoot}")
+    private String cgroupRoot;
+
+    /**
+     * 切换至低权限用户的辅助命令.
+     * 其中{username}将被替换为评测槽位的低权限用户名.
+     */
+    @Value("${judger.sandbox.helperCommand}")
+    private String helperCommand;
+
+    /**
+     * 程序可创建的进程(线程)数量上限, 不大于0时不限制
+     */
+    @Value("${judger.sandbox.pidsLimit}")
+    private int pidsLimit;
+
+    /**
+     * 是否已在cgroupRoot中启用所需的控制器
+     */
+    private boolean isPrepared = false;
+
+    /**
+     * 启动程序(shell和辅助命令)本身使用的CPU时间(单位us)
+     */
+    private long baselineCpuTime = 0;
+
+    /**
+     * 用于生成cgroup名称的序号
+     */
+    private final AtomicLong sequence = new AtomicLong();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public Map<String, Object> getRuntimeResult(String commandLine, JudgeSlot slot, String inputFilePath,
+                                                String outputFilePath, boolean isErrorMerged, int timeLimit,
+                                                int memoryLimit, int cpu) throws Exception {
+        File cgroupDirFile = createCgroup(slot, memoryLimit, cpu);
+        try {
+            return run(cgroupDirFile, commandLine, slot, inputFilePath, outputFilePath, isErrorMerged,
+                    timeLimit, memoryLimit);
+        } finally {
+            release(cgroupDirFile);
+        }
+    }
+
+    /**
+     * 为评测槽位创建一个新的cgroup, 并设置内存, 进程数量和CPU核心的限制.
+     * 也用于JavaRunnerPool的运行进程.
+     * @param slot - 评测槽位
+     * @param memoryLimit - 内存限制(单位KB, 0表示不限制)
+     * @param cpu - 程序绑定的CPU核心编号(负数表示不绑定)
+     * @return cgroup目录
+     * @throws IOException
+     */
+    File createCgroup(JudgeSlot slot, int memoryLimit, int cpu) throws IOException {
+        prepare(slot);
+        File cgroupDirFile = newCgroup(slot);
+        try {
+            writeControl(cgroupDirFile, "memory.max", memoryLimit > 0 ? String.valueOf(memoryLimit * 1024L) : "max");
+            if ( memoryLimit > 0 ) {
+                writeControlQuietly(cgroupDirFile, "memory.swap.max", "0");
+            }
+            writeControl(cgroupDirFile, "pids.max", pidsLimit > 0 ? String.valueOf(pidsLimit) : "max");
+            if ( cpu >= 0 ) {
+                writeControlQuietly(cgroupDirFile, "cpuset.cpus", String.valueOf(cpu));
+            }
+        } catch ( IOException ex ) {
+            release(cgroupDirFile);
+            throw ex;
+        }
+        return cgroupDirFile;
+    }
+
+    /**
+     * 为评测槽位创建一个新的(不设置限制的)cgroup.
+     * @param slot - 评测槽位
+     * @return cgroup目录
+     * @throws IOException
+     */
+    private File newCgroup(JudgeSlot slot) throws IOException {
+        File cgroupDirFile = new File(cgroupRoot, String.format("slot-%d-%d",
+                new Object[] { slot.getSlotId(), sequence.incrementAndGet() }));
+        if ( !cgroupDirFile.mkdir() ) {
+            throw new IOException("Failed to create cgroup: " + cgroupDirFile.getPath());
+        }
+        return cgroupDirFile;
+    }
+
+    /**
+     * 在cgroup中以评测槽位的低权限用户启动程序.
+     * @param cgroupDirFile - cgroup目录
+     * @param commandLine - 待执行程序的命令行
+     * @param slot - 评测槽位
+     * @param inputFilePath - 输入文件路径(可为NULL)
+     * @param outputFilePath - 输出文件路径(可为NULL)
+     * @param isErrorMerged - 标准错误输出是否写入输出文件(为false时丢弃)
+     * @return 程序的进程
+     * @throws IOException
+     */
+    private Process start(File cgroupDirFile, String commandLine, JudgeSlot slot, String inputFilePath,
+                          String outputFilePath, boolean isErrorMerged) throws IOException {
+        File nullFile = new File("/dev/null");
+        ProcessBuilder processBuilder = new ProcessBuilder(getCommand(cgroupDirFile, slot, commandLine, false))
+                .redirectInput(inputFilePath == null ? nullFile : new File(inputFilePath))
+                .redirectOutput(outputFilePath == null ? nullFile : new File(outputFilePath));
+        if ( isErrorMerged ) {
+            processBuilder.redirectErrorStream(true);
+        } else {
+            processBuilder.redirectError(nullFile);
+        }
+        return processBuilder.start();
+    }
+
+    /**
+     * 获取在cgroup中以评测槽位的低权限用户运行程序的命令.
+     * shell将自身加入cgroup后exec辅助命令; 使用PID命名空间时先exec unshare(需root权限),
+     * 程序成为新命名空间中的1号进程, 其退出(或unshare被终止)时命名空间中的其他进程均被内核终止.
+     * @param cgroupDirFile - cgroup目录
+     * @param slot - 评测槽位
+     * @param commandLine - 待执行程序的命令行
+     * @param isPidNamespaceUsed - 是否在新的PID命名空间中运行程序
+     * @return 命令
+     */
+    List<String> getCommand(File cgroupDirFile, JudgeSlot slot, String commandLine, boolean isPidNamespaceUsed) {
+        String procsFilePath = new File(cgroupDirFile, "cgroup.procs").getPath();
+        String script = String.format("echo $$ > '%s' && exec %s%s %s", new Object[] { procsFilePath,
+                isPidNamespaceUsed ? "unshare --pid --fork --kill-child -- " : "",
+                helperCommand.trim().replace("{username}", slot.getSystemUsername()), commandLine });
+        return Arrays.asList("/bin/sh", "-c", script);
+    }
+
+    /**
+     * 在cgroup中运行程序, 并在程序退出或超出时间限制后统计资源占用.
+     * @param cgroupDirFile - cgroup目录
+     * @param commandLine - 待执行程序的命令行
+     * @param slot - 评测槽位
+     * @param inputFilePath - 输入文件路径(可为NULL)
+     * @param outputFilePath - 输出文件路径(可为NULL)
+     * @param isErrorMerged - 标准错误输出是否写入输出文件(为false时丢弃)
+     * @param timeLimit - 时间限制(单位ms, 0表示不限制)
+     * @param memoryLimit - 内存限制(单位KB, 0表示不限制)
+     * @return 一个包含程序运行结果的Map<String, Object>对象
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private Map<String, Object> run(File cgroupDirFile, String commandLine, JudgeSlot slot, String inputFilePath,
+                                    String outputFilePath, boolean isErrorMerged, int timeLimit, int memoryLimit)
+            throws IOException, InterruptedException {
+        Process process = start(cgroupDirFile, commandLine, slot, inputFilePath, outputFilePath, isErrorMerged);
+        long startTime = System.currentTimeMillis();
+        long peakMemory = 0;
+        boolean isTimeLimitExceeded = false;
+        while ( !process.waitFor(POLL_INTERVAL, TimeUnit.MILLISECONDS) ) {
+            peakMemory = Math.max(peakMemory, getAnonymousMemory(cgroupDirFile));
+            if ( timeLimit <= 0 ) {
+                continue;
+            }
+            // 程序可能因等待输入或休眠而不占用CPU, 因此同时限制实际经过的时间
+            long elapsedTime = System.currentTimeMillis() - startTime;
+            if ( getCpuTime(cgroupDirFile) >= timeLimit || elapsedTime >= timeLimit * 2L + 1000 ) {
+                isTimeLimitExceeded = true;
+                kill(cgroupDirFile, process);
+                process.waitFor();
+                break;
+            }
+        }
+        peakMemory = Math.max(peakMemory, getAnonymousMemory(cgroupDirFile));
+        int usedTime = (int) getCpuTime(cgroupDirFile);
+        int usedMemory = (int) (peakMemory / 1024);
+        if ( isTimeLimitExceeded ) {
+            usedTime = Math.max(usedTime, timeLimit);
+        }
+        if ( memoryLimit > 0 && isOutOfMemoryKilled(cgroupDirFile) ) {
+            usedMemory = Math.max(usedMemory, memoryLimit);
+        }
+        Map<String, Object> result = new HashMap<>(4, 1);
+        result.put("exitCode", process.exitValue());
+        result.put("usedTime", usedTime);
+        result.put("usedMemory", usedMemory);
+        return result;
+    }
+
+    /**
+     * 创建评测机使用的cgroup目录, 并为其子cgroup启用所需的控制器, 然后测量CPU时间基准.
+     * 某些控制器(如cpuset)不可用时只记录警告.
+     * @param slot - 评测槽位(以其低权限用户测量CPU时间基准)
+     */
+    private synchronized void prepare(JudgeSlot slot) {
+        if ( isPrepared ) {
+            return;
+        }
+        File cgroupRootFile = new File(cgroupRoot);
+        cgroupRootFile.mkdirs();
+        for ( String controller : new String[] { "memory", "pids", "cpu", "cpuset" } ) {
+            if ( !writeControlQuietly(cgroupRootFile, "cgroup.subtree_control", "+" + controller) ) {
+                LOGGER.warn("Failed to enable cgroup controller " + controller + " in " + cgroupRoot);
+            }
+        }
+        baselineCpuTime = getBaselineCpuTime(slot);
+        LOGGER.info(String.format("CPU time of the sandbox startup (subtracted from results): %d us",
+                new Object[] { baselineCpuTime }));
+        isPrepared = true;
+    }
+
+    /**
+     * 测量在cgroup中启动/bin/true使用的CPU时间(即shell和辅助命令本身的开销).
+     * @param slot - 评测槽位
+     * @return 多次测量的中位数(单位us), 无法测量时返回0
+     */
+    private long getBaselineCpuTime(JudgeSlot slot) {
+        long[] cpuTimes = new long[BASELINE_RUNS];
+        for ( int i = 0; i < BASELINE_RUNS; ++ i ) {
+            File cgroupDirFile = null;
+            try {
+                cgroupDirFile = newCgroup(slot);
+                Process process = start(cgroupDirFile, "/bin/true", slot, null, null, false);
+                if ( !process.waitFor(RELEASE_TIMEOUT, TimeUnit.MILLISECONDS) || process.exitValue() != 0 ) {
+                    process.destroyForcibly();
+                    throw new IOException("/bin/true did not exit normally in the sandbox.");
+                }
+                cpuTimes[i] = getEventCount(cgroupDirFile, "cpu.stat", "usage_usec");
+            } catch ( IOException | InterruptedException ex ) {
+                if ( ex instanceof InterruptedException ) {
+                    Thread.currentThread().interrupt();
+                }
+                LOGGER.warn("Failed to measure the CPU time of the sandbox startup: " + ex.getMessage());
+                return 0;
+            } finally {
+                if ( cgroupDirFile != null ) {
+                    release(cgroupDirFile);
+                }
+            }
+        }
+        Arrays.sort(cpuTimes);
+        return cpuTimes[BASELINE_RUNS / 2];
+    }
+
+    /**
+     * 终止cgroup中的所有进程.
+     * 内核不支持cgroup.kill(Linux 5.14以前)时只终止直接启动的进程.
+     * @param cgroupDirFile - cgroup目录
+     * @param process - 直接启动的进程
+     */
+    private void kill(File cgroupDirFile, Process process) {
+        if ( !writeControlQuietly(cgroupDirFile, "cgroup.kill", "1") ) {
+            process.destroyForcibly();
+        }
+    }
+
+    /**
+     * 终止cgroup中残留的进程(如程序创建的子进程)并删除cgroup.
+     * @param cgroupDirFile - cgroup目录
+     */
+    void release(File cgroupDirFile) {
+        try {
+            writeControlQuietly(cgroupDirFile, "cgroup.kill", "1");
+            long deadline = System.currentTimeMillis() + RELEASE_TIMEOUT;
+            while ( getEventCount(cgroupDirFile, "cgroup.events", "populated") > 0 &&
+                    System.currentTimeMillis() < deadline ) {
+                Thread.sleep(POLL_INTERVAL);
+            }
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+        // cgroup目录中只有内核提供的控制文件, 只能使用rmdir删除
+        if ( !cgroupDirFile.delete() ) {
+            LOGGER.warn("Failed to remove cgroup: " + cgroupDirFile.getPath());
+        }
+    }
+
+    /**
+     * 获取cgroup中的程序使用的CPU时间(不包括启动程序本身的开销).
+     * @param cgroupDirFile - cgroup目录
+     * @return CPU时间(单位ms)
+     */
+    private long getCpuTime(File cgroupDirFile) {
+        return Math.max(0, getCpuUsage(cgroupDirFile) - baselineCpuTime) / 1000;
+    }
+
+    /**
+     * 获取cgroup中的进程累计使用的CPU时间.
+     * @param cgroupDirFile - cgroup目录
+     * @return CPU时间(单位us)
+     */
+    long getCpuUsage(File cgroupDirFile) {
+        return getEventCount(cgroupDirFile, "cpu.stat", "usage_usec");
+    }
+
+    /**
+     * 获取cgroup中的进程当前使用的匿名内存(不包括页缓存).
+     * @param cgroupDirFile - cgroup目录
+     * @return 匿名内存(字节)
+     */
+    long getAnonymousMemory(File cgroupDirFile) {
+        return getEventCount(cgroupDirFile, "memory.stat", "anon");
+    }
+
+    /**
+     * cgroup中是否有进程因超出内存限制而被终止.
+     * @param cgroupDirFile - cgroup目录
+     * @return 是否有进程被终止
+     */
+    boolean isOutOfMemoryKilled(File cgroupDirFile) {
+        return getEventCount(cgroupDirFile, "memory.events", "oom_kill") > 0;
+    }
+
+    /**
+     * 获取cgroup中的进程数量.
+     * @param cgroupDirFile - cgroup目录
+     * @return 进程数量, 无法读取时返回0
+     */
+    int getProcessCount(File cgroupDirFile) {
+        try {
+            return FileUtils.readLines(new File(cgroupDirFile, "cgroup.procs"), "UTF-8").size();
+        } catch ( IOException ex ) {
+            return 0;
+        }
+    }
+
+    /**
+     * 读取"键 值"格式的控制文件中的某一项.
+     * @param cgroupDirFile - cgroup目录
+     * @param fileName - 控制文件名
+     * @param key - 键
+     * @return 对应的值, 无法读取时返回0
+     */
+    private long getEventCount(File cgroupDirFile, String fileName, String key) {
+        try {
+            for ( String line : FileUtils.readLines(new File(cgroupDirFile, fileName), "UTF-8") ) {
+                String[] fields = line.trim().split("\\s+");
+                if ( fields.length == 2 && fields[0].equals(key) ) {
+                    return Long.parseLong(fields[1]);
+                }
+            }
+        } catch ( IOException | NumberFormatException ex ) {
+            return 0;
+        }
+        return 0;
+    }
+
+    /**
+     * 写入控制文件.
+     * @param cgroupDirFile - cgroup目录
+     * @param fileName - 控制文件名
+     * @param value - 写入的值
+     * @throws IOException
+     */
+    private void writeControl(File cgroupDirFile, String fileName, String value) throws IOException {
+        FileUtils.writeStringToFile(new File(cgroupDirFile, fileName), value, "UTF-8");
+    }
+
+    /**
+     * 写入控制文件, 忽略写入失败.
+     * @param cgroupDirFile - cgroup目录
+     * @param fileName - 控制文件名
+     * @param value - 写入的值
+     * @return 是否写入成功
+     */
+    private boolean writeControlQuietly(File cgroupDirFile, String fileName, String value) {
+        try {
+            writeControl(cgroupDirFile, fileName, value);
+            return true;
+        } catch ( IOException ex ) {
+            return false;
+        }
+    }
+}
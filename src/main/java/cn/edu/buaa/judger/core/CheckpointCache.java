@@ -0,0 +1,542 @@
+package cn.edu.buaa.judger.core;
+
+import cn.edu.buaa.judger.config.CacheConfig;
+import cn.edu.buaa.judger.exception.CreateDirectoryException;
+import cn.edu.buaa.judger.mapper.CheckpointMapper;
+import cn.edu.buaa.judger.model.CheckpointMetadata;
+import cn.edu.buaa.judger.model.CheckpointStream;
+import cn.edu.buaa.judger.utils.RandomStringUtil;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.DigestInputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 测试点缓存.
+ * 测试点数据以数据包(CheckpointPack)的形式按"试题ID/数据版本"的目录结构存储在磁盘上, 数据版本由测试点元数据中的内容摘要决定.
+ * 只有数据版本发生变化时才从数据库获取并写入测试点; 新版本的数据先写入临时目录,
+ * 再以原子操作移动至版本目录, 因此正在读取旧版本数据的评测任务不会受到影响.
+ * 旧版本的目录在不再被任何评测任务使用后删除.
+ * 测试点目录占用的磁盘空间超出上限时, 按最近最少使用的顺序删除未被使用的试题的测试点.
+ */
+@Component
+public class CheckpointCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CheckpointCache.class);
+
+    /**
+     * 写入测试点数据时使用的缓冲区大小
+     */
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    /**
+     * 测试点的存储目录
+     * 用于存储测试点的输入输出数据
+     */
+    @Value("${judger.checkpointDir}")
+    private String checkpointDirectory;
+
+    /**
+     * 测试点目录占用磁盘空间的上限(字节)
+     * 不大于0时不限制
+     */
+    @Value("${judger.checkpointCacheSize}")
+    private long capacity;
+
+    @Autowired
+    private CheckpointMapper checkpointMapper;
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    /**
+     * 各试题的锁.
+     * 同一试题的测试点的获取、写入和删除互斥进行.
+     */
+    private final Map<Long, Object> problemLocks = new ConcurrentHashMap<>();
+
+    /**
+     * 各版本目录中已打开的数据包
+     */
+    private final Map<String, CheckpointPack> checkpointPacks = new ConcurrentHashMap<>();
+
+    /**
+     * 各版本目录正在使用该目录的评测任务数量
+     */
+    private final Map<String, Integer> referenceCounts = new HashMap<>();
+
+    /**
+     * 各试题正在使用其测试点的评测任务数量(与referenceCounts同步更新)
+     */
+    private final Map<Long, Integer> problemReferenceCounts = new HashMap<>();
+
+    /**
+     * 各试题的测试点占用的磁盘空间(字节), 按最近访问的顺序排列
+     */
+    private final LinkedHashMap<Long, Long> problemSizes = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 测试点目录占用的磁盘空间(字节)
+     */
+    private long size = 0;
+
+    /**
+     * 缓存命中、未命中以及删除试题测试点的次数
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * 载入评测机上次运行时留下的测试点目录, 并按最后修改时间确定其访问顺序.
+     * 测试点目录只有评测机可以访问(0700), 程序运行时只能读到由Dispatcher写入工作目录的当前测试点输入.
+     */
+    @PostConstruct
+    private void initialize() {
+        try {
+            PrivateFiles.createDirectory(new File(checkpointDirectory), null, PrivateFiles.OWNER_ONLY);
+        } catch ( IOException ex ) {
+            LOGGER.warn("Failed to make the checkpoint directory private: " + ex.getMessage());
+        }
+        File[] problemDirFiles = new File(checkpointDirectory).listFiles(File::isDirectory);
+        if ( problemDirFiles == null ) {
+            return;
+        }
+        Arrays.sort(problemDirFiles, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for ( File problemDirFile : problemDirFiles ) {
+            long problemId;
+            try {
+                problemId = Long.parseLong(problemDirFile.getName());
+            } catch ( NumberFormatException ex ) {
+                continue;
+            }
+            File[] temporaryDirFiles = problemDirFile.listFiles(file -> file.getName().startsWith(".tmp-"));
+            if ( temporaryDirFiles != null ) {
+                for ( File temporaryDirFile : temporaryDirFiles ) {
+                    FileUtils.deleteQuietly(temporaryDirFile);
+                }
+            }
+            updateProblemSize(problemId);
+        }
+        LOGGER.info(String.format("%d problem(s) found in the checkpoint cache, %d byte(s) in total.",
+                new Object[] { problemSizes.size(), size }));
+        evict();
+    }
+
+    /**
+     * 获取试题当前版本的测试点目录, 并将该目录标记为使用中.
+     * 数据版本由测试点元数据计算得出; 若该版本的测试点不在磁盘上, 则从数据库获取.
+     * 使用完毕后需调用release(long, String)方法.
+     * @param problemId - 试题的唯一标识符
+     * @param checkpoints - 试题各测试点的元数据
+     * @return 测试点目录
+     * @throws Exception
+     */
+    public String acquire(long problemId, List<CheckpointMetadata> checkpoints) throws Exception {
+        String version = getVersion(checkpoints);
+        String versionDirectory;
+        synchronized ( getProblemLock(problemId) ) {
+            versionDirectory = new File(getProblemDirectory(problemId), version).getPath();
+            File packFile = new File(versionDirectory, CheckpointPack.FILE_NAME);
+            boolean isChanged = false;
+            if ( packFile.exists() ) {
+                hits.incrementAndGet();
+            } else {
+                misses.incrementAndGet();
+                isChanged = true;
+                LOGGER.info(String.format("Fetching checkpoints of problem #%d (version %s)",
+                        new Object[] { problemId, version }));
+                // 早期版本的测试点目录中没有数据包
+                FileUtils.deleteQuietly(new File(versionDirectory));
+                String fetchedVersion;
+                try {
+                    fetchedVersion = fetchTestPoints(problemId, checkpoints.size());
+                } catch ( Exception ex ) {
+                    evictCheckpointMetadata(problemId);
+                    throw ex;
+                }
+                if ( !version.equals(fetchedVersion) ) {
+                    // 缓存的元数据已过期, 评测任务的测试点列表与数据库中的测试点不一致
+                    evictCheckpointMetadata(problemId);
+                    updateProblemSize(problemId);
+                    throw new IllegalStateException(String.format(
+                            "Checkpoints of problem #%d changed since their metadata were cached " +
+                            "(expected version %s, fetched version %s).",
+                            new Object[] { problemId, version, fetchedVersion }));
+                }
+            }
+            if ( !checkpointPacks.containsKey(versionDirectory) ) {
+                checkpointPacks.put(versionDirectory, CheckpointPack.open(packFile));
+            }
+            synchronized ( referenceCounts ) {
+                referenceCounts.merge(versionDirectory, 1, Integer::sum);
+                problemReferenceCounts.merge(problemId, 1, Integer::sum);
+            }
+            isChanged |= removeStaleVersions(problemId, versionDirectory);
+            if ( isChanged ) {
+                updateProblemSize(problemId);
+            } else {
+                synchronized ( problemSizes ) {
+                    problemSizes.get(problemId);
+                }
+            }
+        }
+        evict();
+        return versionDirectory;
+    }
+
+    /**
+     * 获取测试点目录对应的数据包.
+     * 数据包在获取测试点目录时打开, 并在测试点目录被删除前一直有效.
+     * @param versionDirectory - 由acquire(long, List)方法获取的测试点目录
+     * @return 测试点数据包
+     */
+    public CheckpointPack getCheckpointPack(String versionDirectory) {
+        return checkpointPacks.get(versionDirectory);
+    }
+
+    /**
+     * 释放测试点目录.
+     * 不再被使用的旧版本目录将在下次获取该试题的测试点时删除.
+     * @param problemId - 试题的唯一标识符
+     * @param versionDirectory - 测试点目录
+     */
+    public void release(long problemId, String versionDirectory) {
+        synchronized ( getProblemLock(problemId) ) {
+            synchronized ( referenceCounts ) {
+                if ( referenceCounts.merge(versionDirectory, -1, Integer::sum) <= 0 ) {
+                    referenceCounts.remove(versionDirectory);
+                }
+                if ( problemReferenceCounts.merge(problemId, -1, Integer::sum) <= 0 ) {
+                    problemReferenceCounts.remove(problemId);
+                }
+            }
+        }
+    }
+
+    /**
+     * 获取测试点缓存的容量.
+     * @return 测试点目录占用磁盘空间的上限(字节)
+     */
+    public long getCapacity() {
+        return capacity;
+    }
+
+    /**
+     * 获取测试点目录占用的磁盘空间.
+     * @return 测试点目录占用的磁盘空间(字节)
+     */
+    public long getSize() {
+        synchronized ( problemSizes ) {
+            return size;
+        }
+    }
+
+    /**
+     * 获取测试点在磁盘上的试题数量.
+     * @return 测试点在磁盘上的试题数量
+     */
+    public int getProblems() {
+        synchronized ( problemSizes ) {
+            return problemSizes.size();
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    /**
+     * 重新统计试题的测试点占用的磁盘空间, 并将其标记为最近使用.
+     * 调用时需持有试题的锁(初始化时除外).
+     * @param problemId - 试题的唯一标识符
+     */
+    private void updateProblemSize(long problemId) {
+        File problemDirFile = getProblemDirectory(problemId);
+        long problemSize = problemDirFile.exists() ? FileUtils.sizeOfDirectory(problemDirFile) : 0;
+        synchronized ( problemSizes ) {
+            Long previousSize = problemSizes.put(problemId, problemSize);
+            size += problemSize - (previousSize == null ? 0 : previousSize);
+        }
+    }
+
+    /**
+     * 在磁盘空间超出上限时, 按最近最少使用的顺序删除试题的测试点.
+     * 正在被评测任务使用的试题不会被删除.
+     */
+    private void evict() {
+        if ( capacity <= 0 ) {
+            return;
+        }
+        while ( true ) {
+            Long victim = null;
+            synchronized ( problemSizes ) {
+                if ( size <= capacity ) {
+                    return;
+                }
+                for ( long problemId : problemSizes.keySet() ) {
+                    if ( !isInUse(problemId) ) {
+                        victim = problemId;
+                        break;
+                    }
+                }
+            }
+            if ( victim == null ) {
+                LOGGER.warn("Checkpoint cache exceeds its capacity, but all problems are in use.");
+                return;
+            }
+            synchronized ( getProblemLock(victim) ) {
+                if ( isInUse(victim) ) {
+                    continue;
+                }
+                File problemDirFile = getProblemDirectory(victim);
+                checkpointPacks.entrySet().removeIf(entry -> {
+                    if ( !problemDirFile.equals(new File(entry.getKey()).getParentFile()) ) {
+                        return false;
+                    }
+                    entry.getValue().close();
+                    return true;
+                });
+                FileUtils.deleteQuietly(problemDirFile);
+                synchronized ( problemSizes ) {
+                    Long problemSize = problemSizes.remove(victim);
+                    size -= problemSize == null ? 0 : problemSize;
+                }
+                evictions.incrementAndGet();
+                LOGGER.info(String.format("Evicted checkpoints of problem #%d", new Object[] { victim }));
+            }
+        }
+    }
+
+    /**
+     * 判断试题的测试点是否正在被评测任务使用.
+     * @param problemId - 试题的唯一标识符
+     * @return 试题的测试点是否正在被使用
+     */
+    private boolean isInUse(long problemId) {
+        synchronized ( referenceCounts ) {
+            return problemReferenceCounts.containsKey(problemId);
+        }
+    }
+
+    /**
+     * 获取试题的测试点目录.
+     * @param problemId - 试题的唯一标识符
+     * @return 试题的测试点目录
+     */
+    private File getProblemDirectory(long problemId) {
+        return new File(String.format("%s/%s", new Object[] {checkpointDirectory, problemId}));
+    }
+
+    /**
+     * 根据测试点元数据计算测试点数据的版本.
+     * 版本由测试点数量和各测试点标识及内容摘要的摘要组成, 测试点发生任何变化时版本随之改变.
+     * @param checkpoints - 试题各测试点的元数据
+     * @return 测试点数据的版本
+     * @throws NoSuchAlgorithmException
+     */
+    private String getVersion(List<CheckpointMetadata> checkpoints) throws NoSuchAlgorithmException {
+        MessageDigest messageDigest = MessageDigest.getInstance("MD5");
+        for ( CheckpointMetadata checkpoint : checkpoints ) {
+            messageDigest.update(getVersionEntry(checkpoint.getCheckpointId(), checkpoint.getCheckpointNumber(),
+                    checkpoint.getInputHash(), checkpoint.getOutputHash()));
+        }
+        return getVersion(checkpoints.size(), messageDigest);
+    }
+
+    /**
+     * 获取测试点在版本摘要中的记录.
+     * @param checkpointId - 测试点ID
+     * @param checkpointNumber - 测试点序号
+     * @param inputHash - 标准输入的MD5摘要(数据库中的MD5(), 为NULL时为null)
+     * @param outputHash - 标准输出的MD5摘要
+     * @return 测试点的记录
+     */
+    private byte[] getVersionEntry(long checkpointId, int checkpointNumber, String inputHash, String outputHash) {
+        String entry = String.format("%d#%d#%s#%s\n", new Object[] {
+                checkpointId, checkpointNumber, inputHash, outputHash });
+        return entry.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 由测试点数量和各测试点记录的摘要得到测试点数据的版本.
+     * @param checkpoints - 测试点数量
+     * @param messageDigest - 已写入各测试点记录的摘要
+     * @return 测试点数据的版本
+     */
+    private String getVersion(int checkpoints, MessageDigest messageDigest) {
+        StringBuilder version = new StringBuilder().append(checkpoints).append('-');
+        byte[] digest = messageDigest.digest();
+        for ( int i = 0; i < 8; ++ i ) {
+            version.append(String.format("%02x", new Object[] { digest[i] & 0xff }));
+        }
+        return version.toString();
+    }
+
+    /**
+     * 获取MD5摘要的十六进制表示(与数据库的MD5()函数相同).
+     * @param messageDigest - 摘要(为null时返回null, 对应数据库中的NULL)
+     * @return 十六进制表示的摘要
+     */
+    private String toHex(MessageDigest messageDigest) {
+        if ( messageDigest == null ) {
+            return null;
+        }
+        StringBuilder hex = new StringBuilder();
+        for ( byte b : messageDigest.digest() ) {
+            hex.append(String.format("%02x", new Object[] { b & 0xff }));
+        }
+        return hex.toString();
+    }
+
+    /**
+     * 删除试题缓存的测试点元数据, 下次评测该试题时重新从数据库读取.
+     * @param problemId - 试题的唯一标识符
+     */
+    private void evictCheckpointMetadata(long problemId) {
+        Cache cache = cacheManager.getCache(CacheConfig.CHECKPOINTS);
+        if ( cache != null ) {
+            cache.evict(problemId);
+        }
+    }
+
+    /**
+     * 获取试题的锁.
+     * @param problemId - 试题的唯一标识符
+     * @return 试题的锁
+     */
+    private Object getProblemLock(long problemId) {
+        return problemLocks.computeIfAbsent(problemId, key -> new Object());
+    }
+
+    /**
+     * 从数据库获取评测数据, 写入临时目录后原子地移动至版本目录.
+     * 测试点逐个从数据库流式读取并直接写入数据包, 不会将全部测试点数据载入内存.
+     * 数据版本由读取到的数据计算得出, 而非缓存的元数据, 因此版本目录中的数据总是与其版本一致.
+     * 该版本的目录已存在时(元数据过期, 而数据已由其他评测任务获取)直接丢弃读取到的数据.
+     * 调用时需持有试题的锁.
+     * @param problemId - 试题的唯一标识符
+     * @param capacity - 数据包可容纳的测试点数量(元数据中的测试点数量)
+     * @return 读取到的测试点数据的版本
+     * @throws Exception
+     */
+    private String fetchTestPoints(long problemId, int capacity) throws Exception {
+        String temporaryDirectory = String.format("%s/%s/.tmp-%s", new Object[] {
+                checkpointDirectory, problemId, RandomStringUtil.getRandomString(8, RandomStringUtil.Mode.ALPHA) });
+        File temporaryDirFile = new File(temporaryDirectory);
+        if ( !temporaryDirFile.mkdirs() ) {
+            throw new CreateDirectoryException("Failed to create the checkpoints directory: " + temporaryDirectory);
+        }
+        try {
+            byte[] buffer = new byte[BUFFER_SIZE];
+            MessageDigest versionDigest = MessageDigest.getInstance("MD5");
+            int[] checkpoints = { 0 };
+            File packFile = new File(temporaryDirFile, CheckpointPack.FILE_NAME);
+            try ( CheckpointPack.Writer packWriter = new CheckpointPack.Writer(packFile, capacity) ) {
+                checkpointMapper.streamProblemCheckpoints(problemId, resultContext -> {
+                    CheckpointStream checkpoint = resultContext.getResultObject();
+                    try {
+                        MessageDigest inputDigest = checkpoint.getInput() == null ?
+                                null : MessageDigest.getInstance("MD5");
+                        MessageDigest outputDigest = checkpoint.getOutput() == null ?
+                                null : MessageDigest.getInstance("MD5");
+                        packWriter.addEntry(checkpoint.getCheckpointId(),
+                                inputDigest == null ? null : new DigestInputStream(checkpoint.getInput(), inputDigest),
+                                outputDigest == null ? null : new DigestInputStream(checkpoint.getOutput(), outputDigest),
+                                buffer);
+                        versionDigest.update(getVersionEntry(checkpoint.getCheckpointId(),
+                                checkpoint.getCheckpointNumber(), toHex(inputDigest), toHex(outputDigest)));
+                    } catch ( IOException ex ) {
+                        throw new UncheckedIOException(ex);
+                    } catch ( NoSuchAlgorithmException ex ) {
+                        throw new IllegalStateException(ex);
+                    }
+                    ++ checkpoints[0];
+                });
+            } catch ( UncheckedIOException ex ) {
+                throw ex.getCause();
+            }
+            String version = getVersion(checkpoints[0], versionDigest);
+            File versionDirFile = new File(getProblemDirectory(problemId), version);
+            if ( !new File(versionDirFile, CheckpointPack.FILE_NAME).exists() ) {
+                FileUtils.deleteQuietly(versionDirFile);
+                Files.move(temporaryDirFile.toPath(), versionDirFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            }
+            return version;
+        } finally {
+            if ( temporaryDirFile.exists() ) {
+                FileUtils.deleteQuietly(temporaryDirFile);
+            }
+        }
+    }
+
+    /**
+     * 删除试题不再被使用的旧版本目录.
+     * 调用时需持有试题的锁.
+     * @param problemId - 试题的唯一标识符
+     * @param currentVersionDirectory - 当前版本的测试点目录
+     * @return 是否删除了旧版本目录
+     */
+    private boolean removeStaleVersions(long problemId, String currentVersionDirectory) {
+        File currentVersionDirFile = new File(currentVersionDirectory);
+        File[] versionDirFiles = getProblemDirectory(problemId).listFiles(File::isDirectory);
+        if ( versionDirFiles == null ) {
+            return false;
+        }
+        boolean isRemoved = false;
+        for ( File versionDirFile : versionDirFiles ) {
+            if ( versionDirFile.equals(currentVersionDirFile) || versionDirFile.getName().startsWith(".tmp-") ) {
+                continue;
+            }
+            synchronized ( referenceCounts ) {
+                if ( referenceCounts.containsKey(versionDirFile.getPath()) ) {
+                    continue;
+                }
+            }
+            CheckpointPack checkpointPack = checkpointPacks.remove(versionDirFile.getPath());
+            if ( checkpointPack != null ) {
+                checkpointPack.close();
+            }
+            isRemoved = true;
+            try {
+                FileUtils.deleteDirectory(versionDirFile);
+                LOGGER.info("Removed stale checkpoints: " + versionDirFile.getPath());
+            } catch ( IOException ex ) {
+                ex.printStackTrace();
+            }
+        }
+        return isRemoved;
+    }
+}
@@ -0,0 +1,332 @@
+package cn.edu.buaa.judger.core;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * 测试点数据包.
+ * 一个版本的全部测试点的输入输出数据存储在同一个文件中, 文件结构如下:
+ * 文件头(魔数, 测试点数量), 索引(各测试点的ID以及输入输出数据的偏移量和长度), 数据.
+ * 每段数据的起始位置均按页对齐. 数据包打开时一次性映射至内存, 此后读取测试点数据无需再进行文件操作.
+ * 数据包关闭后不再持有映射的缓冲区, 映射在已取出的缓冲区均被回收后解除.
+ */
+public class CheckpointPack implements Closeable {
+    /**
+     * 数据包的文件名
+     */
+    public static final String FILE_NAME = "checkpoints.pack";
+
+    /**
+     * 数据包的魔数("BUAAOJP1")
+     */
+    private static final long MAGIC = 0x425541414f4a5031L;
+
+    /**
+     * 数据的对齐单位
+     */
+    private static final int PAGE_SIZE = 4096;
+
+    /**
+     * 文件头的长度: 魔数(8字节)和测试点数量(4字节), 保留4字节
+     */
+    private static final int HEADER_SIZE = 16;
+
+    /**
+     * 每个索引项的长度: 测试点ID, 输入数据的偏移量和长度, 输出数据的偏移量和长度(各8字节)
+     */
+    private static final int ENTRY_SIZE = 40;
+
+    /**
+     * 数据包文件
+     */
+    private final File file;
+
+    /**
+     * 各测试点的标准输入
+     */
+    private final Map<Long, ByteBuffer> inputs;
+
+    /**
+     * 各测试点的标准输入在数据包文件中的偏移量
+     */
+    private final Map<Long, Long> inputOffsets;
+
+    /**
+     * 各测试点的标准输出
+     */
+    private final Map<Long, ByteBuffer> outputs;
+
+    private CheckpointPack(File file, Map<Long, ByteBuffer> inputs, Map<Long, Long> inputOffsets,
+                           Map<Long, ByteBuffer> outputs) {
+        this.file = file;
+        this.inputs = inputs;
+        this.inputOffsets = inputOffsets;
+        this.outputs = outputs;
+    }
+
+    /**
+     * 打开数据包并将各测试点的数据映射至内存.
+     * @param file - 数据包文件
+     * @return 数据包对象
+     * @throws IOException
+     */
+    public static CheckpointPack open(File file) throws IOException {
+        try ( FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ) ) {
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            readFully(channel, header, 0);
+            if ( header.getLong(0) != MAGIC ) {
+                throw new IOException("Invalid checkpoint pack: " + file.getPath());
+            }
+            int entries = header.getInt(8);
+            ByteBuffer index = ByteBuffer.allocate(entries * ENTRY_SIZE);
+            readFully(channel, index, HEADER_SIZE);
+
+            // 数据包关闭时可能仍有评测任务在读取, 因此使用并发容器
+            Map<Long, ByteBuffer> inputs = new ConcurrentHashMap<>();
+            Map<Long, Long> inputOffsets = new ConcurrentHashMap<>();
+            Map<Long, ByteBuffer> outputs = new ConcurrentHashMap<>();
+            for ( int i = 0; i < entries; ++ i ) {
+                int entry = i * ENTRY_SIZE;
+                long checkpointId = index.getLong(entry);
+                inputs.put(checkpointId, map(channel, index.getLong(entry + 8), index.getLong(entry + 16)));
+                inputOffsets.put(checkpointId, index.getLong(entry + 8));
+                outputs.put(checkpointId, map(channel, index.getLong(entry + 24), index.getLong(entry + 32)));
+            }
+            return new CheckpointPack(file, inputs, inputOffsets, outputs);
+        }
+    }
+
+    /**
+     * 获取测试点的标准输入.
+     * @param checkpointId - 测试点ID
+     * @return 只读的标准输入数据, 测试点不存在或数据包已关闭时返回null
+     */
+    public ByteBuffer getInput(long checkpointId) {
+        ByteBuffer input = inputs.get(checkpointId);
+        return input == null ? null : input.duplicate();
+    }
+
+    /**
+     * 获取测试点的标准输出.
+     * @param checkpointId - 测试点ID
+     * @return 只读的标准输出数据, 测试点不存在或数据包已关闭时返回null
+     */
+    public ByteBuffer getOutput(long checkpointId) {
+        ByteBuffer output = outputs.get(checkpointId);
+        return output == null ? null : output.duplicate();
+    }
+
+    /**
+     * 将测试点的标准输入写入新文件(文件已存在时失败, 不会跟随符号链接).
+     * @param checkpointId - 测试点ID
+     * @param file - 目标文件
+     * @throws IOException
+     */
+    public void writeInput(long checkpointId, File file) throws IOException {
+        ByteBuffer input = getInput(checkpointId);
+        if ( input == null ) {
+            throw new IOException("Checkpoint #" + checkpointId + " not found in " + this.file.getPath());
+        }
+        try ( FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW,
+                StandardOpenOption.WRITE) ) {
+            while ( input.hasRemaining() ) {
+                channel.write(input);
+            }
+        }
+    }
+
+    /**
+     * 将测试点的标准输入写入通道(如程序标准输入的管道).
+     * 数据通过transferTo由内核直接从数据包文件复制至目标通道(Linux上为sendfile), 不经过Java堆.
+     * @param checkpointId - 测试点ID
+     * @param target - 目标通道
+     * @throws IOException
+     */
+    public void transferInput(long checkpointId, WritableByteChannel target) throws IOException {
+        ByteBuffer input = getInput(checkpointId);
+        Long offset = inputOffsets.get(checkpointId);
+        if ( input == null || offset == null ) {
+            throw new IOException("Checkpoint #" + checkpointId + " not found in " + file.getPath());
+        }
+        long position = offset;
+        long end = position + input.remaining();
+        try ( FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ) ) {
+            while ( position < end ) {
+                long count = channel.transferTo(position, end - position, target);
+                if ( count <= 0 && position >= channel.size() ) {
+                    throw new IOException("Unexpected end of checkpoint pack.");
+                }
+                position += count;
+            }
+        }
+    }
+
+    /**
+     * 关闭数据包, 释放映射的缓冲区.
+     * 调用方需保证此后不再有评测任务读取该数据包(如数据包所在的目录已不再被引用).
+     */
+    @Override
+    public void close() {
+        inputs.clear();
+        inputOffsets.clear();
+        outputs.clear();
+    }
+
+    /**
+     * 将文件中的一段数据映射至内存.
+     * @param channel - 数据包文件的FileChannel
+     * @param offset - 数据的偏移量
+     * @param length - 数据的长度
+     * @return 只读的数据
+     * @throws IOException
+     */
+    private static ByteBuffer map(FileChannel channel, long offset, long length) throws IOException {
+        if ( length == 0 ) {
+            return ByteBuffer.allocate(0).asReadOnlyBuffer();
+        }
+        return channel.map(FileChannel.MapMode.READ_ONLY, offset, length);
+    }
+
+    /**
+     * 从指定位置读满缓冲区.
+     * @param channel - 数据包文件的FileChannel
+     * @param buffer - 缓冲区
+     * @param position - 读取的起始位置
+     * @throws IOException
+     */
+    private static void readFully(FileChannel channel, ByteBuffer buffer, long position) throws IOException {
+        while ( buffer.hasRemaining() ) {
+            int bytesRead = channel.read(buffer, position);
+            if ( bytesRead < 0 ) {
+                throw new IOException("Unexpected end of checkpoint pack.");
+            }
+            position += bytesRead;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * 获取按页对齐后的位置.
+     * @param position - 位置
+     * @return 不小于position的最小的页边界
+     */
+    private static long align(long position) {
+        return (position + PAGE_SIZE - 1) / PAGE_SIZE * PAGE_SIZE;
+    }
+
+    /**
+     * 数据包的写入器.
+     * 测试点数据按顺序写入, 关闭时写入文件头和索引.
+     */
+    public static class Writer implements Closeable {
+        private final FileChannel channel;
+
+        /**
+         * 数据包可容纳的测试点数量
+         */
+        private final int capacity;
+
+        /**
+         * 索引
+         */
+        private final ByteBuffer index;
+
+        /**
+         * 已写入的测试点数量
+         */
+        private int entries = 0;
+
+        /**
+         * 下一段数据的写入位置
+         */
+        private long position;
+
+        /**
+         * 创建数据包.
+         * @param file - 数据包文件
+         * @param capacity - 数据包可容纳的测试点数量
+         * @throws IOException
+         */
+        public Writer(File file, int capacity) throws IOException {
+            this.channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
+            this.capacity = capacity;
+            this.index = ByteBuffer.allocate(capacity * ENTRY_SIZE);
+            this.position = align(HEADER_SIZE + (long) capacity * ENTRY_SIZE);
+        }
+
+        /**
+         * 写入一个测试点.
+         * @param checkpointId - 测试点ID
+         * @param input - 标准输入的流(为null时写入空数据)
+         * @param output - 标准输出的流(为null时写入空数据)
+         * @param buffer - 复制数据使用的缓冲区
+         * @throws IOException
+         */
+        public void addEntry(long checkpointId, InputStream input,
+                             InputStream output, byte[] buffer) throws IOException {
+            if ( entries >= capacity ) {
+                throw new IOException("Checkpoints changed while being written to the pack.");
+            }
+            index.putLong(checkpointId);
+            writeData(input, buffer);
+            writeData(output, buffer);
+            ++ entries;
+        }
+
+        /**
+         * 写入一段数据, 并将其偏移量和长度写入索引.
+         * @param inputStream - 数据的流(为null时写入空数据)
+         * @param buffer - 复制数据使用的缓冲区
+         * @throws IOException
+         */
+        private void writeData(InputStream inputStream, byte[] buffer) throws IOException {
+            long offset = position;
+            if ( inputStream != null ) {
+                int bytesRead;
+                while ( (bytesRead = IOUtils.read(inputStream, buffer)) > 0 ) {
+                    ByteBuffer data = ByteBuffer.wrap(buffer, 0, bytesRead);
+                    while ( data.hasRemaining() ) {
+                        position += channel.write(data, position);
+                    }
+                }
+                inputStream.close();
+            }
+            index.putLong(offset);
+            index.putLong(position - offset);
+            position = align(position);
+        }
+
+        /**
+         * 写入文件头和索引并关闭数据包.
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+                header.putLong(MAGIC).putInt(entries).putInt(0).flip();
+                long offset = 0;
+                while ( header.hasRemaining() ) {
+                    offset += channel.write(header, offset);
+                }
+                index.flip();
+                while ( index.hasRemaining() ) {
+                    offset += channel.write(index, offset);
+                }
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+    }
+}
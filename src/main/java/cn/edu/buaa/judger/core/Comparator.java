@@ -1,17 +1,30 @@
 package cn.edu.buaa.judger.core;
 
-import org.apache.commons.io.FileUtils;
-import org.apache.commons.io.LineIterator;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 
 /**
- * 用于比对用户输出结果和标准结果
+ * 用于比对用户输出结果和标准结果.
+ * 输出按字节比对, 不进行字符解码: 行以\n, \r\n或\r分隔, 忽略行尾空格以及输出结尾的空行.
+ * 比对和查找行结束符时每次处理8个字节, 输出通过内存映射读取, 因此比对不分配与输出长度相关的内存.
  */
 @Component
 public class Comparator {
+    /**
+     * 按字查找行结束符时使用的常量: 每个字节分别为\n, \r, 0x01和0x80的64位字
+     */
+    private static final long LINE_FEEDS = 0x0a0a0a0a0a0a0a0aL;
+
+    private static final long CARRIAGE_RETURNS = 0x0d0d0d0d0d0d0d0dL;
+
+    private static final long LOW_BITS = 0x0101010101010101L;
+
+    private static final long HIGH_BITS = 0x8080808080808080L;
     /**
      * 获取用户输出和标准输出的比对结果.
      * @param standardOutputFilePath - 标准输出文件路径
@@ -20,83 +33,76 @@ public class Comparator {
      */
     public boolean isOutputTheSame(String standardOutputFilePath,
                                    String outputFilePath) throws IOException {
-        File stdFile = new File(standardOutputFilePath);
+        return isOutputTheSame(map(new File(standardOutputFilePath)), outputFilePath);
+    }
+
+    /**
+     * 获取用户输出和标准输出的比对结果.
+     * @param standardOutput - 标准输出(如测试点数据包中的数据)
+     * @param outputFilePath - 用户输出文件路径
+     * @return 用户输出和标准输出是否相同
+     */
+    public boolean isOutputTheSame(ByteBuffer standardOutput,
+                                   String outputFilePath) throws IOException {
         File file = new File(outputFilePath);
-        LineIterator stdFileItr = FileUtils.lineIterator(stdFile, "UTF-8");
-        LineIterator fileItr = FileUtils.lineIterator(file, "UTF-8");
-        boolean isFileOutputTheSame = isFileOutputTheSame(stdFileItr, fileItr);
-        stdFileItr.close();
-        fileItr.close();
-//        LineIterator.closeQuietly(stdFileItr);
-//        LineIterator.closeQuietly(fileItr);
-        return isFileOutputTheSame;
+        if ( file.length() > Integer.MAX_VALUE ) {
+            return false;
+        }
+        return isOutputTheSame(standardOutput, map(file));
     }
 
     /**
      * 比对标准输出和用户输出是否相同
-     * @param stdFileItr - 标准输出文件的迭代器
-     * @param fileItr - 用户输出文件的迭代器
+     * @param stdOutput - 标准输出
+     * @param output - 用户输出
      * @return 标准输出和用户输出是否相同
      */
-    private boolean isFileOutputTheSame(LineIterator stdFileItr, LineIterator fileItr) {
-        try {
-            while ( stdFileItr.hasNext() && fileItr.hasNext() ) {
-                String stdLine = stdFileItr.nextLine();
-                String line = fileItr.nextLine();
-                if ( !isLineOutputTheSame(stdLine, line) ) {
-                    return false;
-                }
-            }
-            while ( stdFileItr.hasNext() ) {
-                String line = stdFileItr.nextLine();
-                if ( !isLineEmpty(line, 0) ) {
-                    return false;
-                }
+    public boolean isOutputTheSame(ByteBuffer stdOutput, ByteBuffer output) {
+        int i = stdOutput.position(), j = output.position();
+        while ( i < stdOutput.limit() && j < output.limit() ) {
+            // 跳过完全相同的部分: 两行的剩余部分(去除行尾空格后)相同等价于两行相同
+            int commonLength = getCommonLength(stdOutput, i, output, j);
+            if ( commonLength > 0 ) {
+                i = skipLineFeedAfterCarriageReturn(stdOutput, i + commonLength);
+                j = skipLineFeedAfterCarriageReturn(output, j + commonLength);
+                continue;
             }
-            while ( fileItr.hasNext() ) {
-                String line = fileItr.nextLine();
-                if ( !isLineEmpty(line, 0) ) {
-                    return false;
-                }
+            int stdLineEnd = getLineEnd(stdOutput, i);
+            int lineEnd = getLineEnd(output, j);
+            if ( !isLineOutputTheSame(stdOutput, i, stdLineEnd, output, j, lineEnd) ) {
+                return false;
             }
-        } catch ( OutOfMemoryError ex ) {
-            ex.printStackTrace();
-            return false;
+            i = getNextLineStart(stdOutput, stdLineEnd);
+            j = getNextLineStart(output, lineEnd);
         }
-        return true;
+        return isLineEmpty(stdOutput, i, stdOutput.limit()) && isLineEmpty(output, j, output.limit());
     }
 
     /**
      * 比对某行的标准输出和用户输出(忽略行尾空格).
-     * @param stdLine - 标准输出中的某一行
-     * @param line - 用户输出中的某一行
+     * @param stdOutput - 标准输出
+     * @param stdLineStart - 标准输出中该行的起始位置
+     * @param stdLineEnd - 标准输出中该行的结束位置(不含)
+     * @param output - 用户输出
+     * @param lineStart - 用户输出中该行的起始位置
+     * @param lineEnd - 用户输出中该行的结束位置(不含)
      * @return 某行的标准输出和用户输出是否相同
      */
-    private boolean isLineOutputTheSame(String stdLine, String line) {
-        int i = 0, j = 0;
-        for ( ; i < stdLine.length() && j < line.length(); i++, j++ ) {
-            if (  stdLine.charAt(i) != line.charAt(j) ) {
-                if ( stdLine.charAt(i) == '\n' ) {
-                    if ( !isLineEmpty(line, j) ) {
-                        return false;
-                    }
-                    return true;
-                } else if ( line.charAt(j) == '\n' ) {
-                    if ( !isLineEmpty(stdLine, i) ) {
-                        return false;
-                    }
-                    return true;
-                }
-                return false;
-            }
+    private boolean isLineOutputTheSame(ByteBuffer stdOutput, int stdLineStart, int stdLineEnd,
+                                        ByteBuffer output, int lineStart, int lineEnd) {
+        stdLineEnd = trimTrailingSpaces(stdOutput, stdLineStart, stdLineEnd);
+        lineEnd = trimTrailingSpaces(output, lineStart, lineEnd);
+        if ( stdLineEnd - stdLineStart != lineEnd - lineStart ) {
+            return false;
         }
-        while ( i < stdLine.length() ) {
-            if ( !isLineEmpty(stdLine, i++) ) {
+        int i = stdLineStart, j = lineStart;
+        for ( ; i + 8 <= stdLineEnd; i += 8, j += 8 ) {
+            if ( stdOutput.getLong(i) != output.getLong(j) ) {
                 return false;
             }
         }
-        while ( j < line.length() ) {
-            if ( !isLineEmpty(line, j++) ) {
+        for ( ; i < stdLineEnd; ++ i, ++ j ) {
+            if ( stdOutput.get(i) != output.get(j) ) {
                 return false;
             }
         }
@@ -105,16 +111,123 @@ public class Comparator {
 
     /**
      * 忽略文件结尾的空行与空格.
-     * @param line - 某行文件内容
-     * @param startIndex - 开始检查位置的索引
-     * @return 该行内容中是否只包含空格和换行符
+     * @param buffer - 输出内容
+     * @param start - 开始检查位置
+     * @param end - 结束检查位置(不含)
+     * @return 该段内容中是否只包含空格和换行符
      */
-    private boolean isLineEmpty(String line, int startIndex) {
-        for ( int i = startIndex; i < line.length(); i++ ) {
-            if ( !(line.charAt(i) == ' ' || line.charAt(i) == '\n') ) {
+    private boolean isLineEmpty(ByteBuffer buffer, int start, int end) {
+        for ( int i = start; i < end; ++ i ) {
+            byte b = buffer.get(i);
+            if ( !(b == ' ' || b == '\n' || b == '\r') ) {
                 return false;
             }
         }
         return true;
     }
+
+    /**
+     * 获取行的结束位置.
+     * @param buffer - 输出内容
+     * @param lineStart - 行的起始位置
+     * @return 行结束符的位置, 若该行是最后一行且没有行结束符, 则返回输出内容的结尾
+     */
+    private int getLineEnd(ByteBuffer buffer, int lineStart) {
+        int i = lineStart;
+        while ( i + 8 <= buffer.limit() && !hasLineBreak(buffer.getLong(i)) ) {
+            i += 8;
+        }
+        while ( i < buffer.limit() && buffer.get(i) != '\n' && buffer.get(i) != '\r' ) {
+            ++ i;
+        }
+        return i;
+    }
+
+    /**
+     * 获取两段输出从指定位置开始完全相同的部分的长度(按8字节对齐).
+     * @param stdOutput - 标准输出
+     * @param stdStart - 标准输出中的起始位置
+     * @param output - 用户输出
+     * @param start - 用户输出中的起始位置
+     * @return 完全相同的部分的长度(8的倍数)
+     */
+    private int getCommonLength(ByteBuffer stdOutput, int stdStart, ByteBuffer output, int start) {
+        int maxLength = Math.min(stdOutput.limit() - stdStart, output.limit() - start);
+        int length = 0;
+        while ( length + 8 <= maxLength && stdOutput.getLong(stdStart + length) == output.getLong(start + length) ) {
+            length += 8;
+        }
+        return length;
+    }
+
+    /**
+     * 若指定位置处的\n与之前的\r构成一个行结束符(\r\n), 则跳过该\n.
+     * @param buffer - 输出内容
+     * @param position - 位置
+     * @return 跳过\r\n中的\n后的位置
+     */
+    private int skipLineFeedAfterCarriageReturn(ByteBuffer buffer, int position) {
+        if ( position < buffer.limit() && position > buffer.position() &&
+                buffer.get(position - 1) == '\r' && buffer.get(position) == '\n' ) {
+            return position + 1;
+        }
+        return position;
+    }
+
+    /**
+     * 判断64位字中是否包含行结束符(\n或\r).
+     * @param word - 8个字节组成的字
+     * @return 是否包含行结束符
+     */
+    private static boolean hasLineBreak(long word) {
+        return hasZeroByte(word ^ LINE_FEEDS) || hasZeroByte(word ^ CARRIAGE_RETURNS);
+    }
+
+    /**
+     * 判断64位字中是否包含值为0的字节.
+     * @param word - 8个字节组成的字
+     * @return 是否包含值为0的字节
+     */
+    private static boolean hasZeroByte(long word) {
+        return ((word - LOW_BITS) & ~word & HIGH_BITS) != 0;
+    }
+
+    /**
+     * 获取下一行的起始位置.
+     * @param buffer - 输出内容
+     * @param lineEnd - 当前行的结束位置
+     * @return 下一行的起始位置
+     */
+    private int getNextLineStart(ByteBuffer buffer, int lineEnd) {
+        if ( lineEnd < buffer.limit() - 1 && buffer.get(lineEnd) == '\r' && buffer.get(lineEnd + 1) == '\n' ) {
+            return lineEnd + 2;
+        }
+        return lineEnd + 1;
+    }
+
+    /**
+     * 获取去除行尾空格后行的结束位置.
+     * @param buffer - 输出内容
+     * @param lineStart - 行的起始位置
+     * @param lineEnd - 行的结束位置(不含)
+     * @return 去除行尾空格后行的结束位置(不含)
+     */
+    private int trimTrailingSpaces(ByteBuffer buffer, int lineStart, int lineEnd) {
+        while ( lineEnd > lineStart && buffer.get(lineEnd - 1) == ' ' ) {
+            -- lineEnd;
+        }
+        return lineEnd;
+    }
+
+    /**
+     * 将文件映射至内存.
+     * @param file - 文件
+     * @return 只读的文件内容
+     * @throws IOException
+     */
+    private ByteBuffer map(File file) throws IOException {
+        try ( FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ) ) {
+            return channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        }
+    }
 }
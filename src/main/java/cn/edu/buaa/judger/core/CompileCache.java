@@ -0,0 +1,267 @@
+package cn.edu.buaa.judger.core;
+
+import cn.edu.buaa.judger.model.Language;
+import cn.edu.buaa.judger.utils.RandomStringUtil;
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 编译缓存.
+ * 以源代码、编译命令和编译器版本的摘要为键, 缓存编译成功的程序及编译日志.
+ * 命中缓存时不再执行编译命令, 而是将缓存的程序硬链接(或复制)至工作目录.
+ * 缓存的程序属于评测机用户且不可写, 因此以低权限用户运行的程序无法修改缓存.
+ * Java程序的类名随提交而变化, 无法复用编译结果, 因此不使用编译缓存.
+ */
+@Component
+public class CompileCache {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CompileCache.class);
+
+    /**
+     * 缓存中编译日志的文件名
+     */
+    private static final String LOG_FILE_NAME = "compile.log";
+
+    /**
+     * 缓存中程序文件名的前缀(替代随机文件名)
+     */
+    private static final String ARTIFACT_PREFIX = "artifact";
+
+    /**
+     * 编译日志中代替程序路径的占位符
+     */
+    private static final String FILENAME_PLACEHOLDER = "{filename}";
+
+    /**
+     * 编译缓存的存储目录
+     */
+    @Value("${judger.compileCacheDir}")
+    private String compileCacheDirectory;
+
+    /**
+     * 编译缓存占用磁盘空间的上限(字节)
+     * 不大于0时不使用编译缓存
+     */
+    @Value("${judger.compileCacheSize}")
+    private long capacity;
+
+    @Autowired
+    private Toolchain toolchain;
+
+    /**
+     * 各缓存项占用的磁盘空间(字节), 按最近访问的顺序排列
+     */
+    private final LinkedHashMap<String, Long> entrySizes = new LinkedHashMap<>(16, 0.75f, true);
+
+    /**
+     * 编译缓存占用的磁盘空间(字节)
+     */
+    private long size = 0;
+
+    /**
+     * 缓存命中和未命中的次数
+     */
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * 载入评测机上次运行时留下的缓存项, 并按最后修改时间确定其访问顺序.
+     */
+    @PostConstruct
+    private void initialize() {
+        if ( capacity <= 0 ) {
+            return;
+        }
+        File[] entryDirFiles = new File(compileCacheDirectory).listFiles(File::isDirectory);
+        if ( entryDirFiles == null ) {
+            return;
+        }
+        Arrays.sort(entryDirFiles, (a, b) -> Long.compare(a.lastModified(), b.lastModified()));
+        for ( File entryDirFile : entryDirFiles ) {
+            if ( entryDirFile.getName().startsWith(".tmp-") ) {
+                FileUtils.deleteQuietly(entryDirFile);
+                continue;
+            }
+            long entrySize = FileUtils.sizeOfDirectory(entryDirFile);
+            synchronized ( entrySizes ) {
+                entrySizes.put(entryDirFile.getName(), entrySize);
+                size += entrySize;
+            }
+        }
+        evict();
+    }
+
+    /**
+     * 获取评测上下文对应的缓存键.
+     * @param context - 评测上下文
+     * @return 缓存键, 不使用编译缓存时返回null
+     */
+    public String getKey(JudgeContext context) {
+        Language language = context.getLanguage();
+        if ( capacity <= 0 || language.getLanguageName().equalsIgnoreCase("Java") ) {
+            return null;
+        }
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            String sourceCode = context.getSubmission().getSubmitCode().replace("\r\n", "\n");
+            for ( String part : new String[] { language.getCompileCommand(),
+                    toolchain.getCompilerVersion(language), sourceCode } ) {
+                messageDigest.update(part.getBytes(StandardCharsets.UTF_8));
+                messageDigest.update((byte) 0);
+            }
+            StringBuilder key = new StringBuilder();
+            for ( byte b : messageDigest.digest() ) {
+                key.append(String.format("%02x", new Object[] { b & 0xff }));
+            }
+            return key.toString();
+        } catch ( NoSuchAlgorithmException ex ) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 从缓存中恢复编译结果.
+     * @param key - 缓存键
+     * @param context - 评测上下文
+     * @return 编译日志, 未命中缓存时返回null
+     */
+    public String restore(String key, JudgeContext context) {
+        File entryDirFile = new File(compileCacheDirectory, key);
+        File[] artifactFiles = entryDirFile.listFiles(file -> file.getName().startsWith(ARTIFACT_PREFIX));
+        if ( artifactFiles == null || artifactFiles.length == 0 ) {
+            misses.incrementAndGet();
+            return null;
+        }
+        try {
+            String filePathWithoutExtension = getFilePathWithoutExtension(context);
+            for ( File artifactFile : artifactFiles ) {
+                File targetFile = new File(filePathWithoutExtension +
+                        artifactFile.getName().substring(ARTIFACT_PREFIX.length()));
+                try {
+                    Files.createLink(targetFile.toPath(), artifactFile.toPath());
+                } catch ( IOException | UnsupportedOperationException ex ) {
+                    Files.copy(artifactFile.toPath(), targetFile.toPath(), StandardCopyOption.COPY_ATTRIBUTES);
+                }
+            }
+            String compileLog = FileUtils.readFileToString(new File(entryDirFile, LOG_FILE_NAME), "UTF-8");
+            synchronized ( entrySizes ) {
+                entrySizes.get(key);
+            }
+            hits.incrementAndGet();
+            return compileLog.replace(FILENAME_PLACEHOLDER, filePathWithoutExtension);
+        } catch ( IOException ex ) {
+            // 缓存项可能恰好被删除, 此时重新编译
+            LOGGER.warn("Failed to restore compile cache " + key + ": " + ex.getMessage());
+            misses.incrementAndGet();
+            return null;
+        }
+    }
+
+    /**
+     * 将编译成功的程序及编译日志存入缓存.
+     * 缓存项先写入临时目录, 再以原子操作移动至缓存目录.
+     * @param key - 缓存键
+     * @param context - 评测上下文
+     * @param artifactFiles - 编译生成的文件
+     * @param compileLog - 编译日志
+     */
+    public void store(String key, JudgeContext context, List<File> artifactFiles, String compileLog) {
+        File entryDirFile = new File(compileCacheDirectory, key);
+        if ( artifactFiles.isEmpty() || entryDirFile.exists() ) {
+            return;
+        }
+        File temporaryDirFile = new File(compileCacheDirectory,
+                ".tmp-" + RandomStringUtil.getRandomString(8, RandomStringUtil.Mode.ALPHA));
+        try {
+            if ( !temporaryDirFile.mkdirs() ) {
+                throw new IOException("Failed to create directory: " + temporaryDirFile.getPath());
+            }
+            String filePathWithoutExtension = getFilePathWithoutExtension(context);
+            for ( File artifactFile : artifactFiles ) {
+                File cachedFile = new File(temporaryDirFile, ARTIFACT_PREFIX +
+                        artifactFile.getName().substring(context.getBaseFileName().length()));
+                Files.copy(artifactFile.toPath(), cachedFile.toPath());
+                cachedFile.setWritable(false, false);
+                cachedFile.setReadable(true, false);
+                cachedFile.setExecutable(artifactFile.canExecute(), false);
+            }
+            FileUtils.writeStringToFile(new File(temporaryDirFile, LOG_FILE_NAME),
+                    compileLog.replace(filePathWithoutExtension, FILENAME_PLACEHOLDER), "UTF-8");
+            long entrySize = FileUtils.sizeOfDirectory(temporaryDirFile);
+            Files.move(temporaryDirFile.toPath(), entryDirFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            synchronized ( entrySizes ) {
+                entrySizes.put(key, entrySize);
+                size += entrySize;
+            }
+        } catch ( IOException ex ) {
+            // 其他评测任务可能同时写入了相同的缓存项
+            LOGGER.warn("Failed to store compile cache " + key + ": " + ex.getMessage());
+        } finally {
+            FileUtils.deleteQuietly(temporaryDirFile);
+        }
+        evict();
+    }
+
+    public long getCapacity() {
+        return capacity;
+    }
+
+    public long getSize() {
+        synchronized ( entrySizes ) {
+            return size;
+        }
+    }
+
+    public long getHits() {
+        return hits.get();
+    }
+
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * 在磁盘空间超出上限时, 按最近最少使用的顺序删除缓存项.
+     * 正在从缓存项恢复的评测任务将因恢复失败而重新编译.
+     */
+    private void evict() {
+        while ( true ) {
+            String victim;
+            synchronized ( entrySizes ) {
+                if ( size <= capacity || entrySizes.isEmpty() ) {
+                    return;
+                }
+                victim = entrySizes.keySet().iterator().next();
+                size -= entrySizes.remove(victim);
+            }
+            FileUtils.deleteQuietly(new File(compileCacheDirectory, victim));
+        }
+    }
+
+    /**
+     * 获取程序在工作目录中的路径(不包含后缀).
+     * @param context - 评测上下文
+     * @return 程序在工作目录中的路径(不包含后缀)
+     */
+    private String getFilePathWithoutExtension(JudgeContext context) {
+        return String.format("%s/%s", new Object[] {context.getWorkDirectory(), context.getBaseFileName()});
+    }
+}
@@ -1,16 +1,18 @@
 package cn.edu.buaa.judger.core;
 
-import cn.edu.buaa.judger.mapper.LanguageMapper;
 import cn.edu.buaa.judger.model.Language;
-import cn.edu.buaa.judger.model.Submission;
-import org.apache.commons.io.IOUtils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
-import java.io.FileInputStream;
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 /**
@@ -20,9 +22,6 @@ import java.util.Map;
 public class Compiler {
     private static final Logger LOGGER = LoggerFactory.getLogger(Compiler.class);
 
-    @Autowired
-    private LanguageMapper languageMapper;
-
     /**
      * 自动注入的Runner对象.
      * 用于执行编译命令.
@@ -30,34 +29,84 @@ public class Compiler {
     @Autowired
     private Runner compilerRunner;
 
+    @Autowired
+    private CompileCache compileCache;
+
     /**
-     * 获取编译输出结果
-     * @param submission - 提交记录对象
-     * @param workDirectory - 编译输出目录
-     * @param baseFileName - 编译输出文件名
+     * 编译日志的最大长度(字节)
+     */
+    @Value("${judger.compileLogSize}")
+    private int maxCompileLogSize;
+
+    @Autowired
+    private JavaCompilerBackend javaCompilerBackend;
+
+    @Autowired
+    private PrecompiledHeader precompiledHeader;
+
+    /**
+     * 获取编译输出结果.
+     * 若编译缓存中存在相同代码的编译结果, 则直接使用缓存的程序而不再编译.
+     * 编程语言指定了javax.tools编译方式时, 使用常驻的Java编译进程编译, 编译进程出错时结果中的isSystemError为true.
+     * @param context - 评测上下文
+     * @param slot - 评测槽位
      * @return 包含编译输出结果的Map<String, Object>对象
      */
-    public Map<String, Object> getCompileResult(Submission submission,
-                                                String workDirectory, String baseFileName) {
-        String compileCommand = getCompileCommand(submission, workDirectory, baseFileName);
-        String compileLogPath = getCompileLogPath(workDirectory, baseFileName);
-        return getCompileResult(compileCommand, compileLogPath);
+    public Map<String, Object> getCompileResult(JudgeContext context, JudgeSlot slot) {
+        String cacheKey = compileCache.getKey(context);
+        if ( cacheKey != null ) {
+            String compileLog = compileCache.restore(cacheKey, context);
+            if ( compileLog != null ) {
+                LOGGER.info(String.format("[Submission #%d] Compile cache hit: %s",
+                        new Object[] { context.getSubmissionId(), cacheKey }));
+                Map<String, Object> result = new HashMap<>(4, 1);
+                result.put("isSuccessful", true);
+                result.put("isCached", true);
+                result.put("log", compileLog);
+                return result;
+            }
+        }
+        String compileLogPath = getCompileLogPath(context.getWorkDirectory(), context.getBaseFileName());
+        if ( JavaCompilerBackend.NAME.equalsIgnoreCase(context.getLanguage().getCompileBackend()) ) {
+            Map<String, Object> result = javaCompilerBackend.getCompileResult(context, compileLogPath);
+            result.put("isCached", false);
+            return result;
+        }
+        File workDirFile = new File(context.getWorkDirectory());
+        List<String> sourceFileNames = Arrays.asList(workDirFile.list());
+        Map<String, Object> result = getCompileResult(context.getCompileCommand(), slot, compileLogPath);
+        result.put("isCached", false);
+        if ( cacheKey != null && (boolean)result.get("isSuccessful") ) {
+            File compileLogFile = new File(compileLogPath);
+            File[] artifactFiles = workDirFile.listFiles(file -> file.isFile() &&
+                    file.getName().startsWith(context.getBaseFileName()) &&
+                    !sourceFileNames.contains(file.getName()) && !file.equals(compileLogFile));
+            if ( artifactFiles != null ) {
+                compileCache.store(cacheKey, context, Arrays.asList(artifactFiles), (String)result.get("log"));
+            }
+        }
+        return result;
     }
 
     /**
-     * 获取编译命令
-     * @param submission - 提交记录对象
+     * 获取编译命令.
+     * C++的预编译头文件可用时, 在编译程序之后加入预编译头文件所在的目录.
+     * @param language - 编程语言对象
      * @param workDirectory - 编译输出目录
      * @param baseFileName - 编译输出文件名
      * @return 编译命令
      */
-    private String getCompileCommand(Submission submission,
-                                     String workDirectory, String baseFileName) {
+    public String getCompileCommand(Language language, String workDirectory, String baseFileName) {
         String filePathWithoutExtension = String.format("%s/%s",
                 new Object[] {workDirectory, baseFileName});
-        Language language = languageMapper.getLanguageById(submission.getLanguageId());
         String compileCommand = language.getCompileCommand()
                 .replaceAll("\\{filename\\}", filePathWithoutExtension);
+        String includeDirectory = precompiledHeader.getIncludeDirectory(language);
+        if ( includeDirectory != null ) {
+            String compileProgram = compileCommand.trim().split("\\s+", 2)[0];
+            compileCommand = compileProgram + " -I " + includeDirectory +
+                    compileCommand.trim().substring(compileProgram.length());
+        }
         return compileCommand;
     }
 
@@ -75,10 +124,11 @@ public class Compiler {
     /**
      * 获取编译输出结果.
      * @param compileCommand - 编译命令
+     * @param slot - 评测槽位
      * @param compileLogPath - 编译日志输出路径
      * @return 包含编译输出结果的Map<String, Object>对象
      */
-    private Map<String, Object> getCompileResult(String compileCommand, String compileLogPath) {
+    private Map<String, Object> getCompileResult(String compileCommand, JudgeSlot slot, String compileLogPath) {
         //编译时无输入样例测试文件
         String inputFilePath = null;
         //编译时间限制
@@ -87,8 +137,8 @@ public class Compiler {
         int memoryLimit = 0;
         LOGGER.info("Start compiling with command: " + compileCommand);
         Map<String, Object> runningResult = compilerRunner.getRuntimeResult(
-                compileCommand, inputFilePath, compileLogPath, timeLimit, memoryLimit);
-        Map<String, Object> result = new HashMap<>(3, 1);
+                compileCommand, slot, inputFilePath, compileLogPath, timeLimit, memoryLimit);
+        Map<String, Object> result = new HashMap<>(4, 1);
         boolean isSuccessful = false;
         if ( runningResult != null ) {
             int exitCode = (int)runningResult.get("exitCode");
@@ -101,16 +151,42 @@ public class Compiler {
 
     /**
      * 获取编译日志内容.
+     * 编译日志超出长度上限时只读取开头和结尾部分, 中间部分以省略的字节数代替,
+     * 因此编译日志的长度不影响内存占用.
      * @param compileLogPath - 编译日志路径
      * @return 编译日志内容
      */
     private String getCompileOutput(String compileLogPath) {
-        FileInputStream inputStream = null;
         String compileLog = "";
-        try {
-            inputStream = new FileInputStream(compileLogPath);
-            compileLog = IOUtils.toString(inputStream, "UTF-8");
-            inputStream.close();
+        try ( RandomAccessFile compileLogFile = new RandomAccessFile(compileLogPath, "r") ) {
+            long length = compileLogFile.length();
+            if ( length <= maxCompileLogSize ) {
+                byte[] buffer = new byte[(int) length];
+                compileLogFile.readFully(buffer);
+                return new String(buffer, StandardCharsets.UTF_8);
+            }
+            byte[] head = new byte[maxCompileLogSize / 2];
+            compileLogFile.readFully(head);
+            byte[] tail = new byte[maxCompileLogSize - head.length];
+            compileLogFile.seek(length - tail.length);
+            compileLogFile.readFully(tail);
+            // 在行边界处截断, 以免截断多字节字符
+            int headLength = head.length;
+            while ( headLength > 0 && head[headLength - 1] != '\n' ) {
+                -- headLength;
+            }
+            if ( headLength == 0 ) {
+                headLength = head.length;
+            }
+            int tailOffset = 0;
+            while ( tailOffset < tail.length && tail[tailOffset] != '\n' ) {
+                ++ tailOffset;
+            }
+            tailOffset = tailOffset < tail.length ? tailOffset + 1 : 0;
+            long omittedBytes = length - headLength - (tail.length - tailOffset);
+            compileLog = new String(head, 0, headLength, StandardCharsets.UTF_8) +
+                    String.format("\n... (%d bytes omitted) ...\n\n", new Object[] { omittedBytes }) +
+                    new String(tail, tailOffset, tail.length - tailOffset, StandardCharsets.UTF_8);
         } catch (Exception ex) {
             ex.printStackTrace();
         }
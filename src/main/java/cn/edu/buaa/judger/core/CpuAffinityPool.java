@@ -0,0 +1,75 @@
+package cn.edu.buaa.judger.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * CPU核心池.
+ * 每个测试点运行时独占一个CPU核心, 并将用户程序绑定至该核心运行,
+ * 以避免并发运行的测试点之间相互争抢CPU而影响计时.
+ */
+@Component
+public class CpuAffinityPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CpuAffinityPool.class);
+
+    /**
+     * 可用于运行用户程序的CPU核心编号列表(以逗号分隔).
+     * 为空时使用全部CPU核心.
+     */
+    @Value("${judger.cpus:}")
+    private String cpus;
+
+    /**
+     * 空闲的CPU核心编号
+     */
+    private BlockingQueue<Integer> idleCpus;
+
+    @PostConstruct
+    private void initialize() {
+        if ( cpus.trim().isEmpty() ) {
+            int availableProcessors = Runtime.getRuntime().availableProcessors();
+            idleCpus = new ArrayBlockingQueue<>(availableProcessors);
+            for ( int i = 0; i < availableProcessors; ++ i ) {
+                idleCpus.add(i);
+            }
+        } else {
+            String[] cpuIds = cpus.split(",");
+            idleCpus = new ArrayBlockingQueue<>(cpuIds.length);
+            for ( String cpuId : cpuIds ) {
+                idleCpus.add(Integer.parseInt(cpuId.trim()));
+            }
+        }
+        LOGGER.info("CPUs for running programs: " + idleCpus);
+    }
+
+    /**
+     * 获取一个空闲的CPU核心, 若无空闲核心则阻塞等待.
+     * @return CPU核心编号
+     * @throws InterruptedException
+     */
+    public int acquire() throws InterruptedException {
+        return idleCpus.take();
+    }
+
+    /**
+     * 归还CPU核心.
+     * @param cpu - CPU核心编号
+     */
+    public void release(int cpu) {
+        idleCpus.offer(cpu);
+    }
+
+    /**
+     * 获取CPU核心的总数.
+     * @return CPU核心的总数
+     */
+    public int getCpus() {
+        return idleCpus.remainingCapacity() + idleCpus.size();
+    }
+}
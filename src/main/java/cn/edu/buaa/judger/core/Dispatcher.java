@@ -3,8 +3,15 @@ package cn.edu.buaa.judger.core;
 import cn.edu.buaa.judger.application.ApplicationDispatcher;
 import cn.edu.buaa.judger.exception.IllegalSubmissionException;
 import cn.edu.buaa.judger.mapper.CheckpointMapper;
+import cn.edu.buaa.judger.mapper.ContestMapper;
+import cn.edu.buaa.judger.mapper.LanguageMapper;
+import cn.edu.buaa.judger.mapper.ProblemMapper;
 import cn.edu.buaa.judger.mapper.SubmissionMapper;
-import cn.edu.buaa.judger.model.Checkpoint;
+import cn.edu.buaa.judger.model.CheckpointMetadata;
+import cn.edu.buaa.judger.model.Contest;
+import cn.edu.buaa.judger.model.JudgePolicy;
+import cn.edu.buaa.judger.model.Language;
+import cn.edu.buaa.judger.model.Problem;
 import cn.edu.buaa.judger.model.Submission;
 import cn.edu.buaa.judger.utils.RandomStringUtil;
 import org.apache.commons.io.FileUtils;
@@ -14,32 +21,37 @@ import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
 
 @Component
 public class Dispatcher {
     private static final Logger LOGGER = LoggerFactory.getLogger(Dispatcher.class);
 
-    /**
-     * 评测机的工作目录
-     * 用于存储编译结果以及程序输出结果
-     */
-    @Value("${judger.workDir}")
-    private String workBaseDirectory;
+    @Autowired
+    private SubmissionMapper submissionMapper;
 
     /**
-     * 测试点的存储目录
-     * 用于存储测试点的输入输出数据
+     * 自动注入的JudgeSlotPool对象.
+     * 每个评测任务独占一个评测槽位, 以实现多个提交的并发评测.
      */
-    @Value("${judger.checkpointDir}")
-    private String checkpointDirectory;
-
     @Autowired
-    private SubmissionMapper submissionMapper;
+    private JudgeSlotPool judgeSlotPool;
 
     @Autowired
     private ApplicationDispatcher applicationDispatcher;
@@ -50,6 +62,23 @@ public class Dispatcher {
     @Autowired
     private Comparator comparator;
 
+    /**
+     * 自动注入的StreamingComparator对象.
+     * 启用时用户输出经命名管道在运行阶段完成比对.
+     */
+    @Autowired
+    private StreamingComparator streamingComparator;
+
+    /**
+     * 自动注入的InputFeeder对象.
+     * 启用时程序的标准输入经命名管道直接从测试点数据包写入.
+     */
+    @Autowired
+    private InputFeeder inputFeeder;
+
+    @Autowired
+    private CheckpointCache checkpointCache;
+
     /**
      * 自动注入的Preprocessor对象
      * 完成编译前的准备工作
@@ -60,87 +89,641 @@ public class Dispatcher {
     @Autowired
     private CheckpointMapper checkpointMapper;
 
+    @Autowired
+    private ProblemMapper problemMapper;
+
     @Autowired
     private Runner runner;
 
-    public void createNewTask(long submissionId) throws IllegalSubmissionException {
-        synchronized (this) {
-            String baseDirectory = String.format("%s/buaaoj-%s", new Object[] {workBaseDirectory, submissionId});
-            String baseFileName = RandomStringUtil.getRandomString(12, RandomStringUtil.Mode.ALPHA);
-            Submission submission = submissionMapper.getSubmissionById(submissionId);
-            if( submission == null ){
-                throw new IllegalSubmissionException("Illegal submission #" + submissionId);
-            }
-            preprocess(submission, baseDirectory, baseFileName);
-            if ( compile(submission, baseDirectory, baseFileName) ) {
-                runProgram(submission, baseDirectory, baseFileName);
-            }
-            cleanUp(baseDirectory);
+    /**
+     * 自动注入的JavaRunnerPool对象.
+     * 提交评测结束后回收运行过该提交的Java运行进程.
+     */
+    @Autowired
+    private JavaRunnerPool javaRunnerPool;
+
+    /**
+     * 自动注入的CpuAffinityPool对象.
+     * 用于为运行中的测试点分配CPU核心.
+     */
+    @Autowired
+    private CpuAffinityPool cpuAffinityPool;
+
+    @Autowired
+    private ContestMapper contestMapper;
+
+    @Autowired
+    private LanguageMapper languageMapper;
+
+    /**
+     * 默认的评测策略(ICPC或OI).
+     * 竞赛和题目均未指定评测策略时使用.
+     */
+    @Value("${judger.defaultJudgePolicy}")
+    private String defaultJudgePolicy;
+
+    /**
+     * 并行运行测试点时使用的线程数量.
+     * 不大于1时所有题目的测试点均顺序运行.
+     */
+    @Value("${judger.checkpointThreads}")
+    private int checkpointThreads;
+
+    /**
+     * 评测流水线各阶段的线程数量
+     */
+    @Value("${judger.stage.preprocessThreads}")
+    private int preprocessThreads;
+
+    @Value("${judger.stage.compileThreads}")
+    private int compileThreads;
+
+    @Value("${judger.stage.runThreads}")
+    private int runThreads;
+
+    @Value("${judger.stage.compareThreads}")
+    private int compareThreads;
+
+    @Value("${judger.stage.publishThreads}")
+    private int publishThreads;
+
+    /**
+     * 评测流水线各阶段之间任务队列的最大长度
+     */
+    @Value("${judger.stage.queueCapacity}")
+    private int stageQueueCapacity;
+
+    /**
+     * 用于并行运行测试点的线程池
+     */
+    private ExecutorService checkpointExecutor;
+
+    /**
+     * 评测流水线的各个阶段.
+     * 不同提交可同时处于不同阶段, 例如提交N+1编译时提交N的测试点正在运行.
+     */
+    private JudgeStage preprocessStage;
+
+    private JudgeStage compileStage;
+
+    private JudgeStage runStage;
+
+    private JudgeStage compareStage;
+
+    private JudgeStage publishStage;
+
+    @PostConstruct
+    private void initialize() {
+        if ( checkpointThreads > 1 ) {
+            checkpointExecutor = Executors.newFixedThreadPool(checkpointThreads);
+        }
+        preprocessStage = new JudgeStage("preprocess", preprocessThreads, stageQueueCapacity);
+        compileStage = new JudgeStage("compile", compileThreads, stageQueueCapacity);
+        runStage = new JudgeStage("run", runThreads, stageQueueCapacity);
+        compareStage = new JudgeStage("compare", compareThreads, stageQueueCapacity);
+        publishStage = new JudgeStage("publish", publishThreads, stageQueueCapacity);
+    }
+
+    @PreDestroy
+    private void destroy() {
+        if ( checkpointExecutor != null ) {
+            checkpointExecutor.shutdownNow();
+        }
+        for ( JudgeStage stage : getStages() ) {
+            stage.shutdown();
         }
     }
 
+    /**
+     * 获取评测流水线的各个阶段.
+     * @return 按执行顺序排列的各个阶段
+     */
+    public List<JudgeStage> getStages() {
+        return Arrays.asList(preprocessStage, compileStage, runStage, compareStage, publishStage);
+    }
+
+    /**
+     * 创建评测任务.
+     * 评测任务将在获得空闲的评测槽位后进入评测流水线, 不同槽位上的任务可以并发执行.
+     * 方法在评测结果发布后返回.
+     * @param submissionId - 评测记录的唯一标识符
+     * @throws IllegalSubmissionException
+     * @throws InterruptedException
+     */
+    public void createNewTask(long submissionId) throws IllegalSubmissionException, InterruptedException {
+        Submission submission = submissionMapper.getSubmissionById(submissionId);
+        if( submission == null ){
+            throw new IllegalSubmissionException("Illegal submission #" + submissionId);
+        }
+        JudgeSlot slot = judgeSlotPool.acquire();
+        JudgeTask task;
+        try {
+            task = new JudgeTask(createJudgeContext(submission, slot), slot);
+        } catch ( IllegalSubmissionException | RuntimeException ex ) {
+            judgeSlotPool.release(slot);
+            throw ex;
+        }
+        LOGGER.info(String.format("[Submission #%d] Judging on slot #%d",
+                new Object[] { submissionId, slot.getSlotId() }));
+        try {
+            preprocessStage.submit(getStageTask(task, this::preprocess));
+        } catch ( InterruptedException ex ) {
+            judgeSlotPool.release(slot);
+            throw ex;
+        }
+        try {
+            task.getCompletion().get();
+        } catch ( ExecutionException ex ) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * 创建评测上下文.
+     * 评测所需的编程语言、试题、评测策略、命令和测试点均在此一次性解析.
+     * @param submission - 评测记录对象
+     * @param slot - 评测槽位
+     * @return 评测上下文
+     * @throws IllegalSubmissionException
+     */
+    private JudgeContext createJudgeContext(Submission submission, JudgeSlot slot)
+            throws IllegalSubmissionException {
+        long submissionId = submission.getSubmissionId();
+        Language language = languageMapper.getLanguageById(submission.getLanguageId());
+        Problem problem = problemMapper.getProblemById(submission.getProblemId());
+        if ( language == null || problem == null ) {
+            throw new IllegalSubmissionException("Illegal submission #" + submissionId);
+        }
+        String workDirectory = String.format("%s/buaaoj-%s", new Object[] {slot.getWorkDirectory(), submissionId});
+        String baseFileName = RandomStringUtil.getRandomString(12, RandomStringUtil.Mode.ALPHA);
+        return new JudgeContext(submission, language, problem, getJudgePolicy(submission, problem),
+                runner.getTimeLimit(language, problem), runner.getMemoryLimit(problem),
+                workDirectory, baseFileName,
+                compiler.getCompileCommand(language, workDirectory, baseFileName),
+                runner.getRunCommand(language, workDirectory, baseFileName),
+                checkpointMapper.getProblemCheckpointMetadata(problem.getProblemId()));
+    }
+
+    /**
+     * 将评测任务交由下一阶段处理.
+     * 若发生异常, 则直接结束评测任务.
+     * @param stage - 下一阶段
+     * @param task - 评测任务
+     * @param action - 下一阶段对评测任务的处理
+     */
+    private void handOff(JudgeStage stage, JudgeTask task, Consumer<JudgeTask> action) {
+        try {
+            stage.submit(getStageTask(task, action));
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            finish(task);
+        }
+    }
+
+    /**
+     * 获取某一阶段对评测任务的处理.
+     * 若处理过程中发生异常, 则通知用户并结束评测任务.
+     * @param task - 评测任务
+     * @param action - 该阶段对评测任务的处理
+     * @return 提交至该阶段的任务
+     */
+    private Runnable getStageTask(JudgeTask task, Consumer<JudgeTask> action) {
+        return () -> {
+            try {
+                action.accept(task);
+            } catch ( Exception ex ) {
+                ex.printStackTrace();
+                applicationDispatcher.onErrorOccurred(task.getSubmissionId());
+                finish(task);
+            }
+        };
+    }
+
     /**
      * 完成评测前的预处理工作
      * 说明: 随机文件名用于防止应用程序自身递归调用
-     * @param submission - 评测记录对象
-     * @param workDirectory - 用于产生编译输出的目录
-     * @param baseFileName - 随机文件名(不包含后缀)
+     * @param task - 评测任务
      */
-    private void preprocess(Submission submission,
-                            String workDirectory, String baseFileName) {
+    private void preprocess(JudgeTask task) {
+        JudgeContext context = task.getContext();
         try {
-            long problemId = submission.getProblemId();
-            preprocessor.createTestCode(submission, workDirectory, baseFileName);
-            preprocessor.fetchTestPoints(problemId);
+            preprocessor.createTestCode(context, task.getSlot());
+            task.setCheckpointDirectory(preprocessor.fetchTestPoints(
+                    context.getProblem().getProblemId(), context.getCheckpoints()));
+            task.setCheckpointPack(checkpointCache.getCheckpointPack(task.getCheckpointDirectory()));
         } catch (Exception ex) {
             ex.printStackTrace();
-            applicationDispatcher.onErrorOccurred(submission.getSubmissionId());
+            applicationDispatcher.onErrorOccurred(context.getSubmissionId());
+            finish(task);
+            return;
         }
+        handOff(compileStage, task, this::compile);
     }
 
     /**
      * 创建编译任务.
-     * 说明: 随机文件名用于防止应用程序自身递归调用.
-     * @param submission - 评测记录对象
-     * @param workDirectory - 用于产生编译输出的目录
-     * @param baseFileName - 随机文件名(不包含后缀)
+     * 编译失败时跳过运行和比对阶段; 编译方式自身出错时报告系统错误而非编译错误.
+     * @param task - 评测任务
      */
-    private boolean compile(Submission submission,
-                            String workDirectory, String baseFileName) {
-        long submissionId = submission.getSubmissionId();
-        Map<String, Object> result =
-                compiler.getCompileResult(submission, workDirectory, baseFileName);
-        applicationDispatcher.onCompileFinished(submissionId, result);
-        return (boolean)result.get("isSuccessful");
+    private void compile(JudgeTask task) {
+        Map<String, Object> result = compiler.getCompileResult(task.getContext(), task.getSlot());
+        if ( Boolean.TRUE.equals(result.get("isSystemError")) ) {
+            applicationDispatcher.onErrorOccurred(task.getSubmissionId());
+            finish(task);
+            return;
+        }
+        applicationDispatcher.onCompileFinished(task.getSubmissionId(), result);
+        if ( (boolean)result.get("isSuccessful") ) {
+            handOff(runStage, task, this::runProgram);
+        } else {
+            handOff(publishStage, task, this::publish);
+        }
     }
 
     /**
      * 执行程序
+     * 若题目允许并行运行测试点, 则各测试点将被分发至多个CPU核心上同时运行,
+     * 运行结果仍按测试点顺序汇总.
+     * 在ICPC赛制下, 每个测试点运行后立即比对输出, 以便在第一个未通过的测试点处停止评测;
+     * 否则所有测试点在一个CPU核心上批量运行, 输出的比对由比对阶段完成;
+     * 沙箱后端不支持批量运行时逐个运行测试点, 避免同时为所有测试点创建管道和读写线程.
+     * 启用流式比对时, 各测试点的输出均在运行的同时完成比对.
+     * 未使用输入管道时, 测试点的输入文件只在其运行期间存在于工作目录中.
+     * @param task - 评测任务
+     */
+    private void runProgram(JudgeTask task) {
+        JudgeContext context = task.getContext();
+        List<CheckpointMetadata> checkpoints = context.getCheckpoints();
+        List<Map<String, Object>> runtimeResults = new ArrayList<>(checkpoints.size());
+        task.setRuntimeResults(runtimeResults);
+        boolean isFailFast = context.isFailFast();
+        if ( checkpointThreads > 1 && context.getProblem().isParallelCheckpoints() ) {
+            runtimeResults.addAll(runCheckpointsInParallel(task, checkpoints, isFailFast));
+        } else if ( isFailFast || !runner.isBatchSupported(context) ) {
+            for ( CheckpointMetadata checkpoint : checkpoints ) {
+                if ( isFailFast && !isAccepted(runtimeResults) ) {
+                    runtimeResults.add(getSkippedResult(checkpoint));
+                } else {
+                    runtimeResults.add(runCheckpoint(task, checkpoint));
+                }
+            }
+        } else {
+            runtimeResults.addAll(runCheckpoints(task, checkpoints));
+        }
+        handOff(compareStage, task, this::compare);
+    }
+
+    /**
+     * 在多个CPU核心上同时运行测试点, 运行结果按测试点顺序返回.
+     * ICPC赛制下测试点按批提交(每批checkpointThreads个), 一批全部结束后再决定是否提交下一批,
+     * 第一个未通过的测试点之后的测试点均被跳过.
+     * 方法返回时所有已提交的测试点均已运行结束, 评测任务结束后槽位中不会再有该提交的程序运行.
+     * @param task - 评测任务
+     * @param checkpoints - 测试点列表
+     * @param isFailFast - 是否在第一个未通过的测试点处停止评测
+     * @return 各测试点的运行结果
+     */
+    private List<Map<String, Object>> runCheckpointsInParallel(JudgeTask task, List<CheckpointMetadata> checkpoints,
+                                                               boolean isFailFast) {
+        List<Map<String, Object>> runtimeResults = new ArrayList<>(checkpoints.size());
+        int batchSize = isFailFast ? checkpointThreads : checkpoints.size();
+        for ( int batchStart = 0; batchStart < checkpoints.size(); batchStart += batchSize ) {
+            List<CheckpointMetadata> batch = checkpoints.subList(batchStart,
+                    Math.min(batchStart + batchSize, checkpoints.size()));
+            if ( !isAccepted(runtimeResults) ) {
+                for ( CheckpointMetadata checkpoint : batch ) {
+                    runtimeResults.add(getSkippedResult(checkpoint));
+                }
+                continue;
+            }
+            List<Future<Map<String, Object>>> futures = new ArrayList<>(batch.size());
+            for ( CheckpointMetadata checkpoint : batch ) {
+                futures.add(checkpointExecutor.submit(() -> runCheckpoint(task, checkpoint)));
+            }
+            for ( int i = 0; i < batch.size(); ++ i ) {
+                // 已提交的测试点均需等待其结束, 即使其结果将被跳过
+                Map<String, Object> runtimeResult = getCheckpointResult(futures.get(i), batch.get(i));
+                if ( isFailFast && !isAccepted(runtimeResults) ) {
+                    runtimeResult = getSkippedResult(batch.get(i));
+                }
+                runtimeResults.add(runtimeResult);
+            }
+        }
+        return runtimeResults;
+    }
+
+    /**
+     * 比对各测试点的用户输出和标准输出.
+     * 已在运行阶段完成比对的测试点(ICPC赛制或流式比对)将被跳过.
+     * @param task - 评测任务
+     */
+    private void compare(JudgeTask task) {
+        if ( !isComparedWhileRunning(task.getContext()) ) {
+            List<CheckpointMetadata> checkpoints = task.getContext().getCheckpoints();
+            List<Map<String, Object>> runtimeResults = task.getRuntimeResults();
+            for ( int i = 0; i < checkpoints.size(); ++ i ) {
+                getRuntimeResult(runtimeResults.get(i), task, checkpoints.get(i), null);
+            }
+        }
+        handOff(publishStage, task, this::publish);
+    }
+
+    /**
+     * 发布评测结果并结束评测任务.
+     * @param task - 评测任务
+     */
+    private void publish(JudgeTask task) {
+        if ( task.getRuntimeResults() != null ) {
+            applicationDispatcher.onAllTestPointsFinished(task.getSubmissionId(), task.getRuntimeResults());
+        }
+        finish(task);
+    }
+
+    /**
+     * 结束评测任务: 清理所生成的文件, 回收运行过该提交的Java运行进程, 并释放测试点目录和评测槽位.
+     * @param task - 评测任务
+     */
+    private void finish(JudgeTask task) {
+        cleanUp(task.getContext().getWorkDirectory());
+        javaRunnerPool.recycle(task.getSlot());
+        if ( task.getCheckpointDirectory() != null ) {
+            checkpointCache.release(task.getContext().getProblem().getProblemId(), task.getCheckpointDirectory());
+        }
+        judgeSlotPool.release(task.getSlot());
+        task.getCompletion().complete(null);
+    }
+
+    /**
+     * 获取评测记录适用的评测策略.
+     * 竞赛的评测策略优先于题目的评测策略, 均未设置时使用评测机的默认评测策略.
      * @param submission - 评测记录对象
+     * @param problem - 试题对象
+     * @return 评测策略
+     */
+    private JudgePolicy getJudgePolicy(Submission submission, Problem problem) {
+        if ( submission.getContestId() > 0 ) {
+            Contest contest = contestMapper.getContestById(submission.getContestId());
+            if ( contest != null && JudgePolicy.of(contest.getJudgePolicy()) != null ) {
+                return JudgePolicy.of(contest.getJudgePolicy());
+            }
+        }
+        if ( JudgePolicy.of(problem.getJudgePolicy()) != null ) {
+            return JudgePolicy.of(problem.getJudgePolicy());
+        }
+        return JudgePolicy.of(defaultJudgePolicy);
+    }
+
+    /**
+     * 判断测试点的输出是否在运行阶段完成比对.
+     * ICPC赛制需根据比对结果决定是否继续运行; 流式比对在程序运行的同时完成比对.
+     * @param context - 评测上下文
+     * @return 测试点的输出是否在运行阶段完成比对
+     */
+    private boolean isComparedWhileRunning(JudgeContext context) {
+        return context.isFailFast() || streamingComparator.isEnabled();
+    }
+
+    /**
+     * 判断已运行的测试点是否全部通过.
+     * @param runtimeResults - 已运行的测试点的运行结果
+     * @return 已运行的测试点是否全部通过
+     */
+    private boolean isAccepted(List<Map<String, Object>> runtimeResults) {
+        if ( runtimeResults.isEmpty() ) {
+            return true;
+        }
+        Map<String, Object> runtimeResult = runtimeResults.get(runtimeResults.size() - 1);
+        return "AC".equals(runtimeResult.get("runtimeResult"));
+    }
+
+    /**
+     * 获取被跳过的测试点的运行结果.
+     * @param checkpoint - 测试点对象
+     * @return 包含程序运行结果的Map对象
+     */
+    private Map<String, Object> getSkippedResult(CheckpointMetadata checkpoint) {
+        Map<String, Object> runtimeResult = new HashMap<>();
+        runtimeResult.put("runtimeResult", "SK");
+        runtimeResult.put("usedTime", 0);
+        runtimeResult.put("usedMemory", 0);
+        runtimeResult.put("score", checkpoint.getScore());
+        return runtimeResult;
+    }
+
+    /**
+     * 在一个空闲的CPU核心上运行某个测试点
+     * @param task - 评测任务
+     * @param checkpoint - 测试点对象
+     * @return 包含程序运行结果的Map对象
+     */
+    private Map<String, Object> runCheckpoint(JudgeTask task, CheckpointMetadata checkpoint) {
+        long checkpointId = checkpoint.getCheckpointId();
+        List<InputFeeder.InputPipe> inputPipes = openInputPipes(task, Collections.singletonList(checkpoint));
+        List<StreamingComparator.OutputPipe> outputPipes = openOutputPipes(task, Collections.singletonList(checkpoint));
+        Map<String, Object> runtimeResult;
+        int cpu = -1;
+        try {
+            String inputFilePath = inputPipes == null ?
+                    getInputFilePath(task, checkpointId) : inputPipes.get(0).getPipeFilePath();
+            String outputFilePath = outputPipes == null ?
+                    getNewOutputFilePath(task.getContext().getWorkDirectory(), checkpointId) :
+                    outputPipes.get(0).getPipeFilePath();
+            cpu = cpuAffinityPool.acquire();
+            runtimeResult = runner.getRuntimeResult(task.getContext(), task.getSlot(),
+                    inputFilePath, outputFilePath, cpu);
+        } catch ( InterruptedException | IOException ex ) {
+            if ( ex instanceof InterruptedException ) {
+                Thread.currentThread().interrupt();
+            } else {
+                ex.printStackTrace();
+            }
+            runtimeResult = new HashMap<>();
+            runtimeResult.put("runtimeResult", "SE");
+            runtimeResult.put("usedTime", 0);
+            runtimeResult.put("usedMemory", 0);
+        } finally {
+            if ( cpu >= 0 ) {
+                cpuAffinityPool.release(cpu);
+            }
+            finishInputPipes(inputPipes);
+            if ( inputPipes == null ) {
+                removeInputFile(task, checkpointId);
+            }
+        }
+        if ( isComparedWhileRunning(task.getContext()) ) {
+            getRuntimeResult(runtimeResult, task, checkpoint, outputPipes == null ? null : outputPipes.get(0));
+        }
+        runtimeResult.put("score", checkpoint.getScore());
+//        applicationDispatcher.onOneTestPointFinished(task.getSubmissionId(), checkpointId, runtimeResult);
+        return runtimeResult;
+    }
+
+    /**
+     * 在一个空闲的CPU核心上批量运行所有测试点
+     * 无法使用输入管道时逐个运行测试点, 以免程序读到其他测试点的输入文件.
+     * @param task - 评测任务
+     * @param checkpoints - 测试点列表
+     * @return 各测试点的运行结果
+     */
+    private List<Map<String, Object>> runCheckpoints(JudgeTask task, List<CheckpointMetadata> checkpoints) {
+        List<InputFeeder.InputPipe> inputPipes = openInputPipes(task, checkpoints);
+        if ( inputPipes == null ) {
+            // 批量运行时所有测试点的输入同时存在, 输入文件只能逐个测试点写入
+            List<Map<String, Object>> runtimeResults = new ArrayList<>(checkpoints.size());
+            for ( CheckpointMetadata checkpoint : checkpoints ) {
+                runtimeResults.add(runCheckpoint(task, checkpoint));
+            }
+            return runtimeResults;
+        }
+        List<StreamingComparator.OutputPipe> outputPipes = openOutputPipes(task, checkpoints);
+        String[] inputFilePaths = new String[checkpoints.size()];
+        String[] outputFilePaths = new String[checkpoints.size()];
+        List<Map<String, Object>> runtimeResults = null;
+        int cpu = -1;
+        try {
+            for ( int i = 0; i < checkpoints.size(); ++ i ) {
+                long checkpointId = checkpoints.get(i).getCheckpointId();
+                inputFilePaths[i] = inputPipes.get(i).getPipeFilePath();
+                outputFilePaths[i] = outputPipes == null ?
+                        getNewOutputFilePath(task.getContext().getWorkDirectory(), checkpointId) :
+                        outputPipes.get(i).getPipeFilePath();
+            }
+            cpu = cpuAffinityPool.acquire();
+            runtimeResults = runner.getRuntimeResults(task.getContext(), task.getSlot(),
+                    inputFilePaths, outputFilePaths, cpu);
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        } catch ( IOException ex ) {
+            ex.printStackTrace();
+        } finally {
+            if ( cpu >= 0 ) {
+                cpuAffinityPool.release(cpu);
+            }
+            finishInputPipes(inputPipes);
+        }
+        if ( runtimeResults == null ) {
+            runtimeResults = new ArrayList<>(checkpoints.size());
+            for ( int i = 0; i < checkpoints.size(); ++ i ) {
+                Map<String, Object> runtimeResult = new HashMap<>();
+                runtimeResult.put("runtimeResult", "SE");
+                runtimeResult.put("usedTime", 0);
+                runtimeResult.put("usedMemory", 0);
+                runtimeResults.add(runtimeResult);
+            }
+        }
+        for ( int i = 0; i < checkpoints.size(); ++ i ) {
+            if ( isComparedWhileRunning(task.getContext()) ) {
+                getRuntimeResult(runtimeResults.get(i), task, checkpoints.get(i),
+                        outputPipes == null ? null : outputPipes.get(i));
+            }
+            runtimeResults.get(i).put("score", checkpoints.get(i).getScore());
+        }
+        return runtimeResults;
+    }
+
+    /**
+     * 等待并获取并行运行的测试点的运行结果
+     * @param future - 测试点运行任务
+     * @param checkpoint - 测试点对象
+     * @return 包含程序运行结果的Map对象
+     */
+    private Map<String, Object> getCheckpointResult(Future<Map<String, Object>> future,
+                                                    CheckpointMetadata checkpoint) {
+        try {
+            return future.get();
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        } catch ( ExecutionException ex ) {
+            ex.printStackTrace();
+        }
+        Map<String, Object> runtimeResult = new HashMap<>();
+        runtimeResult.put("runtimeResult", "SE");
+        runtimeResult.put("usedTime", 0);
+        runtimeResult.put("usedMemory", 0);
+        runtimeResult.put("score", checkpoint.getScore());
+        return runtimeResult;
+    }
+
+    /**
+     * 获取当前测试点输入路径
+     * 未使用输入管道时, 在运行前从数据包中将当前测试点的标准输入写入工作目录, 运行后删除(见removeInputFile);
+     * 测试点目录只有评测机可以访问, 程序只能读到当前测试点的输入.
+     * 工作目录属于低权限用户, 已存在的同名文件(可能是程序创建的符号链接)将被删除.
+     * @param task - 评测任务
+     * @param checkpointId - 当前测试点编号
+     * @return 当前测试点输入路径
+     * @throws IOException
+     */
+    private String getInputFilePath(JudgeTask task, long checkpointId) throws IOException {
+        File inputFile = new File(String.format("%s/input#%s.txt",
+                new Object[] { task.getContext().getWorkDirectory(), checkpointId }));
+        Files.deleteIfExists(inputFile.toPath());
+        task.getCheckpointPack().writeInput(checkpointId, inputFile);
+        return inputFile.getPath();
+    }
+
+    /**
+     * 删除工作目录中当前测试点的输入文件.
+     * @param task - 评测任务
+     * @param checkpointId - 当前测试点编号
+     */
+    private void removeInputFile(JudgeTask task, long checkpointId) {
+        try {
+            Files.deleteIfExists(new File(String.format("%s/input#%s.txt",
+                    new Object[] { task.getContext().getWorkDirectory(), checkpointId })).toPath());
+        } catch ( IOException ex ) {
+            ex.printStackTrace();
+        }
+    }
+
+    /**
+     * 获取当前测试点输入管道的路径
      * @param workDirectory - 编译生成结果的目录以及程序输出的目录
-     * @param baseFileName - 待执行的应用程序文件名(不包含文件后缀)
+     * @param checkpointId - 当前测试点编号
+     * @return 当前测试点输入管道的路径
      */
-    private void runProgram(Submission submission,
-                            String workDirectory, String baseFileName) {
-        List<Map<String, Object>> runtimeResults = new ArrayList<>();
-        long submissionId = submission.getSubmissionId();
-        long problemId = submission.getProblemId();
-        List<Checkpoint> checkpoints = checkpointMapper.getProblemCheckpoints(problemId);
-        for ( Checkpoint checkpoint : checkpoints ) {
-            long checkpointId = checkpoint.getCheckpointId();
-            String inputFilePath = String.format("%s/%s/input#%s.txt",
-                    new Object[] { checkpointDirectory, problemId, checkpointId });
-            String stdOutputFilePath = String.format("%s/%s/output#%s.txt",
-                    new Object[] { checkpointDirectory, problemId, checkpointId });
-            String outputFilePath = getOutputFilePath(workDirectory, checkpointId);
-            Map<String, Object> runtimeResult = getRuntimeResult(
-                    runner.getRuntimeResult(submission, workDirectory, baseFileName, inputFilePath, outputFilePath),
-                    stdOutputFilePath, outputFilePath);
-            runtimeResult.put("score", Checkpoint.SCORE_PER_CHECKPOINT);
-            runtimeResults.add(runtimeResult);
-//            applicationDispatcher.onOneTestPointFinished(submissionId, checkpointId, runtimeResult);
-        }
-        applicationDispatcher.onAllTestPointsFinished(submissionId, runtimeResults);
+    private String getInputPipePath(String workDirectory, long checkpointId) {
+        return String.format("%s/input#%s.pipe",
+                new Object[] {workDirectory, checkpointId});
+    }
+
+    /**
+     * 启用管道输入时, 为各测试点创建输入管道并开始写入标准输入.
+     * 无法创建管道时程序读取输入文件(见getInputFilePath).
+     * @param task - 评测任务
+     * @param checkpoints - 测试点列表
+     * @return 各测试点的输入管道, 未启用管道输入或无法创建管道时返回null
+     */
+    private List<InputFeeder.InputPipe> openInputPipes(JudgeTask task, List<CheckpointMetadata> checkpoints) {
+        if ( !inputFeeder.isEnabled() ) {
+            return null;
+        }
+        String[] pipeFilePaths = new String[checkpoints.size()];
+        long[] checkpointIds = new long[checkpoints.size()];
+        for ( int i = 0; i < checkpoints.size(); ++ i ) {
+            checkpointIds[i] = checkpoints.get(i).getCheckpointId();
+            pipeFilePaths[i] = getInputPipePath(task.getContext().getWorkDirectory(), checkpointIds[i]);
+        }
+        try {
+            return inputFeeder.open(pipeFilePaths, task.getSlot().getSystemUsername(),
+                    task.getCheckpointPack(), checkpointIds);
+        } catch ( IOException ex ) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 在程序运行结束后结束各输入管道的写入.
+     * @param inputPipes - 各测试点的输入管道(可为null)
+     */
+    private void finishInputPipes(List<InputFeeder.InputPipe> inputPipes) {
+        if ( inputPipes == null ) {
+            return;
+        }
+        for ( InputFeeder.InputPipe inputPipe : inputPipes ) {
+            inputPipe.finish();
+        }
     }
 
     /**
@@ -154,22 +737,106 @@ public class Dispatcher {
                 new Object[] {workDirectory, checkpointId});
     }
 
+    /**
+     * 获取运行当前测试点时的输出路径.
+     * 输出文件可能由评测机打开, 而工作目录属于低权限用户, 因此先删除已存在的同名文件(可能是程序创建的符号链接).
+     * @param workDirectory - 编译生成结果的目录以及程序输出的目录
+     * @param checkpointId - 当前测试点编号
+     * @return 当前测试点输出路径
+     * @throws IOException
+     */
+    private String getNewOutputFilePath(String workDirectory, long checkpointId) throws IOException {
+        String outputFilePath = getOutputFilePath(workDirectory, checkpointId);
+        Files.deleteIfExists(new File(outputFilePath).toPath());
+        return outputFilePath;
+    }
+
+    /**
+     * 获取当前测试点输出管道的路径
+     * @param workDirectory - 编译生成结果的目录以及程序输出的目录
+     * @param checkpointId - 当前测试点编号
+     * @return 当前测试点输出管道的路径
+     */
+    private String getOutputPipePath(String workDirectory, long checkpointId) {
+        return String.format("%s/output#%s.pipe",
+                new Object[] {workDirectory, checkpointId});
+    }
+
+    /**
+     * 启用流式比对时, 为各测试点创建输出管道并开始比对.
+     * 无法创建管道时用户输出仍写入文件.
+     * @param task - 评测任务
+     * @param checkpoints - 测试点列表
+     * @return 各测试点的输出管道, 未启用流式比对或无法创建管道时返回null
+     */
+    private List<StreamingComparator.OutputPipe> openOutputPipes(JudgeTask task,
+                                                                 List<CheckpointMetadata> checkpoints) {
+        if ( !streamingComparator.isEnabled() ) {
+            return null;
+        }
+        String[] pipeFilePaths = new String[checkpoints.size()];
+        ByteBuffer[] standardOutputs = new ByteBuffer[checkpoints.size()];
+        for ( int i = 0; i < checkpoints.size(); ++ i ) {
+            long checkpointId = checkpoints.get(i).getCheckpointId();
+            pipeFilePaths[i] = getOutputPipePath(task.getContext().getWorkDirectory(), checkpointId);
+            standardOutputs[i] = task.getCheckpointPack().getOutput(checkpointId);
+            if ( standardOutputs[i] == null ) {
+                // 评测结果为SE(见getRuntimeResult)
+                return null;
+            }
+        }
+        try {
+            return streamingComparator.open(pipeFilePaths, task.getSlot().getSystemUsername(), standardOutputs,
+                    streamingComparator.isStoppedOnMismatch(task.getContext().getJudgePolicy()));
+        } catch ( IOException ex ) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
     /**
      * 获取程序运行结果(及答案比对结果)
+     * 数据包中没有测试点的标准输出时评测结果为SE;
+     * 输出超出长度限制时(仅流式比对)评测结果为OLE;
+     * 因输出确定不同而提前停止的程序评测结果为WA, 运行时间为停止前使用的CPU时间.
      * @param result - 包含程序运行结果的Map对象
-     * @param standardOutputFilePath - 标准输出文件路径
-     * @param outputFilePath - 用户输出文件路径
+     * @param task - 评测任务
+     * @param checkpoint - 测试点对象
+     * @param outputPipe - 测试点的输出管道(为null时比对输出文件)
      * @return 包含程序运行结果的Map对象
      */
-    private Map<String, Object> getRuntimeResult(Map<String, Object> result,
-                                                 String standardOutputFilePath, String outputFilePath) {
+    private Map<String, Object> getRuntimeResult(Map<String, Object> result, JudgeTask task,
+                                                 CheckpointMetadata checkpoint,
+                                                 StreamingComparator.OutputPipe outputPipe) {
+        long checkpointId = checkpoint.getCheckpointId();
         String runtimeResultSlug = (String)result.get("runtimeResult");
         int usedTime = (int)result.get("usedTime");
         int usedMemory = (int)result.get("usedMemory");
-        if ( runtimeResultSlug.equals("AC") &&
-                !isOutputTheSame(standardOutputFilePath, outputFilePath) ) {
-            runtimeResultSlug = "WA";
+        ByteBuffer standardOutput = task.getCheckpointPack().getOutput(checkpointId);
+        if ( standardOutput == null ) {
+            LOGGER.warn(String.format("Standard output of checkpoint #%d not found in %s",
+                    new Object[] { checkpointId, task.getCheckpointDirectory() }));
+            runtimeResultSlug = "SE";
             result.put("runtimeResult", runtimeResultSlug);
+            if ( outputPipe != null ) {
+                outputPipe.finish();
+            }
+        } else if ( outputPipe != null ) {
+            // 无论程序是否正常退出, 均需结束管道的读取
+            String outputResult = outputPipe.finish();
+            if ( (outputPipe.isStopped() || StreamingComparator.RESULT_OUTPUT_LIMIT_EXCEEDED.equals(outputResult)) &&
+                    !runtimeResultSlug.equals("SE") ) {
+                runtimeResultSlug = outputResult;
+            } else if ( runtimeResultSlug.equals("AC") ) {
+                runtimeResultSlug = outputResult;
+            }
+            result.put("runtimeResult", runtimeResultSlug);
+        } else if ( runtimeResultSlug.equals("AC") ) {
+            String outputFilePath = getOutputFilePath(task.getContext().getWorkDirectory(), checkpointId);
+            if ( !isOutputTheSame(standardOutput, outputFilePath) ) {
+                runtimeResultSlug = "WA";
+                result.put("runtimeResult", runtimeResultSlug);
+            }
         }
         LOGGER.info(String.format("RuntimeResult: [%s, Time: %d ms, Memory: %d KB]",
                 new Object[] { runtimeResultSlug, usedTime, usedMemory }));
@@ -178,13 +845,13 @@ public class Dispatcher {
 
     /**
      * 获取用户输出和标准输出的比对结果.
-     * @param standardOutputFilePath - 标准输出文件路径
+     * @param standardOutput - 标准输出
      * @param outputFilePath - 用户输出文件路径
      * @return 用户输出和标准输出是否相同
      */
-    private boolean isOutputTheSame(String standardOutputFilePath, String outputFilePath) {
+    private boolean isOutputTheSame(ByteBuffer standardOutput, String outputFilePath) {
         try {
-            return comparator.isOutputTheSame(standardOutputFilePath, outputFilePath);
+            return comparator.isOutputTheSame(standardOutput, outputFilePath);
         } catch (IOException ex) {
             ex.printStackTrace();
         }
@@ -0,0 +1,401 @@
+package cn.edu.buaa.judger.core;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * 基于常驻启动进程(fork-server)的沙箱后端.
+ * 每个评测槽位保持若干个常驻的启动进程(src/main/resources/launcher/launcher.c),
+ * 运行程序时只需由启动进程fork并exec, 无需每次解析命令行并切换用户.
+ * 启动进程在首次使用时由评测机使用本机的C编译器编译, 并统计每次运行程序的启动延迟.
+ * 启动进程以root用户运行, 因此只在属于评测机且只有评测机可以访问的目录中编译, 该目录属于其他用户时拒绝启动.
+ *
+ * 启动进程以root用户运行(评测机需以root用户运行), 程序则以评测槽位的低权限用户在新的PID命名空间中运行:
+ * 程序无法向启动进程发送信号, 程序结束时其留下的所有进程(包括调用了setsid()的进程)均被内核终止.
+ * 启动进程在时间限制的2倍加上宽限时间内(没有时间限制时为MAX_WALL_TIME加上宽限时间)没有响应时被终止.
+ *
+ * 请求中的各字段(包括命令行按空白字符分割后的各参数)均以长度作为前缀, 因此路径可以包含空白字符.
+ */
+@Component
+public class ForkServerSandboxBackend implements SandboxBackend {
+    private static final Logger LOGGER = LoggerFactory.getLogger(ForkServerSandboxBackend.class);
+
+    /**
+     * 沙箱后端的名称
+     */
+    public static final String NAME = "forkserver";
+
+    /**
+     * 启动进程的源文件(类路径中的资源)
+     */
+    private static final String LAUNCHER_SOURCE = "launcher/launcher.c";
+
+    /**
+     * 启动进程启动完成的时间限制(单位ms)
+     */
+    private static final long STARTUP_TIMEOUT = 10000;
+
+    /**
+     * 等待启动进程响应时, 在启动进程自身的时间限制(时间限制的2倍加1秒)之外额外等待的时间(单位ms)
+     */
+    private static final long RESPONSE_GRACE_PERIOD = 5000;
+
+    /**
+     * 没有时间限制时程序可运行的实际时间(单位ms), 与启动进程中的MAX_WALL_TIME_MS相同
+     */
+    private static final long MAX_WALL_TIME = 60000;
+
+    /**
+     * 启动进程的编译目录(需属于评测机且只有评测机可以访问)
+     */
+    @Value("${judger.launcher.dir}")
+    private String launcherDirectory;
+
+    /**
+     * 编译启动进程的命令, 其中{source}和{output}将被替换为源文件和可执行文件的路径
+     */
+    @Value("${judger.launcher.compileCommand}")
+    private String compileCommand;
+
+    /**
+     * 启动进程的可执行文件
+     */
+    private File launcherFile;
+
+    /**
+     * 各评测槽位空闲的启动进程
+     */
+    private final Map<Integer, Deque<Launcher>> idleLaunchers = new HashMap<>();
+
+    /**
+     * 启动程序的次数, 启动延迟的总和和最大值(单位us)
+     */
+    private final AtomicLong spawns = new AtomicLong();
+
+    private final AtomicLong totalSpawnLatency = new AtomicLong();
+
+    private final AtomicLong maxSpawnLatency = new AtomicLong();
+
+    /**
+     * 在时间限制下读取启动进程响应的线程池
+     */
+    private final ExecutorService readerExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "launcher-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    private void destroy() {
+        synchronized ( idleLaunchers ) {
+            for ( Deque<Launcher> launchers : idleLaunchers.values() ) {
+                for ( Launcher launcher : launchers ) {
+                    launcher.destroy();
+                }
+            }
+            idleLaunchers.clear();
+        }
+        readerExecutor.shutdownNow();
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    /**
+     * 启动进程每隔5ms检查一次程序的CPU时间和内存占用, 程序可能在两次检查之间超出限制后正常退出.
+     */
+    @Override
+    public boolean isUsageMeasuredAfterExit() {
+        return true;
+    }
+
+    @Override
+    public Map<String, Object> getRuntimeResult(String commandLine, JudgeSlot slot, String inputFilePath,
+                                                String outputFilePath, boolean isErrorMerged, int timeLimit,
+                                                int memoryLimit, int cpu) throws Exception {
+        Launcher launcher = acquire(slot);
+        boolean isReusable = false;
+        try {
+            List<String> fields = new ArrayList<>(Arrays.asList(String.valueOf(timeLimit),
+                    String.valueOf(memoryLimit), String.valueOf(cpu), isErrorMerged ? "1" : "0",
+                    inputFilePath == null ? "" : inputFilePath, outputFilePath == null ? "" : outputFilePath));
+            fields.addAll(Arrays.asList(commandLine.trim().split("\\s+")));
+            long timeout = (timeLimit > 0 ? timeLimit * 2L + 1000 : MAX_WALL_TIME) + RESPONSE_GRACE_PERIOD;
+            String[] response = launcher.request(getRequest(fields), timeout).trim().split(" ");
+            if ( response.length != 4 || response[0].equals("-1") ) {
+                throw new IOException("Launcher failed to run: " + commandLine);
+            }
+            isReusable = true;
+            long spawnLatency = Long.parseLong(response[3]);
+            spawns.incrementAndGet();
+            totalSpawnLatency.addAndGet(spawnLatency);
+            maxSpawnLatency.accumulateAndGet(spawnLatency, Math::max);
+            LOGGER.debug(String.format("Spawned %s in %d us", new Object[] { commandLine, spawnLatency }));
+
+            Map<String, Object> result = new HashMap<>(4, 1);
+            result.put("exitCode", Integer.parseInt(response[0]));
+            result.put("usedTime", Integer.parseInt(response[1]));
+            result.put("usedMemory", Integer.parseInt(response[2]));
+            return result;
+        } finally {
+            release(slot, launcher, isReusable);
+        }
+    }
+
+    /**
+     * 将请求的各字段编码为启动进程的请求格式: 字段数量和换行符, 然后依次为各字段的长度, 冒号和内容.
+     * @param fields - 请求的各字段
+     * @return 请求
+     * @throws IOException - 字段包含NUL字符
+     */
+    private byte[] getRequest(List<String> fields) throws IOException {
+        ByteArrayOutputStream request = new ByteArrayOutputStream();
+        request.write((fields.size() + "\n").getBytes(StandardCharsets.US_ASCII));
+        for ( String field : fields ) {
+            if ( field.indexOf('\0') >= 0 ) {
+                throw new IOException("Launcher request field contains a NUL character: " + field);
+            }
+            byte[] bytes = field.getBytes(StandardCharsets.UTF_8);
+            request.write((bytes.length + ":").getBytes(StandardCharsets.US_ASCII));
+            request.write(bytes);
+        }
+        return request.toByteArray();
+    }
+
+    /**
+     * 获取启动程序的次数.
+     * @return 启动程序的次数
+     */
+    public long getSpawns() {
+        return spawns.get();
+    }
+
+    /**
+     * 获取平均启动延迟(从fork至exec完成).
+     * @return 平均启动延迟(单位us)
+     */
+    public long getAverageSpawnLatency() {
+        long count = spawns.get();
+        return count == 0 ? 0 : totalSpawnLatency.get() / count;
+    }
+
+    /**
+     * 获取最大启动延迟.
+     * @return 最大启动延迟(单位us)
+     */
+    public long getMaxSpawnLatency() {
+        return maxSpawnLatency.get();
+    }
+
+    /**
+     * 获取评测槽位的一个空闲启动进程, 没有空闲的启动进程(如并行运行测试点)时启动新的启动进程.
+     * @param slot - 评测槽位
+     * @return 启动进程
+     * @throws IOException
+     */
+    private Launcher acquire(JudgeSlot slot) throws IOException {
+        synchronized ( idleLaunchers ) {
+            Deque<Launcher> launchers = idleLaunchers.computeIfAbsent(slot.getSlotId(), slotId -> new ArrayDeque<>());
+            while ( !launchers.isEmpty() ) {
+                Launcher launcher = launchers.pollFirst();
+                if ( launcher.isAlive() ) {
+                    return launcher;
+                }
+                launcher.destroy();
+            }
+        }
+        return startLauncher(slot);
+    }
+
+    /**
+     * 归还启动进程.
+     * @param slot - 评测槽位
+     * @param launcher - 启动进程
+     * @param isReusable - 启动进程是否可以继续使用(通信出错或超时时终止启动进程)
+     */
+    private void release(JudgeSlot slot, Launcher launcher, boolean isReusable) {
+        if ( isReusable && launcher.isAlive() ) {
+            synchronized ( idleLaunchers ) {
+                idleLaunchers.get(slot.getSlotId()).addFirst(launcher);
+            }
+            return;
+        }
+        launcher.destroy();
+    }
+
+    /**
+     * 为评测槽位启动启动进程, 启动进程以评测槽位的低权限用户运行程序.
+     * @param slot - 评测槽位
+     * @return 启动进程
+     * @throws IOException
+     */
+    private Launcher startLauncher(JudgeSlot slot) throws IOException {
+        Process process = new ProcessBuilder(getLauncherFile().getPath(), slot.getSystemUsername())
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Launcher launcher = new Launcher(process);
+        try {
+            String ready = launcher.readLine(STARTUP_TIMEOUT);
+            if ( !"READY".equals(ready) ) {
+                throw new IOException("Launcher exited unexpectedly.");
+            }
+        } catch ( IOException ex ) {
+            launcher.destroy();
+            throw ex;
+        }
+        LOGGER.info("Launcher started for " + slot);
+        return launcher;
+    }
+
+    /**
+     * 获取启动进程的可执行文件, 首次使用时编译启动进程.
+     * 编译目录已存在但属于其他用户(或为符号链接)时拒绝编译, 否则其他用户可以替换以root用户运行的启动进程.
+     * @return 启动进程的可执行文件
+     * @throws IOException
+     */
+    private synchronized File getLauncherFile() throws IOException {
+        if ( launcherFile != null ) {
+            return launcherFile;
+        }
+        File launcherDirFile = new File(launcherDirectory);
+        PrivateFiles.createOwnDirectory(launcherDirFile);
+        File sourceFile = new File(launcherDirFile, "launcher.c");
+        File executableFile = new File(launcherDirFile, "launcher");
+        Files.deleteIfExists(sourceFile.toPath());
+        Files.deleteIfExists(executableFile.toPath());
+        try ( InputStream inputStream = getClass().getClassLoader().getResourceAsStream(LAUNCHER_SOURCE);
+              OutputStream outputStream = Files.newOutputStream(sourceFile.toPath(), StandardOpenOption.CREATE_NEW,
+                      StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS) ) {
+            if ( inputStream == null ) {
+                throw new IOException("Resource not found: " + LAUNCHER_SOURCE);
+            }
+            IOUtils.copy(inputStream, outputStream);
+        }
+        String[] command = compileCommand.trim().split("\\s+");
+        for ( int i = 0; i < command.length; ++ i ) {
+            command[i] = command[i].replace("{source}", sourceFile.getPath())
+                    .replace("{output}", executableFile.getPath());
+        }
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String compileLog;
+        try ( InputStream inputStream = process.getInputStream() ) {
+            compileLog = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+        try {
+            if ( !process.waitFor(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS) || process.exitValue() != 0 ) {
+                process.destroyForcibly();
+                throw new IOException("Failed to compile launcher: " + compileLog);
+            }
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        launcherFile = executableFile;
+        LOGGER.info("Launcher compiled: " + launcherFile.getPath());
+        return launcherFile;
+    }
+
+    /**
+     * 启动进程
+     */
+    private class Launcher {
+        private final Process process;
+
+        private final OutputStream out;
+
+        private final BufferedReader reader;
+
+        Launcher(Process process) {
+            this.process = process;
+            this.out = process.getOutputStream();
+            this.reader = new BufferedReader(new InputStreamReader(process.getInputStream(), StandardCharsets.UTF_8));
+        }
+
+        /**
+         * 发送请求并等待响应.
+         * @param request - 请求
+         * @param timeout - 等待响应的时间限制(单位ms)
+         * @return 响应
+         * @throws IOException - 启动进程退出或未在时间限制内响应
+         */
+        String request(byte[] request, long timeout) throws IOException {
+            out.write(request);
+            out.flush();
+            String response = readLine(timeout);
+            if ( response == null ) {
+                throw new IOException("Launcher exited unexpectedly.");
+            }
+            return response;
+        }
+
+        /**
+         * 在时间限制下读取一行响应.
+         * 超时后启动进程将被终止, 读取线程随之因输入流关闭而退出.
+         * @param timeout - 时间限制(单位ms)
+         * @return 响应, 启动进程退出时为null
+         * @throws IOException - 启动进程未在时间限制内响应
+         */
+        String readLine(long timeout) throws IOException {
+            Future<String> response = readerExecutor.submit(reader::readLine);
+            try {
+                return response.get(timeout, TimeUnit.MILLISECONDS);
+            } catch ( TimeoutException ex ) {
+                throw new IOException(String.format("Launcher did not respond in %d ms.", new Object[] { timeout }));
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                throw new IOException(ex);
+            } catch ( ExecutionException ex ) {
+                throw ex.getCause() instanceof IOException ? (IOException) ex.getCause() : new IOException(ex);
+            }
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        void destroy() {
+            process.destroyForcibly();
+            try {
+                out.close();
+            } catch ( IOException ex ) {
+                // 进程已被终止, 忽略关闭管道时的错误
+            }
+            try {
+                reader.close();
+            } catch ( IOException ex ) {
+                // 同上
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+package cn.edu.buaa.judger.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 通过命名管道向程序提供标准输入.
+ * 程序的标准输入被重定向至评测机创建的命名管道(FIFO), 评测机直接从测试点数据包中将标准输入写入管道
+ * (CheckpointPack.transferInput), 数据不经过Java堆, 运行程序时也无需读取单独的输入文件.
+ * judger.input.streaming为false时, 测试点运行前由Dispatcher将其输入写入工作目录, 程序读取该文件.
+ */
+@Component
+public class InputFeeder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(InputFeeder.class);
+
+    /**
+     * 程序结束后等待写入线程结束的时间限制(单位ms)
+     */
+    private static final long FINISH_TIMEOUT = 1000;
+
+    /**
+     * 是否通过命名管道提供标准输入
+     */
+    @Value("${judger.input.streaming}")
+    private boolean isEnabled;
+
+    /**
+     * 写入管道的线程.
+     * 每个管道由一个线程写入: 批量运行测试点时各管道依次被程序打开, 需同时等待.
+     */
+    private final ExecutorService writerExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "input-feeder");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PreDestroy
+    private void destroy() {
+        writerExecutor.shutdownNow();
+    }
+
+    /**
+     * 是否通过命名管道提供标准输入.
+     * @return judger.input.streaming的值
+     */
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * 创建命名管道, 并开始将各测试点的标准输入写入管道.
+     * 程序运行结束后需调用InputPipe.finish()结束写入.
+     * @param pipeFilePaths - 各管道的路径
+     * @param systemUsername - 评测槽位的低权限用户名(管道的所有者)
+     * @param checkpointPack - 测试点数据包
+     * @param checkpointIds - 各管道对应的测试点ID
+     * @return 各管道对象
+     * @throws IOException - 无法创建管道
+     */
+    public List<InputPipe> open(String[] pipeFilePaths, String systemUsername, CheckpointPack checkpointPack,
+                                long[] checkpointIds) throws IOException {
+        NamedPipes.create(pipeFilePaths, systemUsername);
+        List<InputPipe> pipes = new ArrayList<>(pipeFilePaths.length);
+        for ( int i = 0; i < pipeFilePaths.length; ++ i ) {
+            InputPipe pipe = new InputPipe(pipeFilePaths[i]);
+            long checkpointId = checkpointIds[i];
+            pipe.writer = writerExecutor.submit(() -> pipe.write(checkpointPack, checkpointId));
+            pipes.add(pipe);
+        }
+        return pipes;
+    }
+
+    /**
+     * 程序标准输入的命名管道
+     */
+    public static class InputPipe {
+        private final String pipeFilePath;
+
+        private Future<?> writer;
+
+        InputPipe(String pipeFilePath) {
+            this.pipeFilePath = pipeFilePath;
+        }
+
+        /**
+         * 获取管道的路径(作为程序的输入文件路径).
+         * @return 管道的路径
+         */
+        public String getPipeFilePath() {
+            return pipeFilePath;
+        }
+
+        /**
+         * 在程序运行结束后结束写入.
+         * 程序未读完标准输入即退出时, 写入线程将因管道的读端关闭而结束.
+         */
+        public void finish() {
+            try {
+                NamedPipes.await(pipeFilePath, writer, FINISH_TIMEOUT);
+            } catch ( TimeoutException ex ) {
+                LOGGER.warn("Input pipe is still held after the program exited: " + pipeFilePath);
+                writer.cancel(true);
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                writer.cancel(true);
+            } catch ( ExecutionException ex ) {
+                ex.printStackTrace();
+            }
+        }
+
+        /**
+         * 将测试点的标准输入写入管道.
+         * 打开管道的写端将阻塞至程序打开读端.
+         * @param checkpointPack - 测试点数据包
+         * @param checkpointId - 测试点ID
+         */
+        private void write(CheckpointPack checkpointPack, long checkpointId) {
+            try ( FileChannel channel = FileChannel.open(new File(pipeFilePath).toPath(), StandardOpenOption.WRITE) ) {
+                checkpointPack.transferInput(checkpointId, channel);
+            } catch ( IOException ex ) {
+                // 程序不读取(全部)标准输入是正常情况
+                LOGGER.debug("Stopped feeding " + pipeFilePath + ": " + ex.getMessage());
+            }
+        }
+    }
+}
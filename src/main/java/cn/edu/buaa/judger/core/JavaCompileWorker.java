@@ -0,0 +1,272 @@
+package cn.edu.buaa.judger.core;
+
+import javax.tools.Diagnostic;
+import javax.tools.DiagnosticCollector;
+import javax.tools.FileObject;
+import javax.tools.ForwardingJavaFileManager;
+import javax.tools.JavaCompiler;
+import javax.tools.JavaFileManager;
+import javax.tools.JavaFileObject;
+import javax.tools.SimpleJavaFileObject;
+import javax.tools.StandardJavaFileManager;
+import javax.tools.ToolProvider;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.net.URI;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 常驻的Java编译进程.
+ * 由JavaCompilerBackend在独立的JVM中以低权限用户启动, 通过标准输入输出接收编译请求并返回编译结果,
+ * 以避免每次编译都启动javac并重新预热. 源代码和编译结果均保存在内存中,
+ * 编译成功后才将class文件写入输出目录(编译进程私有的目录, 由评测机复制至工作目录).
+ * 该类在独立的JVM中运行, 因此只能依赖JDK自身的类.
+ *
+ * 请求: 类名, 源代码, 输出目录, 编译选项数量, 各编译选项.
+ * 响应: 是否编译成功, 编译日志.
+ * 字符串均以长度(int)和UTF-8编码的内容表示.
+ */
+public class JavaCompileWorker {
+    /**
+     * 编译进程就绪后输出的标志
+     */
+    public static final int READY = 0x4a;
+
+    /**
+     * 全部class文件的最大大小(字节)
+     */
+    private final long maxOutputSize;
+
+    /**
+     * 编译日志的最大长度(字符)
+     */
+    private final int maxLogSize;
+
+    private final JavaCompiler javaCompiler;
+
+    private final StandardJavaFileManager standardFileManager;
+
+    private JavaCompileWorker(long maxOutputSize, int maxLogSize) {
+        this.maxOutputSize = maxOutputSize;
+        this.maxLogSize = maxLogSize;
+        this.javaCompiler = ToolProvider.getSystemJavaCompiler();
+        this.standardFileManager = javaCompiler.getStandardFileManager(null, null, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 编译进程的入口.
+     * @param args - 全部class文件的最大大小(字节), 编译日志的最大长度(字符)
+     */
+    public static void main(String[] args) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(System.in));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(System.out));
+        // 标准输出仅用于返回编译结果
+        System.setOut(new PrintStream(System.err, true));
+        if ( ToolProvider.getSystemJavaCompiler() == null ) {
+            System.err.println("No Java compiler is available, a JDK is required.");
+            System.exit(1);
+        }
+        JavaCompileWorker worker = new JavaCompileWorker(Long.parseLong(args[0]), Integer.parseInt(args[1]));
+        worker.compile("Warmup", "public class Warmup { public static void main(String[] args) { } }",
+                null, Collections.<String>emptyList());
+        out.writeByte(READY);
+        out.flush();
+
+        while ( true ) {
+            String className;
+            try {
+                className = readString(in);
+            } catch ( EOFException ex ) {
+                return;
+            }
+            String sourceCode = readString(in);
+            String outputDirectory = readString(in);
+            int optionCount = in.readInt();
+            List<String> options = new ArrayList<>();
+            for ( int i = 0; i < optionCount; ++ i ) {
+                options.add(readString(in));
+            }
+            StringBuilder compileLog = new StringBuilder();
+            boolean isSuccessful;
+            try {
+                isSuccessful = worker.compile(className, sourceCode, outputDirectory, options, compileLog);
+            } catch ( Exception ex ) {
+                compileLog.append(ex.toString());
+                isSuccessful = false;
+            }
+            out.writeBoolean(isSuccessful);
+            writeString(out, compileLog.length() > worker.maxLogSize ?
+                    compileLog.substring(0, worker.maxLogSize) + "\n..." : compileLog.toString());
+            out.flush();
+        }
+    }
+
+    /**
+     * 编译源代码.
+     * @param className - 类名
+     * @param sourceCode - 源代码
+     * @param outputDirectory - class文件的输出目录(为null时不输出)
+     * @param options - 编译选项
+     * @return 是否编译成功
+     */
+    private boolean compile(String className, String sourceCode,
+                            String outputDirectory, List<String> options) throws IOException {
+        return compile(className, sourceCode, outputDirectory, options, new StringBuilder());
+    }
+
+    /**
+     * 编译源代码.
+     * @param className - 类名
+     * @param sourceCode - 源代码
+     * @param outputDirectory - class文件的输出目录(为null时不输出)
+     * @param options - 编译选项
+     * @param compileLog - 用于输出编译日志
+     * @return 是否编译成功
+     */
+    private boolean compile(String className, String sourceCode, String outputDirectory,
+                            List<String> options, StringBuilder compileLog) throws IOException {
+        MemoryFileManager fileManager = new MemoryFileManager(standardFileManager);
+        DiagnosticCollector<JavaFileObject> diagnostics = new DiagnosticCollector<>();
+        List<String> compileOptions = new ArrayList<>(options);
+        compileOptions.add("-proc:none");
+        boolean isSuccessful = javaCompiler.getTask(null, fileManager, diagnostics, compileOptions, null,
+                Collections.singletonList(new SourceFile(className, sourceCode))).call();
+        for ( Diagnostic<? extends JavaFileObject> diagnostic : diagnostics.getDiagnostics() ) {
+            compileLog.append(String.format("%s.java:%d: %s: %s\n", className, diagnostic.getLineNumber(),
+                    diagnostic.getKind().toString().toLowerCase(), diagnostic.getMessage(null)));
+            if ( compileLog.length() > maxLogSize ) {
+                break;
+            }
+        }
+        if ( !isSuccessful ) {
+            return false;
+        }
+        long outputSize = 0;
+        for ( ClassFile classFile : fileManager.classFiles ) {
+            outputSize += classFile.size();
+        }
+        if ( outputSize > maxOutputSize ) {
+            compileLog.append(String.format("error: class files exceed the limit of %d bytes\n", maxOutputSize));
+            return false;
+        }
+        if ( outputDirectory != null ) {
+            for ( ClassFile classFile : fileManager.classFiles ) {
+                classFile.writeTo(outputDirectory);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 读取字符串.
+     * @param in - 输入流
+     * @return 字符串
+     * @throws IOException
+     */
+    static String readString(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * 写入字符串.
+     * @param out - 输出流
+     * @param value - 字符串
+     * @throws IOException
+     */
+    static void writeString(DataOutputStream out, String value) throws IOException {
+        byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    /**
+     * 内存中的源代码文件
+     */
+    static class SourceFile extends SimpleJavaFileObject {
+        private final String sourceCode;
+
+        SourceFile(String className, String sourceCode) {
+            super(URI.create("string:///" + className + Kind.SOURCE.extension), Kind.SOURCE);
+            this.sourceCode = sourceCode;
+        }
+
+        @Override
+        public CharSequence getCharContent(boolean ignoreEncodingErrors) {
+            return sourceCode;
+        }
+    }
+
+    /**
+     * 内存中的class文件
+     */
+    static class ClassFile extends SimpleJavaFileObject {
+        private final String className;
+
+        private final ByteArrayOutputStream content = new ByteArrayOutputStream();
+
+        ClassFile(String className) {
+            super(URI.create("bytes:///" + className.replace('.', '/') + Kind.CLASS.extension), Kind.CLASS);
+            this.className = className;
+        }
+
+        @Override
+        public OutputStream openOutputStream() {
+            return content;
+        }
+
+        int size() {
+            return content.size();
+        }
+
+        /**
+         * 将class文件写入输出目录.
+         * 与未指定-d选项的javac相同, class文件不按包名建立子目录.
+         * 输出目录在编译前已被清空, 因此不覆盖已存在的文件, 也不跟随符号链接.
+         * @param outputDirectory - 输出目录
+         * @throws IOException
+         */
+        void writeTo(String outputDirectory) throws IOException {
+            String simpleName = className.substring(className.lastIndexOf('.') + 1);
+            try ( OutputStream outputStream = Files.newOutputStream(
+                    Paths.get(outputDirectory, simpleName + Kind.CLASS.extension),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS) ) {
+                content.writeTo(outputStream);
+            }
+        }
+    }
+
+    /**
+     * 将编译结果保存在内存中的文件管理器
+     */
+    static class MemoryFileManager extends ForwardingJavaFileManager<JavaFileManager> {
+        private final List<ClassFile> classFiles = new ArrayList<>();
+
+        MemoryFileManager(JavaFileManager fileManager) {
+            super(fileManager);
+        }
+
+        @Override
+        public JavaFileObject getJavaFileForOutput(Location location, String className,
+                                                   JavaFileObject.Kind kind, FileObject sibling) {
+            ClassFile classFile = new ClassFile(className);
+            classFiles.add(classFile);
+            return classFile;
+        }
+    }
+}
@@ -0,0 +1,383 @@
+package cn.edu.buaa.judger.core;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 使用常驻Java编译进程(JavaCompileWorker)的编译方式.
+ * 编译进程在独立的JVM中运行并保持预热, 因此编译时无需再启动javac;
+ * 恶意的源代码最多只能使编译进程崩溃或超时, 此时编译进程将被终止并在下次编译时重新启动.
+ * 编译进程通过helperCommand以低权限用户运行, 只能写入自己私有的输出目录;
+ * 评测机将其中的class文件复制至工作目录(不跟随符号链接, 不覆盖已存在的文件).
+ */
+@Component
+public class JavaCompilerBackend {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JavaCompilerBackend.class);
+
+    /**
+     * 编译方式的名称(languages表的compile_backend列)
+     */
+    public static final String NAME = "javax.tools";
+
+    /**
+     * 启动编译进程的java命令(需来自JDK)
+     */
+    @Value("${judger.javaCompiler.javaCommand}")
+    private String javaCommand;
+
+    /**
+     * 编译进程的JVM参数
+     */
+    @Value("${judger.javaCompiler.jvmOptions}")
+    private String jvmOptions;
+
+    /**
+     * 运行编译进程的低权限用户名
+     */
+    @Value("${judger.javaCompiler.username}")
+    private String systemUsername;
+
+    /**
+     * 切换至低权限用户的辅助命令, 其中{username}将被替换为低权限用户名
+     */
+    @Value("${judger.sandbox.helperCommand}")
+    private String helperCommand;
+
+    /**
+     * 编译进程的最大数量
+     */
+    @Value("${judger.javaCompiler.workers}")
+    private int maxWorkers;
+
+    /**
+     * 编译的时间限制(单位ms)
+     */
+    @Value("${judger.javaCompiler.timeout}")
+    private long timeout;
+
+    /**
+     * 全部class文件的最大大小(字节)
+     */
+    @Value("${judger.javaCompiler.maxOutputSize}")
+    private long maxOutputSize;
+
+    /**
+     * 编译日志的最大长度(字符)
+     */
+    @Value("${judger.compileLogSize}")
+    private int maxLogSize;
+
+    /**
+     * 编译进程启动完成(包括预热)的时间限制(单位ms)
+     */
+    private static final long STARTUP_TIMEOUT = 60000;
+
+    /**
+     * 空闲的编译进程
+     */
+    private BlockingQueue<Worker> idleWorkers;
+
+    /**
+     * 已启动的编译进程数量
+     */
+    private int workers = 0;
+
+    /**
+     * 编译进程的类文件所在目录
+     */
+    private File classpathDirectory;
+
+    /**
+     * 用于在超时限制下读取编译结果的线程池
+     */
+    private final ExecutorService readerExecutor = Executors.newCachedThreadPool();
+
+    @PreDestroy
+    private void destroy() {
+        if ( idleWorkers != null ) {
+            for ( Worker worker : idleWorkers ) {
+                worker.destroy();
+            }
+        }
+        readerExecutor.shutdownNow();
+        if ( classpathDirectory != null ) {
+            FileUtils.deleteQuietly(classpathDirectory);
+        }
+    }
+
+    /**
+     * 获取编译输出结果.
+     * 编译进程自身出错(无法启动、通信失败等)时结果中的isSystemError为true, 此时不应视为编译错误.
+     * @param context - 评测上下文
+     * @param compileLogPath - 编译日志输出路径
+     * @return 包含编译输出结果的Map<String, Object>对象
+     */
+    public Map<String, Object> getCompileResult(JudgeContext context, String compileLogPath) {
+        Map<String, Object> result = new HashMap<>(4, 1);
+        boolean isSuccessful = false;
+        boolean isSystemError = false;
+        String compileLog = "";
+        Worker worker = null;
+        try {
+            String sourceCode = FileUtils.readFileToString(new File(String.format("%s/%s.java",
+                    new Object[] {context.getWorkDirectory(), context.getBaseFileName()})), "UTF-8");
+            worker = acquire();
+            LOGGER.info(String.format("[Submission #%d] Start compiling with Java compile worker",
+                    new Object[] { context.getSubmissionId() }));
+            Worker currentWorker = worker;
+            Future<Object[]> response = readerExecutor.submit(() -> currentWorker.compile(
+                    context.getBaseFileName(), sourceCode));
+            Object[] compileResult = response.get(timeout, TimeUnit.MILLISECONDS);
+            isSuccessful = (boolean) compileResult[0];
+            compileLog = (String) compileResult[1];
+            if ( isSuccessful ) {
+                copyClassFiles(worker.outputDirectory, new File(context.getWorkDirectory()));
+            }
+        } catch ( TimeoutException ex ) {
+            // 终止编译进程后, 等待编译结果的线程将因输入流关闭而退出
+            compileLog = String.format("Compile time limit exceeded (%d ms).", new Object[] { timeout });
+            worker.destroy();
+        } catch ( Exception ex ) {
+            ex.printStackTrace();
+            isSystemError = true;
+            if ( worker != null ) {
+                worker.destroy();
+            }
+        } finally {
+            if ( worker != null ) {
+                release(worker);
+            }
+        }
+        try {
+            FileUtils.writeStringToFile(new File(compileLogPath), compileLog, "UTF-8");
+        } catch ( IOException ex ) {
+            ex.printStackTrace();
+        }
+        result.put("isSuccessful", isSuccessful);
+        result.put("isSystemError", isSystemError);
+        result.put("log", compileLog);
+        return result;
+    }
+
+    /**
+     * 获取一个空闲的编译进程, 必要时启动新的编译进程.
+     * @return 编译进程
+     * @throws IOException
+     * @throws InterruptedException
+     */
+    private Worker acquire() throws IOException, InterruptedException {
+        while ( true ) {
+            synchronized ( this ) {
+                if ( idleWorkers == null ) {
+                    idleWorkers = new ArrayBlockingQueue<>(Math.max(1, maxWorkers));
+                }
+                Worker worker = idleWorkers.poll();
+                if ( worker != null ) {
+                    return worker;
+                }
+                if ( workers < Math.max(1, maxWorkers) ) {
+                    ++ workers;
+                    break;
+                }
+            }
+            // 编译进程被终止时不会归还, 因此需定期检查是否可以启动新的编译进程
+            Worker worker = idleWorkers.poll(1, TimeUnit.SECONDS);
+            if ( worker != null ) {
+                return worker;
+            }
+        }
+        File outputDirectory = null;
+        try {
+            outputDirectory = Files.createTempDirectory("buaaoj-javac").toFile();
+            PrivateFiles.createDirectory(outputDirectory, systemUsername, PrivateFiles.OWNER_ONLY);
+            return new Worker(startWorkerProcess(), outputDirectory);
+        } catch ( IOException ex ) {
+            FileUtils.deleteQuietly(outputDirectory);
+            synchronized ( this ) {
+                -- workers;
+            }
+            throw ex;
+        }
+    }
+
+    /**
+     * 归还编译进程.
+     * 已终止的编译进程不再归还, 以便下次编译时启动新的编译进程.
+     * 刚被强制终止的进程可能仍未退出, 因此以destroy()的调用而非进程状态为准.
+     * @param worker - 编译进程
+     */
+    private void release(Worker worker) {
+        if ( worker.isAlive() ) {
+            idleWorkers.offer(worker);
+            return;
+        }
+        synchronized ( this ) {
+            -- workers;
+        }
+    }
+
+    /**
+     * 复制编译进程输出的class文件至工作目录.
+     * 输出目录属于编译进程的低权限用户, 因此只复制普通文件, 且读写时均不跟随符号链接.
+     * @param outputDirectory - 编译进程的输出目录
+     * @param workDirectory - 工作目录
+     * @throws IOException
+     */
+    private void copyClassFiles(File outputDirectory, File workDirectory) throws IOException {
+        long outputSize = 0;
+        try ( DirectoryStream<Path> classFiles = Files.newDirectoryStream(outputDirectory.toPath()) ) {
+            for ( Path classFile : classFiles ) {
+                if ( !Files.isRegularFile(classFile, LinkOption.NOFOLLOW_LINKS) ) {
+                    throw new IOException("Unexpected file in Java compile worker output: " + classFile);
+                }
+                outputSize += Files.size(classFile);
+                if ( outputSize > maxOutputSize ) {
+                    throw new IOException("Java compile worker output exceeds the limit.");
+                }
+                try ( InputStream inputStream = Files.newInputStream(classFile, LinkOption.NOFOLLOW_LINKS);
+                      OutputStream outputStream = Files.newOutputStream(
+                              workDirectory.toPath().resolve(classFile.getFileName()), StandardOpenOption.CREATE_NEW,
+                              StandardOpenOption.WRITE, LinkOption.NOFOLLOW_LINKS) ) {
+                    IOUtils.copyLarge(inputStream, outputStream, 0, maxOutputSize);
+                }
+            }
+        }
+    }
+
+    /**
+     * 以低权限用户启动编译进程并等待其预热完成.
+     * @return 编译进程
+     * @throws IOException
+     */
+    private Process startWorkerProcess() throws IOException {
+        List<String> command = new ArrayList<>();
+        command.addAll(Arrays.asList(helperCommand.trim().replace("{username}", systemUsername).split("\\s+")));
+        command.add(javaCommand);
+        command.addAll(Arrays.asList(jvmOptions.trim().split("\\s+")));
+        command.addAll(Arrays.asList("-cp", getClasspathDirectory().getPath(),
+                JavaCompileWorker.class.getName(), String.valueOf(maxOutputSize), String.valueOf(maxLogSize)));
+        command.removeIf(String::isEmpty);
+        Process process = new ProcessBuilder(command)
+                .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+        Future<Integer> ready = readerExecutor.submit(() -> process.getInputStream().read());
+        try {
+            if ( ready.get(STARTUP_TIMEOUT, TimeUnit.MILLISECONDS) != JavaCompileWorker.READY ) {
+                throw new IOException("Java compile worker exited unexpectedly.");
+            }
+        } catch ( Exception ex ) {
+            process.destroyForcibly();
+            throw ex instanceof IOException ? (IOException) ex : new IOException(ex);
+        }
+        LOGGER.info("Java compile worker started.");
+        return process;
+    }
+
+    /**
+     * 获取编译进程的类文件所在目录.
+     * @return 编译进程的类文件所在目录
+     * @throws IOException
+     */
+    private synchronized File getClasspathDirectory() throws IOException {
+        if ( classpathDirectory == null ) {
+            classpathDirectory = WorkerClasspath.create(JavaCompileWorker.class);
+        }
+        return classpathDirectory;
+    }
+
+    /**
+     * 编译进程
+     */
+    private static class Worker {
+        private final Process process;
+
+        private final DataOutputStream out;
+
+        private final DataInputStream in;
+
+        /**
+         * 编译进程私有的class文件输出目录
+         */
+        private final File outputDirectory;
+
+        /**
+         * 是否已调用destroy()
+         */
+        private volatile boolean isDestroyed = false;
+
+        Worker(Process process, File outputDirectory) {
+            this.process = process;
+            this.outputDirectory = outputDirectory;
+            this.out = new DataOutputStream(new BufferedOutputStream(process.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(process.getInputStream()));
+        }
+
+        /**
+         * 清空输出目录, 发送编译请求并等待编译结果.
+         * @param className - 类名
+         * @param sourceCode - 源代码
+         * @return 是否编译成功, 编译日志
+         * @throws IOException
+         */
+        Object[] compile(String className, String sourceCode) throws IOException {
+            FileUtils.cleanDirectory(outputDirectory);
+            JavaCompileWorker.writeString(out, className);
+            JavaCompileWorker.writeString(out, sourceCode);
+            JavaCompileWorker.writeString(out, outputDirectory.getPath());
+            out.writeInt(0);
+            out.flush();
+            boolean isSuccessful = in.readBoolean();
+            return new Object[] { isSuccessful, JavaCompileWorker.readString(in) };
+        }
+
+        boolean isAlive() {
+            return !isDestroyed && process.isAlive();
+        }
+
+        void destroy() {
+            isDestroyed = true;
+            process.destroyForcibly();
+            try {
+                out.close();
+            } catch ( IOException ex ) {
+                // 进程已被终止, 忽略关闭管道时的错误
+            }
+            try {
+                in.close();
+            } catch ( IOException ex ) {
+                // 同上
+            }
+            FileUtils.deleteQuietly(outputDirectory);
+        }
+    }
+}
@@ -0,0 +1,256 @@
+package cn.edu.buaa.judger.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.util.Scanner;
+import java.util.Set;
+
+/**
+ * 预先启动的Java运行进程.
+ * 由JavaRunnerPool以评测槽位的低权限用户在独立的JVM中启动, 通过本机的TCP连接接收运行请求,
+ * 每次运行时以新的ClassLoader载入用户程序, 并将System.in/out/err重定向至输入输出文件,
+ * 以避免每个测试点都启动新的JVM.
+ * 该类在独立的JVM中运行, 因此只能依赖JDK自身的类.
+ *
+ * 启动时从标准输入读取JavaRunnerPool监听的端口和令牌, 预热后连接该端口并发送令牌, 即表示就绪.
+ * 此后标准输入已被关闭, 标准输出指向/dev/null, 直接使用FileDescriptor.in/out的用户程序无法读写通信内容.
+ * 请求: 类路径, 主类名, 输入文件路径(为空表示无输入), 输出文件路径.
+ * 响应: 运行状态, 是否可以继续使用该进程.
+ * 字符串的格式与JavaCompileWorker相同. CPU时间和内存由JavaRunnerPool从运行进程的cgroup中读取.
+ * 用户程序调用System.exit()时进程将退出, 此时由JavaRunnerPool根据进程的退出状态判断运行结果.
+ */
+public class JavaRunWorker {
+    /**
+     * 运行状态: 正常退出
+     */
+    public static final int STATUS_EXITED = 0;
+
+    /**
+     * 运行状态: 抛出未捕获的异常
+     */
+    public static final int STATUS_EXCEPTION = 1;
+
+    /**
+     * 运行状态: 内存不足(OutOfMemoryError)
+     */
+    public static final int STATUS_OUT_OF_MEMORY = 2;
+
+    /**
+     * 运行状态: 无法载入主类或主方法
+     */
+    public static final int STATUS_LOAD_FAILED = 3;
+
+    /**
+     * 用户程序的标准输出(进程退出前需刷新)
+     */
+    private static PrintStream programOut;
+
+    /**
+     * 运行进程的入口.
+     */
+    public static void main(String[] args) throws IOException {
+        DataInputStream controlIn = new DataInputStream(System.in);
+        int port = controlIn.readInt();
+        String token = JavaCompileWorker.readString(controlIn);
+        System.setIn(new EmptyInputStream());
+        PrintStream err = System.err;
+        Runtime.getRuntime().addShutdownHook(new Thread(new ShutdownHook()));
+        warmUp();
+        Socket socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        out.write(token.getBytes(StandardCharsets.US_ASCII));
+        out.flush();
+
+        while ( true ) {
+            String classpath;
+            try {
+                classpath = JavaCompileWorker.readString(in);
+            } catch ( EOFException ex ) {
+                return;
+            }
+            String mainClassName = JavaCompileWorker.readString(in);
+            String inputFilePath = JavaCompileWorker.readString(in);
+            String outputFilePath = JavaCompileWorker.readString(in);
+
+            int status;
+            boolean isReusable = true;
+            Set<Thread> existingThreads = Thread.getAllStackTraces().keySet();
+            try ( InputStream programIn = inputFilePath.isEmpty() ? new EmptyInputStream() :
+                        new BufferedInputStream(new FileInputStream(inputFilePath), 65536);
+                  PrintStream programOutput = new PrintStream(new BufferedOutputStream(
+                        new FileOutputStream(outputFilePath), 65536), false) ) {
+                System.setIn(programIn);
+                System.setOut(programOutput);
+                System.setErr(programOutput);
+                programOut = programOutput;
+                ThreadGroup threadGroup = new ThreadGroup("submission");
+                Program program = new Program(classpath, mainClassName);
+                Thread thread = new Thread(threadGroup, program, "main");
+                thread.start();
+                thread.join();
+                // 与普通的Java程序相同, 等待所有非守护线程结束
+                joinNonDaemonThreads(threadGroup);
+                status = program.status;
+                isReusable = status != STATUS_OUT_OF_MEMORY && threadGroup.activeCount() == 0 &&
+                        !hasNewThreads(existingThreads);
+                programOutput.flush();
+            } catch ( Exception ex ) {
+                ex.printStackTrace(err);
+                status = STATUS_LOAD_FAILED;
+                isReusable = false;
+            } finally {
+                programOut = null;
+                System.setIn(new EmptyInputStream());
+                System.setOut(err);
+                System.setErr(err);
+            }
+            out.writeInt(status);
+            out.writeBoolean(isReusable);
+            out.flush();
+        }
+    }
+
+    /**
+     * 预先载入常用的类并触发JIT编译.
+     */
+    private static void warmUp() {
+        StringBuilder stringBuilder = new StringBuilder();
+        for ( int i = 0; i < 10000; ++ i ) {
+            stringBuilder.append(i).append(' ');
+        }
+        Scanner scanner = new Scanner(stringBuilder.toString());
+        long sum = 0;
+        while ( scanner.hasNextInt() ) {
+            sum += scanner.nextInt();
+        }
+        stringBuilder.setLength(0);
+        stringBuilder.append(String.format("%d %.2f", sum, sum / 3.0));
+        new java.io.BufferedReader(new java.io.StringReader(stringBuilder.toString()));
+        new java.util.StringTokenizer(stringBuilder.toString());
+        new java.util.ArrayList<Integer>().addAll(java.util.Arrays.asList(1, 2, 3));
+        new java.util.HashMap<String, Integer>().put("warmup", 1);
+    }
+
+    /**
+     * 等待线程组中所有非守护线程结束.
+     * @param threadGroup - 线程组
+     * @throws InterruptedException
+     */
+    private static void joinNonDaemonThreads(ThreadGroup threadGroup) throws InterruptedException {
+        while ( true ) {
+            Thread[] threads = new Thread[threadGroup.activeCount() + 1];
+            int count = threadGroup.enumerate(threads);
+            Thread nonDaemonThread = null;
+            for ( int i = 0; i < count; ++ i ) {
+                if ( !threads[i].isDaemon() ) {
+                    nonDaemonThread = threads[i];
+                }
+            }
+            if ( nonDaemonThread == null ) {
+                return;
+            }
+            nonDaemonThread.join();
+        }
+    }
+
+    /**
+     * 判断JVM中是否有运行前不存在的存活线程.
+     * 用户程序可以在其线程组之外(如父线程组中)创建线程, 因此需检查JVM中的所有线程.
+     * @param existingThreads - 运行前的所有线程
+     * @return 是否有运行前不存在的存活线程
+     */
+    private static boolean hasNewThreads(Set<Thread> existingThreads) {
+        for ( Thread thread : Thread.getAllStackTraces().keySet() ) {
+            if ( thread.isAlive() && !existingThreads.contains(thread) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 在新的ClassLoader中运行的用户程序
+     */
+    static class Program implements Runnable {
+        private final String classpath;
+
+        private final String mainClassName;
+
+        private volatile int status = STATUS_LOAD_FAILED;
+
+        Program(String classpath, String mainClassName) {
+            this.classpath = classpath;
+            this.mainClassName = mainClassName;
+        }
+
+        @Override
+        public void run() {
+            try ( URLClassLoader classLoader = new URLClassLoader(
+                    new URL[] { new File(classpath).toURI().toURL() }, ClassLoader.getSystemClassLoader()) ) {
+                Thread.currentThread().setContextClassLoader(classLoader);
+                Class<?> mainClass = Class.forName(mainClassName, true, classLoader);
+                Method mainMethod = mainClass.getMethod("main", String[].class);
+                if ( !Modifier.isStatic(mainMethod.getModifiers()) ) {
+                    throw new NoSuchMethodException(mainClassName + ".main is not static");
+                }
+                status = STATUS_EXCEPTION;
+                mainMethod.invoke(null, (Object) new String[0]);
+                status = STATUS_EXITED;
+            } catch ( InvocationTargetException ex ) {
+                Throwable cause = ex.getCause();
+                status = cause instanceof OutOfMemoryError ? STATUS_OUT_OF_MEMORY : STATUS_EXCEPTION;
+                cause.printStackTrace();
+            } catch ( OutOfMemoryError ex ) {
+                // 如在类的静态初始化中分配过多内存
+                status = STATUS_OUT_OF_MEMORY;
+            } catch ( Throwable ex ) {
+                if ( status == STATUS_LOAD_FAILED && ex instanceof ExceptionInInitializerError ) {
+                    status = STATUS_EXCEPTION;
+                }
+                ex.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * 用户程序调用System.exit()时刷新其标准输出
+     */
+    static class ShutdownHook implements Runnable {
+        @Override
+        public void run() {
+            PrintStream printStream = programOut;
+            if ( printStream != null ) {
+                printStream.flush();
+            }
+        }
+    }
+
+    /**
+     * 没有输入时使用的空输入流
+     */
+    static class EmptyInputStream extends InputStream {
+        @Override
+        public int read() {
+            return -1;
+        }
+    }
+}
@@ -0,0 +1,572 @@
+package cn.edu.buaa.judger.core;
+
+import org.apache.commons.io.FileUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 预先启动的JVM池.
+ * 为每个评测槽位保持若干个以低权限用户运行的JavaRunWorker进程, Java程序的每个测试点在其中以新的ClassLoader运行,
+ * 从而省去启动JVM的时间. 运行进程在运行一定次数后、运行失败(如内存不足或残留线程)或超时后被终止,
+ * 并在后台启动新的运行进程.
+ * 运行进程只在同一提交的各测试点之间复用, 提交评测结束后即被回收(见recycle):
+ * 用户程序可能留下运行进程无法检测的状态(如系统属性), 不能影响其他提交的运行结果.
+ * 运行进程的最大堆内存即为试题的内存限制, 因此评测槽位的内存限制变化时将重新启动运行进程.
+ *
+ * 每个运行进程位于独立的cgroup(由CgroupSandboxBackend创建, 限制内存和进程数量)和PID命名空间中,
+ * 用户程序创建的子进程随运行进程一同被终止, 且有子进程存活时运行进程不再复用.
+ * CPU时间取cgroup在本次运行期间增加的CPU时间, 内存取运行期间采样的cgroup匿名内存的最大值,
+ * 两者均包括JVM自身(GC, JIT编译以及堆以外的内存), 与直接运行java命令时相近.
+ * 评测机与运行进程之间通过本机的TCP连接通信, 运行进程需先发送启动时获得的随机令牌,
+ * 用户程序直接读写FileDescriptor.in/out无法接触到通信内容. 但用户程序与运行进程位于同一JVM中,
+ * 仍可通过反射等方式找到该连接并伪造运行状态(时间和内存不受影响), 对此有要求的题目不应使用该运行方式.
+ */
+@Component
+public class JavaRunnerPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JavaRunnerPool.class);
+
+    /**
+     * 运行方式的名称(languages表的run_backend列)
+     */
+    public static final String NAME = "jvm-pool";
+
+    /**
+     * 运行进程启动完成(包括预热)的时间限制(单位ms)
+     */
+    private static final long STARTUP_TIMEOUT = 30000;
+
+    /**
+     * 检查程序资源占用(以及等待运行进程连接)的时间间隔(单位ms)
+     */
+    private static final long POLL_INTERVAL = 10;
+
+    /**
+     * 运行进程的cgroup中正常存在的进程数量(unshare及运行进程)
+     */
+    private static final int WORKER_PROCESS_COUNT = 2;
+
+    /**
+     * 令牌的长度(字节)
+     */
+    private static final int TOKEN_LENGTH = 16;
+
+    /**
+     * 启动运行进程的java命令
+     */
+    @Value("${judger.javaRunner.javaCommand}")
+    private String javaCommand;
+
+    /**
+     * 运行进程的JVM参数(最大堆内存由试题的内存限制决定)
+     */
+    @Value("${judger.javaRunner.jvmOptions}")
+    private String jvmOptions;
+
+    /**
+     * 每个评测槽位预先启动的运行进程数量
+     */
+    @Value("${judger.javaRunner.workersPerSlot}")
+    private int workersPerSlot;
+
+    /**
+     * 运行进程被回收前的最大运行次数
+     */
+    @Value("${judger.javaRunner.maxRuns}")
+    private int maxRuns;
+
+    /**
+     * 用于创建运行进程的cgroup并读取其资源占用
+     */
+    @Autowired
+    private CgroupSandboxBackend cgroupSandboxBackend;
+
+    /**
+     * 用于生成令牌
+     */
+    private final SecureRandom secureRandom = new SecureRandom();
+
+    /**
+     * 各评测槽位空闲的运行进程
+     */
+    private final Map<Integer, Deque<Worker>> idleWorkers = new HashMap<>();
+
+    /**
+     * 各评测槽位正在后台启动的运行进程数量
+     */
+    private final Map<Integer, Integer> startingWorkers = new HashMap<>();
+
+    /**
+     * 各评测槽位当前的内存限制
+     */
+    private final Map<Integer, Integer> memoryLimits = new HashMap<>();
+
+    /**
+     * 运行进程的类文件所在目录
+     */
+    private File classpathDirectory;
+
+    /**
+     * 用于在超时限制下读取运行结果以及在后台启动运行进程的线程池
+     */
+    private final ExecutorService executor = Executors.newCachedThreadPool();
+
+    @PreDestroy
+    private void destroy() {
+        synchronized ( idleWorkers ) {
+            for ( Deque<Worker> workers : idleWorkers.values() ) {
+                for ( Worker worker : workers ) {
+                    worker.destroy();
+                }
+            }
+            idleWorkers.clear();
+        }
+        executor.shutdownNow();
+        if ( classpathDirectory != null ) {
+            FileUtils.deleteQuietly(classpathDirectory);
+        }
+    }
+
+    /**
+     * 获取程序运行结果.
+     * @param context - 评测上下文
+     * @param slot - 评测槽位
+     * @param inputFilePath - 输入文件路径(可为NULL)
+     * @param outputFilePath - 输出文件路径
+     * @return 一个包含程序运行结果的Map<String, Object>对象(exitCode, usedTime, usedMemory)
+     * @throws Exception
+     */
+    public Map<String, Object> getRuntimeResult(JudgeContext context, JudgeSlot slot,
+                                                String inputFilePath, String outputFilePath) throws Exception {
+        int timeLimit = context.getTimeLimit();
+        int memoryLimit = context.getMemoryLimit();
+        Worker worker = acquire(slot, memoryLimit, context.getSubmissionId());
+        int exitCode = 1;
+        int usedTime;
+        int usedMemory;
+        boolean isReusable = false;
+        try {
+            long startTime = System.currentTimeMillis();
+            long startCpuUsage = cgroupSandboxBackend.getCpuUsage(worker.cgroupDirFile);
+            long peakMemory = 0;
+            boolean isTimeLimitExceeded = false;
+            boolean isOutOfMemory = false;
+            Future<int[]> response = executor.submit(() -> worker.run(context.getWorkDirectory(),
+                    context.getBaseFileName(), inputFilePath == null ? "" : inputFilePath, outputFilePath));
+            try {
+                int[] runtimeResult = null;
+                while ( runtimeResult == null ) {
+                    try {
+                        runtimeResult = response.get(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    } catch ( TimeoutException ex ) {
+                        peakMemory = Math.max(peakMemory,
+                                cgroupSandboxBackend.getAnonymousMemory(worker.cgroupDirFile));
+                        long cpuTime =
+                                (cgroupSandboxBackend.getCpuUsage(worker.cgroupDirFile) - startCpuUsage) / 1000;
+                        // 程序可能因等待输入或休眠而不占用CPU, 因此同时限制实际经过的时间
+                        if ( timeLimit > 0 && (cpuTime >= timeLimit ||
+                                System.currentTimeMillis() - startTime >= timeLimit * 2L + 1000) ) {
+                            isTimeLimitExceeded = true;
+                            break;
+                        }
+                    }
+                }
+                if ( runtimeResult != null ) {
+                    int status = runtimeResult[0];
+                    exitCode = status == JavaRunWorker.STATUS_EXITED ? 0 : 1;
+                    isOutOfMemory = status == JavaRunWorker.STATUS_OUT_OF_MEMORY;
+                    isReusable = runtimeResult[1] != 0 &&
+                            cgroupSandboxBackend.getProcessCount(worker.cgroupDirFile) <= WORKER_PROCESS_COUNT;
+                }
+            } catch ( ExecutionException ex ) {
+                if ( !(ex.getCause() instanceof EOFException) ) {
+                    throw ex;
+                }
+                // 用户程序调用了System.exit(), cgroup在运行进程退出后仍保留其CPU时间
+                exitCode = worker.waitFor();
+            }
+            peakMemory = Math.max(peakMemory, cgroupSandboxBackend.getAnonymousMemory(worker.cgroupDirFile));
+            usedTime = (int) ((cgroupSandboxBackend.getCpuUsage(worker.cgroupDirFile) - startCpuUsage) / 1000);
+            usedMemory = (int) (peakMemory / 1024);
+            if ( isTimeLimitExceeded ) {
+                usedTime = Math.max(usedTime, timeLimit);
+            }
+            if ( memoryLimit > 0 &&
+                    (isOutOfMemory || cgroupSandboxBackend.isOutOfMemoryKilled(worker.cgroupDirFile)) ) {
+                usedMemory = Math.max(usedMemory, memoryLimit);
+            }
+        } finally {
+            release(slot, worker, isReusable);
+        }
+        Map<String, Object> result = new HashMap<>(4, 1);
+        result.put("exitCode", exitCode);
+        result.put("usedTime", usedTime);
+        result.put("usedMemory", usedMemory);
+        return result;
+    }
+
+    /**
+     * 回收评测槽位中运行过提交的空闲运行进程, 并在后台启动新的运行进程.
+     * 在提交评测结束后调用.
+     * @param slot - 评测槽位
+     */
+    public void recycle(JudgeSlot slot) {
+        List<Worker> usedWorkers = new ArrayList<>();
+        Integer memoryLimit;
+        synchronized ( idleWorkers ) {
+            Deque<Worker> workers = idleWorkers.get(slot.getSlotId());
+            if ( workers == null ) {
+                return;
+            }
+            Iterator<Worker> iterator = workers.iterator();
+            while ( iterator.hasNext() ) {
+                Worker idleWorker = iterator.next();
+                if ( idleWorker.submissionId != 0 ) {
+                    iterator.remove();
+                    usedWorkers.add(idleWorker);
+                }
+            }
+            memoryLimit = memoryLimits.get(slot.getSlotId());
+        }
+        for ( Worker usedWorker : usedWorkers ) {
+            usedWorker.destroy();
+        }
+        if ( !usedWorkers.isEmpty() && memoryLimit != null ) {
+            prestart(slot, memoryLimit);
+        }
+    }
+
+    /**
+     * 获取评测槽位的一个空闲运行进程, 没有空闲的运行进程时启动新的运行进程.
+     * 评测槽位的内存限制变化时, 终止该评测槽位原有的运行进程; 运行过其他提交的运行进程同样被终止.
+     * @param slot - 评测槽位
+     * @param memoryLimit - 内存限制(单位KB, 0表示不限制)
+     * @param submissionId - 提交的唯一标识符
+     * @return 运行进程
+     * @throws IOException
+     */
+    private Worker acquire(JudgeSlot slot, int memoryLimit, long submissionId) throws IOException {
+        Worker worker = null;
+        synchronized ( idleWorkers ) {
+            Integer previousMemoryLimit = memoryLimits.put(slot.getSlotId(), memoryLimit);
+            Deque<Worker> workers = idleWorkers.computeIfAbsent(slot.getSlotId(), slotId -> new ArrayDeque<>());
+            if ( previousMemoryLimit != null && previousMemoryLimit != memoryLimit ) {
+                for ( Worker idleWorker : workers ) {
+                    idleWorker.destroy();
+                }
+                workers.clear();
+            }
+            Iterator<Worker> iterator = workers.iterator();
+            while ( iterator.hasNext() && worker == null ) {
+                Worker idleWorker = iterator.next();
+                iterator.remove();
+                if ( idleWorker.submissionId != 0 && idleWorker.submissionId != submissionId ) {
+                    idleWorker.destroy();
+                } else if ( idleWorker.isAlive() ) {
+                    worker = idleWorker;
+                }
+            }
+        }
+        if ( worker == null ) {
+            worker = startWorker(slot, memoryLimit);
+        }
+        worker.submissionId = submissionId;
+        prestart(slot, memoryLimit);
+        return worker;
+    }
+
+    /**
+     * 归还运行进程.
+     * 无法继续使用或达到最大运行次数的运行进程将被终止.
+     * @param slot - 评测槽位
+     * @param worker - 运行进程
+     * @param isReusable - 运行进程是否可以继续使用
+     */
+    private void release(JudgeSlot slot, Worker worker, boolean isReusable) {
+        if ( isReusable && ++ worker.runs < maxRuns && worker.isAlive() ) {
+            synchronized ( idleWorkers ) {
+                Integer memoryLimit = memoryLimits.get(slot.getSlotId());
+                if ( memoryLimit != null && memoryLimit == worker.memoryLimit ) {
+                    idleWorkers.get(slot.getSlotId()).addFirst(worker);
+                    return;
+                }
+            }
+        }
+        worker.destroy();
+        prestart(slot, worker.memoryLimit);
+    }
+
+    /**
+     * 在后台启动运行进程, 使评测槽位空闲的运行进程达到预先启动的数量.
+     * @param slot - 评测槽位
+     * @param memoryLimit - 内存限制(单位KB, 0表示不限制)
+     */
+    private void prestart(JudgeSlot slot, int memoryLimit) {
+        synchronized ( idleWorkers ) {
+            int startingWorkerCount = startingWorkers.getOrDefault(slot.getSlotId(), 0);
+            if ( idleWorkers.get(slot.getSlotId()).size() + startingWorkerCount >= workersPerSlot ) {
+                return;
+            }
+            startingWorkers.put(slot.getSlotId(), startingWorkerCount + 1);
+        }
+        executor.submit(() -> {
+            try {
+                Worker worker = startWorker(slot, memoryLimit);
+                synchronized ( idleWorkers ) {
+                    Integer currentMemoryLimit = memoryLimits.get(slot.getSlotId());
+                    Deque<Worker> workers = idleWorkers.get(slot.getSlotId());
+                    if ( currentMemoryLimit != null && currentMemoryLimit == memoryLimit &&
+                            workers.size() < workersPerSlot ) {
+                        workers.addLast(worker);
+                        return;
+                    }
+                }
+                worker.destroy();
+            } catch ( IOException ex ) {
+                LOGGER.warn("Failed to prestart Java run worker: " + ex.getMessage());
+            } finally {
+                synchronized ( idleWorkers ) {
+                    startingWorkers.merge(slot.getSlotId(), -1, Integer::sum);
+                }
+            }
+        });
+    }
+
+    /**
+     * 以评测槽位的低权限用户在新的cgroup和PID命名空间中启动运行进程, 并等待其预热完成.
+     * 监听的端口和令牌通过标准输入传递给运行进程, 随后关闭其标准输入.
+     * @param slot - 评测槽位
+     * @param memoryLimit - 内存限制(单位KB, 0表示不限制)
+     * @return 运行进程
+     * @throws IOException
+     */
+    private Worker startWorker(JudgeSlot slot, int memoryLimit) throws IOException {
+        List<String> command = new ArrayList<>();
+        command.add(javaCommand);
+        command.addAll(Arrays.asList(jvmOptions.trim().split("\\s+")));
+        if ( memoryLimit > 0 ) {
+            command.add(String.format("-Xmx%dk", new Object[] { memoryLimit }));
+        }
+        command.addAll(Arrays.asList("-cp", getClasspathDirectory().getPath(), JavaRunWorker.class.getName()));
+        command.removeIf(String::isEmpty);
+        String token = getToken();
+        File cgroupDirFile = cgroupSandboxBackend.createCgroup(slot, memoryLimit, -1);
+        Process process = null;
+        try ( ServerSocket serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress()) ) {
+            process = new ProcessBuilder(cgroupSandboxBackend.getCommand(
+                    cgroupDirFile, slot, String.join(" ", command), true))
+                    .redirectOutput(new File("/dev/null"))
+                    .redirectError(ProcessBuilder.Redirect.INHERIT).start();
+            try ( DataOutputStream out = new DataOutputStream(process.getOutputStream()) ) {
+                out.writeInt(serverSocket.getLocalPort());
+                JavaCompileWorker.writeString(out, token);
+            }
+            Socket socket = accept(serverSocket, token, process);
+            return new Worker(process, socket, cgroupDirFile, memoryLimit, cgroupSandboxBackend);
+        } catch ( IOException ex ) {
+            if ( process != null ) {
+                process.destroyForcibly();
+            }
+            cgroupSandboxBackend.release(cgroupDirFile);
+            throw ex;
+        }
+    }
+
+    /**
+     * 等待运行进程连接并验证其令牌.
+     * 其他进程(如其他评测槽位中的程序)同样可以连接该端口, 令牌不正确的连接将被关闭.
+     * @param serverSocket - 监听本机端口的ServerSocket
+     * @param token - 令牌
+     * @param process - 运行进程
+     * @return 与运行进程的连接
+     * @throws IOException - 运行进程退出或未在时间限制内连接
+     */
+    private Socket accept(ServerSocket serverSocket, String token, Process process) throws IOException {
+        byte[] expectedToken = token.getBytes(StandardCharsets.US_ASCII);
+        long deadline = System.currentTimeMillis() + STARTUP_TIMEOUT;
+        while ( true ) {
+            long remainingTime = deadline - System.currentTimeMillis();
+            if ( !process.isAlive() ) {
+                throw new IOException("Java run worker exited unexpectedly.");
+            }
+            if ( remainingTime <= 0 ) {
+                throw new IOException("Java run worker did not connect in time.");
+            }
+            serverSocket.setSoTimeout((int) Math.min(remainingTime, POLL_INTERVAL * 100));
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch ( SocketTimeoutException ex ) {
+                continue;
+            }
+            try {
+                socket.setSoTimeout((int) Math.min(remainingTime, POLL_INTERVAL * 100));
+                byte[] receivedToken = new byte[expectedToken.length];
+                new DataInputStream(socket.getInputStream()).readFully(receivedToken);
+                if ( MessageDigest.isEqual(expectedToken, receivedToken) ) {
+                    socket.setSoTimeout(0);
+                    socket.setTcpNoDelay(true);
+                    return socket;
+                }
+            } catch ( IOException ex ) {
+                // 连接在发送完整的令牌前关闭或超时
+            }
+            socket.close();
+        }
+    }
+
+    /**
+     * 生成随机令牌.
+     * @return 十六进制表示的令牌
+     */
+    private String getToken() {
+        byte[] bytes = new byte[TOKEN_LENGTH];
+        secureRandom.nextBytes(bytes);
+        StringBuilder token = new StringBuilder(bytes.length * 2);
+        for ( byte b : bytes ) {
+            token.append(String.format("%02x", new Object[] { b & 0xff }));
+        }
+        return token.toString();
+    }
+
+    /**
+     * 获取运行进程的类文件所在目录.
+     * @return 运行进程的类文件所在目录
+     * @throws IOException
+     */
+    private synchronized File getClasspathDirectory() throws IOException {
+        if ( classpathDirectory == null ) {
+            classpathDirectory = WorkerClasspath.create(JavaRunWorker.class, JavaCompileWorker.class);
+        }
+        return classpathDirectory;
+    }
+
+    /**
+     * 运行进程
+     */
+    private static class Worker {
+        private final Process process;
+
+        private final Socket socket;
+
+        private final DataOutputStream out;
+
+        private final DataInputStream in;
+
+        /**
+         * 运行进程所在的cgroup目录
+         */
+        private final File cgroupDirFile;
+
+        private final CgroupSandboxBackend cgroupSandboxBackend;
+
+        /**
+         * 运行进程的最大堆内存(单位KB, 0表示不限制)
+         */
+        private final int memoryLimit;
+
+        /**
+         * 已运行的次数
+         */
+        private int runs = 0;
+
+        /**
+         * 运行过的提交(0表示尚未运行)
+         */
+        private long submissionId = 0;
+
+        Worker(Process process, Socket socket, File cgroupDirFile, int memoryLimit,
+               CgroupSandboxBackend cgroupSandboxBackend) throws IOException {
+            this.process = process;
+            this.socket = socket;
+            this.cgroupDirFile = cgroupDirFile;
+            this.memoryLimit = memoryLimit;
+            this.cgroupSandboxBackend = cgroupSandboxBackend;
+            this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+            this.in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        }
+
+        /**
+         * 发送运行请求并等待运行结果.
+         * @param classpath - 类路径
+         * @param mainClassName - 主类名
+         * @param inputFilePath - 输入文件路径(为空表示无输入)
+         * @param outputFilePath - 输出文件路径
+         * @return 运行状态, 是否可以继续使用(1或0)
+         * @throws IOException - 运行进程退出时抛出EOFException
+         */
+        int[] run(String classpath, String mainClassName,
+                  String inputFilePath, String outputFilePath) throws IOException {
+            JavaCompileWorker.writeString(out, classpath);
+            JavaCompileWorker.writeString(out, mainClassName);
+            JavaCompileWorker.writeString(out, inputFilePath);
+            JavaCompileWorker.writeString(out, outputFilePath);
+            out.flush();
+            int status = in.readInt();
+            boolean isReusable = in.readBoolean();
+            return new int[] { status, isReusable ? 1 : 0 };
+        }
+
+        /**
+         * 等待运行进程退出.
+         * @return 运行进程的退出状态
+         * @throws InterruptedException
+         */
+        int waitFor() throws InterruptedException {
+            if ( !process.waitFor(1, TimeUnit.SECONDS) ) {
+                process.destroyForcibly();
+                return process.waitFor();
+            }
+            return process.exitValue();
+        }
+
+        boolean isAlive() {
+            return process.isAlive();
+        }
+
+        /**
+         * 终止运行进程及其cgroup中的所有进程, 并删除cgroup.
+         */
+        void destroy() {
+            process.destroyForcibly();
+            try {
+                socket.close();
+            } catch ( IOException ex ) {
+                // 进程已被终止, 忽略关闭连接时的错误
+            }
+            cgroupSandboxBackend.release(cgroupDirFile);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+package cn.edu.buaa.judger.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 基于JNI的沙箱后端.
+ * 通过Runner的native方法以su方式切换至低权限用户运行程序.
+ * native方法的符号名与Runner类绑定, 因此该后端只负责委托调用.
+ */
+@Component
+public class JniSandboxBackend implements SandboxBackend {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JniSandboxBackend.class);
+
+    /**
+     * 沙箱后端的名称
+     */
+    public static final String NAME = "jni";
+
+    /**
+     * 等待taskset结束的时间限制(单位ms)
+     */
+    private static final long TASKSET_TIMEOUT = 5000;
+
+    /**
+     * 将程序绑定至指定CPU核心运行的命令前缀.
+     * 其中{cpu}将被替换为CPU核心编号. 设置后每次运行的命令行均带有该前缀, 沙箱执行并计时的是前缀中的命令.
+     * 为空(默认)时在调用native方法前将当前线程绑定至该CPU核心(taskset -p), 程序由该线程创建, 继承其CPU亲和性.
+     */
+    @Value("${judger.affinityCommand:}")
+    private String affinityCommand;
+
+    @Autowired
+    private Runner runner;
+
+    /**
+     * 是否通过绑定调用线程的方式设置程序的CPU亲和性
+     */
+    private volatile boolean isThreadPinned = false;
+
+    /**
+     * 评测机进程原有的CPU亲和性(如0-7), 编译等不绑定CPU核心的运行前恢复调用线程的CPU亲和性
+     */
+    private String defaultCpus;
+
+    /**
+     * 各线程当前的CPU亲和性, 与目标相同时不再调用taskset
+     */
+    private final ThreadLocal<String> threadCpus = new ThreadLocal<>();
+
+    /**
+     * 确定设置CPU亲和性的方式, 并在启动时记录.
+     */
+    @PostConstruct
+    private void initialize() {
+        if ( !affinityCommand.trim().isEmpty() ) {
+            LOGGER.info("Programs run by the jni sandbox are pinned to CPUs with: " + affinityCommand.trim());
+            return;
+        }
+        defaultCpus = getDefaultCpus();
+        if ( defaultCpus == null ) {
+            LOGGER.warn("judger.affinityCommand is empty and /proc/self/status is not available, " +
+                    "programs run by the jni sandbox are not pinned to CPUs.");
+            return;
+        }
+        isThreadPinned = true;
+        LOGGER.info("Programs run by the jni sandbox are pinned to CPUs through the calling thread (taskset -p), " +
+                "default CPUs: " + defaultCpus);
+    }
+
+    /**
+     * JNI库是否提供批量运行的方法(旧版本的JNI库不提供)
+     */
+    private volatile boolean isBatchSupported = true;
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean isBatchSupported() {
+        return isBatchSupported;
+    }
+
+    /**
+     * 获取程序运行（编译）结果.
+     * 标准错误输出的重定向由JNI库决定, 忽略isErrorMerged.
+     */
+    @Override
+    public Map<String, Object> getRuntimeResult(String commandLine, JudgeSlot slot, String inputFilePath,
+                                                String outputFilePath, boolean isErrorMerged, int timeLimit,
+                                                int memoryLimit, int cpu) {
+        pinCurrentThread(cpu);
+        return runner.getRuntimeResult(getAffinityCommand(cpu) + commandLine,
+                slot.getSystemUsername(), slot.getSystemPassword(), inputFilePath, outputFilePath,
+                timeLimit, memoryLimit);
+    }
+
+    /**
+     * 使用相同的限制依次运行程序的多个测试点.
+     * 通过一次JNI调用(一次命令行解析和用户认证)运行所有测试点;
+     * JNI库不提供批量运行的方法时逐个运行.
+     */
+    @Override
+    public int[] getRuntimeResults(String commandLine, JudgeSlot slot, String[] inputFilePaths,
+                                   String[] outputFilePaths, int timeLimit, int memoryLimit,
+                                   int cpu) throws Exception {
+        if ( isBatchSupported ) {
+            try {
+                pinCurrentThread(cpu);
+                return runner.getRuntimeResults(getAffinityCommand(cpu) + commandLine,
+                        slot.getSystemUsername(), slot.getSystemPassword(), inputFilePaths, outputFilePaths,
+                        timeLimit, memoryLimit);
+            } catch ( UnsatisfiedLinkError ex ) {
+                LOGGER.warn("Batch runs are not supported by the JNI library, running checkpoints one by one.");
+                isBatchSupported = false;
+            }
+        }
+        return SandboxBackend.super.getRuntimeResults(commandLine, slot, inputFilePaths, outputFilePaths,
+                timeLimit, memoryLimit, cpu);
+    }
+
+    /**
+     * 获取将程序绑定至指定CPU核心运行的命令前缀.
+     * @param cpu - CPU核心编号(负数表示不绑定)
+     * @return 命令前缀(包含末尾的空格)
+     */
+    private String getAffinityCommand(int cpu) {
+        if ( cpu < 0 || affinityCommand.trim().isEmpty() ) {
+            return "";
+        }
+        return affinityCommand.trim().replace("{cpu}", String.valueOf(cpu)) + " ";
+    }
+
+    /**
+     * 将当前线程绑定至指定CPU核心, 由该线程创建的程序继承其CPU亲和性.
+     * 不绑定时恢复评测机进程原有的CPU亲和性. 设置失败时记录警告, 此后不再绑定.
+     * @param cpu - CPU核心编号(负数表示不绑定)
+     */
+    private void pinCurrentThread(int cpu) {
+        if ( !isThreadPinned ) {
+            return;
+        }
+        String cpus = cpu >= 0 ? String.valueOf(cpu) : defaultCpus;
+        if ( cpus.equals(threadCpus.get()) ) {
+            return;
+        }
+        try {
+            // /proc/thread-self指向/proc/<pid>/task/<tid>
+            Path threadPath = Files.readSymbolicLink(Paths.get("/proc/thread-self"));
+            String threadId = threadPath.getFileName().toString();
+            Process process = new ProcessBuilder("taskset", "-p", "-c", cpus, threadId)
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(new File("/dev/null")))
+                    .start();
+            if ( !process.waitFor(TASKSET_TIMEOUT, TimeUnit.MILLISECONDS) ) {
+                process.destroyForcibly();
+                throw new IOException("taskset timed out.");
+            }
+            if ( process.exitValue() != 0 ) {
+                throw new IOException("taskset exited with " + process.exitValue());
+            }
+            threadCpus.set(cpus);
+        } catch ( IOException | UnsupportedOperationException ex ) {
+            LOGGER.warn("Failed to pin the calling thread to CPU " + cpus +
+                    ", programs run by the jni sandbox are no longer pinned to CPUs: " + ex);
+            isThreadPinned = false;
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 读取评测机进程原有的CPU亲和性.
+     * @return CPU核心列表(如0-7), 无法读取时返回null
+     */
+    private String getDefaultCpus() {
+        try {
+            for ( String line : Files.readAllLines(Paths.get("/proc/self/status"), StandardCharsets.UTF_8) ) {
+                if ( line.startsWith("Cpus_allowed_list:") ) {
+                    return line.substring("Cpus_allowed_list:".length()).trim();
+                }
+            }
+        } catch ( IOException ex ) {
+            return null;
+        }
+        return null;
+    }
+}
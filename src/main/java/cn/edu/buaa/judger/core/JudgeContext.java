@@ -0,0 +1,144 @@
+package cn.edu.buaa.judger.core;
+
+import cn.edu.buaa.judger.model.CheckpointMetadata;
+import cn.edu.buaa.judger.model.JudgePolicy;
+import cn.edu.buaa.judger.model.Language;
+import cn.edu.buaa.judger.model.Problem;
+import cn.edu.buaa.judger.model.Submission;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * 评测上下文.
+ * 包含评测一个提交所需的全部不变信息, 在创建评测任务时一次性解析,
+ * 评测流水线的各阶段均从中读取, 而无需再次查询数据库.
+ */
+public class JudgeContext {
+    /**
+     * 评测记录对象
+     */
+    private final Submission submission;
+
+    /**
+     * 提交所使用的编程语言
+     */
+    private final Language language;
+
+    /**
+     * 提交所对应的试题
+     */
+    private final Problem problem;
+
+    /**
+     * 评测策略
+     */
+    private final JudgePolicy judgePolicy;
+
+    /**
+     * 时间限制(单位ms, 已按编程语言调整)
+     */
+    private final int timeLimit;
+
+    /**
+     * 内存限制(单位KB)
+     */
+    private final int memoryLimit;
+
+    /**
+     * 编译生成结果的目录以及程序输出的目录
+     */
+    private final String workDirectory;
+
+    /**
+     * 随机文件名(不包含后缀)
+     */
+    private final String baseFileName;
+
+    /**
+     * 编译命令
+     */
+    private final String compileCommand;
+
+    /**
+     * 运行命令(不包含CPU亲和性前缀)
+     */
+    private final String runCommand;
+
+    /**
+     * 按测试点序号排列的待运行测试点
+     */
+    private final List<CheckpointMetadata> checkpoints;
+
+    public JudgeContext(Submission submission, Language language, Problem problem, JudgePolicy judgePolicy,
+                        int timeLimit, int memoryLimit, String workDirectory, String baseFileName,
+                        String compileCommand, String runCommand, List<CheckpointMetadata> checkpoints) {
+        this.submission = submission;
+        this.language = language;
+        this.problem = problem;
+        this.judgePolicy = judgePolicy;
+        this.timeLimit = timeLimit;
+        this.memoryLimit = memoryLimit;
+        this.workDirectory = workDirectory;
+        this.baseFileName = baseFileName;
+        this.compileCommand = compileCommand;
+        this.runCommand = runCommand;
+        this.checkpoints = Collections.unmodifiableList(checkpoints);
+    }
+
+    public Submission getSubmission() {
+        return submission;
+    }
+
+    public long getSubmissionId() {
+        return submission.getSubmissionId();
+    }
+
+    public Language getLanguage() {
+        return language;
+    }
+
+    public Problem getProblem() {
+        return problem;
+    }
+
+    public JudgePolicy getJudgePolicy() {
+        return judgePolicy;
+    }
+
+    /**
+     * 是否在遇到第一个未通过的测试点时停止评测.
+     * @return 评测策略是否为ICPC
+     */
+    public boolean isFailFast() {
+        return judgePolicy == JudgePolicy.ICPC;
+    }
+
+    public int getTimeLimit() {
+        return timeLimit;
+    }
+
+    public int getMemoryLimit() {
+        return memoryLimit;
+    }
+
+    public String getWorkDirectory() {
+        return workDirectory;
+    }
+
+    public String getBaseFileName() {
+        return baseFileName;
+    }
+
+    public String getCompileCommand() {
+        return compileCommand;
+    }
+
+    public String getRunCommand() {
+        return runCommand;
+    }
+
+    public List<CheckpointMetadata> getCheckpoints() {
+        return checkpoints;
+    }
+}
@@ -0,0 +1,61 @@
+package cn.edu.buaa.judger.core;
+
+/**
+ * 评测槽位.
+ * 每个槽位同一时刻只承载一个评测任务, 并拥有独立的工作目录和低权限用户,
+ * 以保证并发评测的提交之间互不干扰.
+ */
+public class JudgeSlot {
+    /**
+     * 槽位编号(从0开始)
+     */
+    private final int slotId;
+
+    /**
+     * 槽位的工作目录
+     * 用于存储该槽位上评测任务的编译结果以及程序输出结果
+     */
+    private final String workDirectory;
+
+    /**
+     * 该槽位运行程序时登录操作系统的用户名
+     */
+    private final String systemUsername;
+
+    /**
+     * 该槽位运行程序时登录操作系统的密码
+     */
+    private final String systemPassword;
+
+    public JudgeSlot(int slotId, String workDirectory, String systemUsername, String systemPassword) {
+        this.slotId = slotId;
+        this.workDirectory = workDirectory;
+        this.systemUsername = systemUsername;
+        this.systemPassword = systemPassword;
+    }
+
+    public int getSlotId() {
+        return slotId;
+    }
+
+    public String getWorkDirectory() {
+        return workDirectory;
+    }
+
+    public String getSystemUsername() {
+        return systemUsername;
+    }
+
+    public String getSystemPassword() {
+        return systemPassword;
+    }
+
+    @Override
+    public String toString() {
+        return "JudgeSlot{" +
+                "slotId=" + slotId +
+                ", workDirectory='" + workDirectory + '\'' +
+                ", systemUsername='" + systemUsername + '\'' +
+                '}';
+    }
+}
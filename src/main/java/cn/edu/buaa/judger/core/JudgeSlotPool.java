@@ -0,0 +1,119 @@
+package cn.edu.buaa.judger.core;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * 评测槽位池.
+ * 评测机可同时评测的提交数量等于槽位数量, 每个评测任务在执行期间独占一个槽位.
+ */
+@Component
+public class JudgeSlotPool {
+    private static final Logger LOGGER = LoggerFactory.getLogger(JudgeSlotPool.class);
+
+    /**
+     * 评测槽位的数量
+     */
+    @Value("${judger.slots}")
+    private int slots;
+
+    /**
+     * 评测机的工作目录
+     */
+    @Value("${judger.workDir}")
+    private String workBaseDirectory;
+
+    /**
+     * 低权限用户的用户名列表(以逗号分隔).
+     * 第i个槽位使用第(i mod n)个用户. 用户数少于槽位数时, 多个槽位中的程序以同一用户运行, 彼此可以互相访问和发送信号,
+     * 因此每个槽位应配置一个独立的用户, 且该用户不应被评测机的其他部分使用.
+     */
+    @Value("${system.username}")
+    private String systemUsernames;
+
+    /**
+     * 低权限用户的密码列表(以逗号分隔), 与用户名列表一一对应.
+     */
+    @Value("${system.password}")
+    private String systemPasswords;
+
+    /**
+     * 空闲的评测槽位
+     */
+    private BlockingQueue<JudgeSlot> idleSlots;
+
+    /**
+     * 创建各槽位的工作目录.
+     * 槽位的工作目录属于该槽位的低权限用户, 权限为0700, 其他槽位的用户无法访问其中的文件.
+     */
+    @PostConstruct
+    private void initialize() {
+        if ( slots <= 0 ) {
+            slots = Runtime.getRuntime().availableProcessors();
+        }
+        String[] usernames = systemUsernames.split(",");
+        String[] passwords = systemPasswords.split(",");
+        if ( usernames.length < slots ) {
+            LOGGER.warn(String.format("Only %d user(s) in system.username for %d judge slots, " +
+                    "programs in different slots run as the same user and are not isolated from each other.",
+                    new Object[] { usernames.length, slots }));
+        }
+        idleSlots = new ArrayBlockingQueue<>(slots);
+        for ( int i = 0; i < slots; ++ i ) {
+            String workDirectory = String.format("%s/buaaoj-slot%d",
+                    new Object[] {workBaseDirectory, i});
+            JudgeSlot slot = new JudgeSlot(i, workDirectory,
+                    usernames[i % usernames.length].trim(), passwords[i % passwords.length].trim());
+            try {
+                PrivateFiles.createDirectory(new File(workDirectory), slot.getSystemUsername(), PrivateFiles.OWNER_ONLY);
+            } catch ( IOException ex ) {
+                LOGGER.warn(String.format("Failed to make %s private to user %s, " +
+                        "programs in judge slot #%d are not isolated from other users: %s",
+                        new Object[] { workDirectory, slot.getSystemUsername(), i, ex }));
+            }
+            idleSlots.add(slot);
+        }
+        LOGGER.info(String.format("%d judge slot(s) initialized.", new Object[] { slots }));
+    }
+
+    /**
+     * 获取一个空闲的评测槽位, 若无空闲槽位则阻塞等待.
+     * @return 评测槽位
+     * @throws InterruptedException
+     */
+    public JudgeSlot acquire() throws InterruptedException {
+        return idleSlots.take();
+    }
+
+    /**
+     * 归还评测槽位.
+     * @param slot - 评测槽位
+     */
+    public void release(JudgeSlot slot) {
+        idleSlots.offer(slot);
+    }
+
+    /**
+     * 获取评测槽位的总数.
+     * @return 评测槽位的总数
+     */
+    public int getSlots() {
+        return slots;
+    }
+
+    /**
+     * 获取当前空闲的评测槽位数量.
+     * @return 空闲的评测槽位数量
+     */
+    public int getIdleSlots() {
+        return idleSlots.size();
+    }
+}
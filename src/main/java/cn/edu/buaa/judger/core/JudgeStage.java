@@ -0,0 +1,113 @@
+package cn.edu.buaa.judger.core;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * 评测流水线中的一个阶段.
+ * 每个阶段拥有独立的线程池和有界的任务队列, 队列已满时提交任务的线程将被阻塞,
+ * 从而将下游阶段的压力传递至上游阶段.
+ */
+public class JudgeStage {
+    /**
+     * 阶段名称
+     */
+    private final String name;
+
+    /**
+     * 阶段的任务队列
+     */
+    private final BlockingQueue<Runnable> queue;
+
+    /**
+     * 阶段的线程池
+     */
+    private final ThreadPoolExecutor executor;
+
+    /**
+     * 该阶段已完成的任务数量
+     */
+    private final AtomicInteger completedTasks = new AtomicInteger();
+
+    /**
+     * JudgeStage的构造函数
+     * @param name - 阶段名称
+     * @param threads - 线程数量
+     * @param queueCapacity - 任务队列的最大长度
+     */
+    public JudgeStage(String name, int threads, int queueCapacity) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(queueCapacity);
+        AtomicInteger threadNumber = new AtomicInteger();
+        ThreadFactory threadFactory = runnable ->
+                new Thread(runnable, String.format("%s-%d", new Object[] { name, threadNumber.incrementAndGet() }));
+        this.executor = new ThreadPoolExecutor(threads, threads,
+                0L, TimeUnit.MILLISECONDS, queue, threadFactory);
+        // 任务直接放入任务队列, 由预先启动的线程取出执行
+        this.executor.prestartAllCoreThreads();
+    }
+
+    /**
+     * 提交任务至该阶段.
+     * 若任务队列已满, 则阻塞直至队列中有空闲位置.
+     * @param task - 任务
+     * @throws InterruptedException
+     */
+    public void submit(Runnable task) throws InterruptedException {
+        Runnable countedTask = () -> {
+            try {
+                task.run();
+            } finally {
+                completedTasks.incrementAndGet();
+            }
+        };
+        queue.put(countedTask);
+    }
+
+    /**
+     * 关闭该阶段的线程池.
+     */
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * 获取任务队列中等待执行的任务数量.
+     * @return 等待执行的任务数量
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * 获取正在执行任务的线程数量.
+     * @return 正在执行任务的线程数量
+     */
+    public int getActiveThreads() {
+        return executor.getActiveCount();
+    }
+
+    /**
+     * 获取该阶段的线程数量.
+     * @return 线程数量
+     */
+    public int getThreads() {
+        return executor.getCorePoolSize();
+    }
+
+    /**
+     * 获取该阶段已完成的任务数量.
+     * @return 已完成的任务数量
+     */
+    public int getCompletedTasks() {
+        return completedTasks.get();
+    }
+}
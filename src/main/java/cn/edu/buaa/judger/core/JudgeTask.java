@@ -0,0 +1,91 @@
+package cn.edu.buaa.judger.core;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * 评测任务.
+ * 记录一个提交在评测流水线各阶段之间传递的状态.
+ * 同一时刻评测任务只由一个阶段处理, 因此无需额外的同步.
+ */
+public class JudgeTask {
+    /**
+     * 评测上下文
+     */
+    private final JudgeContext context;
+
+    /**
+     * 评测任务占用的评测槽位
+     */
+    private final JudgeSlot slot;
+
+    /**
+     * 评测任务使用的测试点目录(由CheckpointCache提供)
+     */
+    private String checkpointDirectory;
+
+    /**
+     * 评测任务使用的测试点数据包
+     */
+    private CheckpointPack checkpointPack;
+
+    /**
+     * 各测试点的运行结果, 与context.getCheckpoints()一一对应
+     */
+    private List<Map<String, Object>> runtimeResults;
+
+    /**
+     * 评测结果发布后完成的Future对象
+     */
+    private final CompletableFuture<Void> completion = new CompletableFuture<>();
+
+    public JudgeTask(JudgeContext context, JudgeSlot slot) {
+        this.context = context;
+        this.slot = slot;
+    }
+
+    public JudgeContext getContext() {
+        return context;
+    }
+
+    public long getSubmissionId() {
+        return context.getSubmissionId();
+    }
+
+    public JudgeSlot getSlot() {
+        return slot;
+    }
+
+    public String getCheckpointDirectory() {
+        return checkpointDirectory;
+    }
+
+    public void setCheckpointDirectory(String checkpointDirectory) {
+        this.checkpointDirectory = checkpointDirectory;
+    }
+
+    public CheckpointPack getCheckpointPack() {
+        return checkpointPack;
+    }
+
+    public void setCheckpointPack(CheckpointPack checkpointPack) {
+        this.checkpointPack = checkpointPack;
+    }
+
+    /**
+     * 获取各测试点的运行结果.
+     * @return 各测试点的运行结果, 未运行程序(如编译失败)时返回null
+     */
+    public List<Map<String, Object>> getRuntimeResults() {
+        return runtimeResults;
+    }
+
+    public void setRuntimeResults(List<Map<String, Object>> runtimeResults) {
+        this.runtimeResults = runtimeResults;
+    }
+
+    public CompletableFuture<Void> getCompletion() {
+        return completion;
+    }
+}
@@ -0,0 +1,108 @@
+package cn.edu.buaa.judger.core;
+
+import org.apache.commons.io.IOUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.attribute.UserPrincipal;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 用于程序标准输入输出的命名管道(FIFO).
+ * 管道的一端由评测机的线程打开, 另一端由沙箱中的程序以普通文件的方式打开.
+ */
+class NamedPipes {
+    /**
+     * 等待评测机一端的线程结束时, 再次尝试解除其阻塞的时间间隔(单位ms)
+     */
+    private static final long UNBLOCK_INTERVAL = 10;
+
+    private NamedPipes() { }
+
+    /**
+     * 创建命名管道.
+     * 所有管道通过一次mkfifo命令创建, 权限为0600, 并属于评测槽位的低权限用户,
+     * 其他槽位的用户无法打开(评测机以root运行, 不受权限限制).
+     * @param pipeFilePaths - 各管道的路径(已存在的文件将被删除)
+     * @param systemUsername - 评测槽位的低权限用户名
+     * @throws IOException
+     */
+    static void create(String[] pipeFilePaths, String systemUsername) throws IOException {
+        List<String> command = new ArrayList<>(pipeFilePaths.length + 3);
+        command.add("mkfifo");
+        command.add("-m");
+        command.add("0600");
+        for ( String pipeFilePath : pipeFilePaths ) {
+            Files.deleteIfExists(new File(pipeFilePath).toPath());
+            command.add(pipeFilePath);
+        }
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        String log;
+        try ( InputStream inputStream = process.getInputStream() ) {
+            log = IOUtils.toString(inputStream, StandardCharsets.UTF_8);
+        }
+        try {
+            if ( process.waitFor() != 0 ) {
+                throw new IOException("Failed to create pipes: " + log.trim());
+            }
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            throw new IOException(ex);
+        }
+        UserPrincipal owner = FileSystems.getDefault().getUserPrincipalLookupService()
+                .lookupPrincipalByName(systemUsername);
+        for ( String pipeFilePath : pipeFilePaths ) {
+            Files.setOwner(new File(pipeFilePath).toPath(), owner);
+        }
+    }
+
+    /**
+     * 在程序运行结束后等待评测机一端的线程结束.
+     * 程序未打开管道(如程序未能启动)时, 评测机的线程将一直阻塞在打开管道的操作上, 因此等待期间反复解除其阻塞
+     * (线程可能尚未开始打开管道).
+     * @param pipeFilePath - 管道的路径
+     * @param future - 评测机一端的线程
+     * @param timeout - 时间限制(单位ms)
+     * @throws TimeoutException - 程序创建的子进程仍持有管道
+     * @throws InterruptedException
+     * @throws ExecutionException
+     */
+    static void await(String pipeFilePath, Future<?> future, long timeout)
+            throws TimeoutException, InterruptedException, ExecutionException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while ( true ) {
+            unblock(pipeFilePath);
+            try {
+                future.get(UNBLOCK_INTERVAL, TimeUnit.MILLISECONDS);
+                return;
+            } catch ( TimeoutException ex ) {
+                if ( System.currentTimeMillis() >= deadline ) {
+                    throw ex;
+                }
+            }
+        }
+    }
+
+    /**
+     * 以读写方式打开管道不会阻塞, 并可使阻塞的一端立即打开: 读端随后读到文件结尾, 写端随后写入失败.
+     * @param pipeFilePath - 管道的路径
+     */
+    private static void unblock(String pipeFilePath) {
+        try {
+            RandomAccessFile file = new RandomAccessFile(pipeFilePath, "rw");
+            file.close();
+        } catch ( IOException ex ) {
+            ex.printStackTrace();
+        }
+    }
+}
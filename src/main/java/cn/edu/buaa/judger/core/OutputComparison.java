@@ -0,0 +1,188 @@
+package cn.edu.buaa.judger.core;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 用户输出和标准输出的增量比对.
+ * 用户输出分段到达(如从管道中读取), 每段到达后立即与标准输出比对, 无需保存已读取的用户输出.
+ * 比对规则与Comparator相同: 行以\n, \r\n或\r分隔, 忽略行尾空格以及输出结尾的空行.
+ * 该类不是线程安全的.
+ */
+public class OutputComparison {
+    /**
+     * 标准输出
+     */
+    private final ByteBuffer standardOutput;
+
+    /**
+     * 标准输出中当前行的起始位置
+     */
+    private int stdLineStart;
+
+    /**
+     * 标准输出中当前行的结束位置(行结束符的位置)
+     */
+    private int stdLineEnd;
+
+    /**
+     * 标准输出中当前行去除行尾空格后的结束位置
+     */
+    private int stdContentEnd;
+
+    /**
+     * 用户输出的当前行已比对至标准输出中的位置
+     */
+    private int position;
+
+    /**
+     * 用户输出的当前行是否已包含字符(包括空格)
+     */
+    private boolean isLineStarted = false;
+
+    /**
+     * 用户输出的上一个字符是否为\r(与之后的\n共同构成一个行结束符)
+     */
+    private boolean isAfterCarriageReturn = false;
+
+    /**
+     * 标准输出的所有行是否均已比对, 此后用户输出只能包含空格和换行符
+     */
+    private boolean isStandardOutputExhausted = false;
+
+    /**
+     * 是否已确定用户输出和标准输出不同
+     */
+    private boolean isMismatched = false;
+
+    /**
+     * 已比对的用户输出的长度
+     */
+    private long length = 0;
+
+    /**
+     * @param standardOutput - 标准输出(比对过程中不改变其position和limit)
+     */
+    public OutputComparison(ByteBuffer standardOutput) {
+        this.standardOutput = standardOutput;
+        setStandardLine(standardOutput.position());
+    }
+
+    /**
+     * 比对一段用户输出.
+     * @param buffer - 用户输出所在的数组
+     * @param offset - 该段用户输出的起始位置
+     * @param count - 该段用户输出的长度
+     * @return 目前为止用户输出是否仍可能与标准输出相同
+     */
+    public boolean update(byte[] buffer, int offset, int count) {
+        length += count;
+        int end = offset + count;
+        for ( int i = offset; i < end && !isMismatched; ++ i ) {
+            byte b = buffer[i];
+            if ( isAfterCarriageReturn ) {
+                isAfterCarriageReturn = false;
+                if ( b == '\n' ) {
+                    continue;
+                }
+            }
+            if ( isStandardOutputExhausted ) {
+                isMismatched = !(b == ' ' || b == '\n' || b == '\r');
+            } else if ( b == '\n' || b == '\r' ) {
+                isAfterCarriageReturn = b == '\r';
+                isMismatched = position != stdContentEnd;
+                isLineStarted = false;
+                setStandardLine(getNextLineStart(stdLineEnd));
+            } else {
+                isLineStarted = true;
+                if ( position < stdContentEnd ) {
+                    isMismatched = b != standardOutput.get(position ++);
+                } else {
+                    // 标准输出的该行已比对完, 用户输出只能再包含行尾空格
+                    isMismatched = b != ' ';
+                }
+            }
+        }
+        return !isMismatched;
+    }
+
+    /**
+     * 在用户输出结束后获取比对结果.
+     * @return 用户输出和标准输出是否相同
+     */
+    public boolean isOutputTheSame() {
+        if ( isMismatched ) {
+            return false;
+        }
+        if ( isStandardOutputExhausted ) {
+            return true;
+        }
+        int remainingStart = stdLineStart;
+        if ( isLineStarted ) {
+            // 用户输出的最后一行没有行结束符
+            if ( position != stdContentEnd ) {
+                return false;
+            }
+            remainingStart = getNextLineStart(stdLineEnd);
+        }
+        for ( int i = remainingStart; i < standardOutput.limit(); ++ i ) {
+            byte b = standardOutput.get(i);
+            if ( !(b == ' ' || b == '\n' || b == '\r') ) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * 是否已确定用户输出和标准输出不同(此后的用户输出不影响比对结果).
+     * @return 是否已确定用户输出和标准输出不同
+     */
+    public boolean isMismatched() {
+        return isMismatched;
+    }
+
+    /**
+     * 获取已比对的用户输出的长度.
+     * @return 已比对的用户输出的长度(字节)
+     */
+    public long getLength() {
+        return length;
+    }
+
+    /**
+     * 将标准输出中的某一行设为当前行.
+     * @param lineStart - 行的起始位置
+     */
+    private void setStandardLine(int lineStart) {
+        if ( lineStart >= standardOutput.limit() ) {
+            isStandardOutputExhausted = true;
+            return;
+        }
+        int lineEnd = lineStart;
+        while ( lineEnd < standardOutput.limit() &&
+                standardOutput.get(lineEnd) != '\n' && standardOutput.get(lineEnd) != '\r' ) {
+            ++ lineEnd;
+        }
+        int contentEnd = lineEnd;
+        while ( contentEnd > lineStart && standardOutput.get(contentEnd - 1) == ' ' ) {
+            -- contentEnd;
+        }
+        stdLineStart = lineStart;
+        stdLineEnd = lineEnd;
+        stdContentEnd = contentEnd;
+        position = lineStart;
+    }
+
+    /**
+     * 获取标准输出中下一行的起始位置.
+     * @param lineEnd - 当前行的结束位置
+     * @return 下一行的起始位置
+     */
+    private int getNextLineStart(int lineEnd) {
+        if ( lineEnd < standardOutput.limit() - 1 && standardOutput.get(lineEnd) == '\r' &&
+                standardOutput.get(lineEnd + 1) == '\n' ) {
+            return lineEnd + 2;
+        }
+        return lineEnd + 1;
+    }
+}
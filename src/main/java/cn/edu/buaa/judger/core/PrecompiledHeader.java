@@ -0,0 +1,254 @@
+package cn.edu.buaa.judger.core;
+
+import cn.edu.buaa.judger.mapper.LanguageMapper;
+import cn.edu.buaa.judger.model.Language;
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * C++预编译头文件.
+ * 为每个C++编程语言及其编译选项在后台构建<bits/stdc++.h>的预编译头文件,
+ * 并在编译命令中加入其所在的目录, 以避免每次编译都重新解析该头文件.
+ *
+ * 预编译头文件目录中的bits/stdc++.h仅包含#include_next <bits/stdc++.h>,
+ * 因此预编译头文件不可用(如尚未构建完成或编译选项不匹配)时编译器会回退至系统的头文件.
+ * 预编译头文件目录以编程语言ID、编译命令和编译器版本的摘要命名, 编译器升级后自动重新构建.
+ */
+@Component
+public class PrecompiledHeader {
+    private static final Logger LOGGER = LoggerFactory.getLogger(PrecompiledHeader.class);
+
+    /**
+     * 预编译的头文件
+     */
+    private static final String HEADER_NAME = "bits/stdc++.h";
+
+    /**
+     * 构建预编译头文件的时间限制(单位ms)
+     */
+    private static final long BUILD_TIMEOUT = 60000;
+
+    /**
+     * 预编译头文件的存储目录
+     * 为空时不使用预编译头文件
+     */
+    @Value("${judger.pchDir}")
+    private String pchDirectory;
+
+    @Autowired
+    private Toolchain toolchain;
+
+    @Autowired
+    private LanguageMapper languageMapper;
+
+    /**
+     * 各预编译头文件目录的状态(true表示已构建完成, false表示正在构建)
+     */
+    private final Map<String, Boolean> states = new ConcurrentHashMap<>();
+
+    /**
+     * 用于构建预编译头文件的线程池
+     */
+    private final ExecutorService buildExecutor = Executors.newSingleThreadExecutor();
+
+    @PreDestroy
+    private void destroy() {
+        buildExecutor.shutdownNow();
+    }
+
+    /**
+     * 评测机启动后在后台构建所有C++编程语言的预编译头文件.
+     * 数据库不可用时跳过, 预编译头文件将在首次编译时开始构建.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void prebuild() {
+        try {
+            for ( Language language : languageMapper.getAllLanguages() ) {
+                getIncludeDirectory(language);
+            }
+        } catch ( Exception ex ) {
+            LOGGER.warn("Failed to prebuild precompiled headers: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * 获取编程语言可用的预编译头文件目录.
+     * 预编译头文件尚未构建时在后台开始构建, 并返回null.
+     * @param language - 编程语言对象
+     * @return 预编译头文件目录, 不可用时返回null
+     */
+    public String getIncludeDirectory(Language language) {
+        if ( pchDirectory == null || pchDirectory.isEmpty() || !isCpp(language) ) {
+            return null;
+        }
+        String directoryName = getDirectoryName(language);
+        if ( directoryName == null ) {
+            return null;
+        }
+        File includeDirFile = new File(pchDirectory, directoryName);
+        Boolean isBuilt = states.get(directoryName);
+        if ( isBuilt == null ) {
+            if ( new File(includeDirFile, HEADER_NAME + ".gch").isFile() ) {
+                states.put(directoryName, true);
+                return includeDirFile.getPath();
+            }
+            if ( states.putIfAbsent(directoryName, false) == null ) {
+                buildExecutor.submit(() -> build(language, directoryName));
+            }
+            return null;
+        }
+        return isBuilt ? includeDirFile.getPath() : null;
+    }
+
+    /**
+     * 构建预编译头文件.
+     * 预编译头文件先在临时目录中构建, 再以原子操作移动至预编译头文件目录,
+     * 构建成功后删除该编程语言旧的预编译头文件目录.
+     * @param language - 编程语言对象
+     * @param directoryName - 预编译头文件目录的名称
+     */
+    private void build(Language language, String directoryName) {
+        File includeDirFile = new File(pchDirectory, directoryName);
+        File temporaryDirFile = new File(pchDirectory, ".tmp-" + directoryName);
+        try {
+            FileUtils.deleteQuietly(temporaryDirFile);
+            File headerFile = new File(temporaryDirFile, HEADER_NAME);
+            FileUtils.writeStringToFile(headerFile, "#include_next <" + HEADER_NAME + ">\n", "UTF-8");
+
+            List<String> command = new ArrayList<>();
+            command.add(toolchain.getCompileProgram(language.getCompileCommand()));
+            command.addAll(getCompileOptions(language.getCompileCommand()));
+            command.add("-w");
+            command.add("-x");
+            command.add("c++-header");
+            command.add(headerFile.getPath());
+            command.add("-o");
+            command.add(headerFile.getPath() + ".gch");
+            LOGGER.info("Start building precompiled header with command: " + String.join(" ", command));
+            Process process = new ProcessBuilder(command).redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.appendTo(new File(temporaryDirFile, "build.log"))).start();
+            if ( !process.waitFor(BUILD_TIMEOUT, TimeUnit.MILLISECONDS) ) {
+                process.destroyForcibly();
+                throw new IOException("Timed out building precompiled header.");
+            }
+            if ( process.exitValue() != 0 ) {
+                throw new IOException("Compiler exited with code " + process.exitValue());
+            }
+            // 编译命令以低权限用户执行
+            for ( File file : FileUtils.listFilesAndDirs(temporaryDirFile,
+                    TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE) ) {
+                file.setReadable(true, false);
+                file.setExecutable(file.isDirectory(), false);
+            }
+            Files.move(temporaryDirFile.toPath(), includeDirFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+            states.put(directoryName, true);
+            LOGGER.info("Precompiled header built: " + includeDirFile.getPath());
+            removeStaleDirectories(language, directoryName);
+        } catch ( Exception ex ) {
+            // 构建失败的预编译头文件目录保持正在构建的状态, 不再重试
+            LOGGER.warn("Failed to build precompiled header for language #" +
+                    language.getLanguageId() + ": " + ex.getMessage());
+        } finally {
+            FileUtils.deleteQuietly(temporaryDirFile);
+        }
+    }
+
+    /**
+     * 删除编程语言旧的预编译头文件目录.
+     * @param language - 编程语言对象
+     * @param directoryName - 当前的预编译头文件目录的名称
+     */
+    private void removeStaleDirectories(Language language, String directoryName) {
+        String prefix = language.getLanguageId() + "-";
+        File[] includeDirFiles = new File(pchDirectory).listFiles(file ->
+                file.getName().startsWith(prefix) && !file.getName().equals(directoryName));
+        if ( includeDirFiles == null ) {
+            return;
+        }
+        for ( File includeDirFile : includeDirFiles ) {
+            states.remove(includeDirFile.getName());
+            FileUtils.deleteQuietly(includeDirFile);
+        }
+    }
+
+    /**
+     * 获取编译命令中影响预编译头文件的编译选项.
+     * 忽略源文件、输出文件和链接选项.
+     * @param compileCommand - 编译命令的命令行
+     * @return 编译选项
+     */
+    private List<String> getCompileOptions(String compileCommand) {
+        String[] arguments = compileCommand.trim().split("\\s+");
+        List<String> options = new ArrayList<>();
+        for ( int i = 1; i < arguments.length; ++ i ) {
+            String argument = arguments[i];
+            if ( argument.equals("-o") ) {
+                ++ i;
+            } else if ( argument.startsWith("-") && !argument.contains("{filename}") &&
+                    !argument.startsWith("-l") && !argument.startsWith("-L") &&
+                    !argument.startsWith("-Wl,") && !argument.equals("-static") ) {
+                options.add(argument);
+            }
+        }
+        return options;
+    }
+
+    /**
+     * 获取编程语言的预编译头文件目录的名称.
+     * @param language - 编程语言对象
+     * @return 预编译头文件目录的名称
+     */
+    private String getDirectoryName(Language language) {
+        try {
+            MessageDigest messageDigest = MessageDigest.getInstance("SHA-256");
+            for ( String part : new String[] { language.getCompileCommand(),
+                    toolchain.getCompilerVersion(language) } ) {
+                messageDigest.update(part.getBytes(StandardCharsets.UTF_8));
+                messageDigest.update((byte) 0);
+            }
+            StringBuilder directoryName = new StringBuilder();
+            directoryName.append(language.getLanguageId()).append('-');
+            byte[] digest = messageDigest.digest();
+            for ( int i = 0; i < 8; ++ i ) {
+                directoryName.append(String.format("%02x", new Object[] { digest[i] & 0xff }));
+            }
+            return directoryName.toString();
+        } catch ( NoSuchAlgorithmException ex ) {
+            ex.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * 判断编程语言是否为C++.
+     * @param language - 编程语言对象
+     * @return 编译程序为g++或clang++等C++编译器时返回true
+     */
+    private boolean isCpp(Language language) {
+        String compileProgram = toolchain.getCompileProgram(language.getCompileCommand());
+        return compileProgram.contains("++");
+    }
+}
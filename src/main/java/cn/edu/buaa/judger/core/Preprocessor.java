@@ -1,24 +1,19 @@
 package cn.edu.buaa.judger.core;
 
 import cn.edu.buaa.judger.exception.CreateDirectoryException;
-import cn.edu.buaa.judger.mapper.CheckpointMapper;
-import cn.edu.buaa.judger.mapper.LanguageMapper;
-import cn.edu.buaa.judger.model.Checkpoint;
+import cn.edu.buaa.judger.model.CheckpointMetadata;
 import cn.edu.buaa.judger.model.Language;
-import cn.edu.buaa.judger.model.Submission;
+import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.IOUtils;
 import org.springframework.beans.factory.annotation.Autowired;
-import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
-import java.nio.file.attribute.PosixFilePermission;
-import java.util.HashSet;
+import java.nio.file.StandardOpenOption;
 import java.util.List;
-import java.util.Set;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -28,100 +23,59 @@ import java.util.regex.Pattern;
 @Component
 public class Preprocessor {
     @Autowired
-    private LanguageMapper languageMapper;
-
-    @Autowired
-    private CheckpointMapper checkpointMapper;
-
-    /**
-     * 测试点的存储目录.
-     * 用于存储测试点的输入输出数据.
-     */
-    @Value("${judger.checkpointDir}")
-    private String checkpointDirectory;
+    private CheckpointCache checkpointCache;
 
     /**
      * 创建测试代码至本地磁盘.
-     * @param submission - 评测记录对象
-     * @param workDirectory - 用于产生编译输出的目录
-     * @param baseFileName - 随机文件名(不包含后缀)
+     * 工作目录中残留的文件(如上次评测同一提交时留下的)将被删除, 代码文件不会写入程序可能创建的符号链接.
+     * @param context - 评测上下文
+     * @param slot - 评测槽位
      * @throws Exception
      */
-    public void createTestCode(Submission submission,
-                               String workDirectory, String baseFileName) throws Exception {
+    public void createTestCode(JudgeContext context, JudgeSlot slot) throws Exception {
+        String workDirectory = context.getWorkDirectory();
+        String baseFileName = context.getBaseFileName();
         File workDirFile = new File(workDirectory);
-        if ( !workDirFile.exists() && !workDirFile.mkdirs() ) {
+        if ( workDirFile.exists() ) {
+            FileUtils.deleteDirectory(workDirFile);
+        }
+        if ( !workDirFile.mkdirs() ) {
             throw new CreateDirectoryException("Failed to create directory: " + workDirectory);
         }
-        setWorkDirectoryPermission(workDirFile);
-        Language language = languageMapper.getLanguageById(submission.getLanguageId());
-        String code = replaceClassName(language, submission.getSubmitCode(), baseFileName);
+        setWorkDirectoryPermission(workDirFile, slot.getSystemUsername());
+        Language language = context.getLanguage();
+        String code = replaceClassName(language, context.getSubmission().getSubmitCode(), baseFileName);
         String codeFilePath = String.format("%s/%s.%s",
                 new Object[] {workDirectory, baseFileName, getCodeFileSuffix(language)});
-        FileOutputStream outputStream = new FileOutputStream(new File(codeFilePath));
+        OutputStream outputStream = Files.newOutputStream(new File(codeFilePath).toPath(),
+                StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE);
         IOUtils.write(code, outputStream, "UTF-8");
         outputStream.close();
 //        IOUtils.closeQuietly(outputStream);
     }
 
     /**
-     * 从数据库获取评测数据.
+     * 获取评测数据.
+     * 评测数据由CheckpointCache缓存, 仅当数据版本变化时才从数据库获取.
+     * 评测完成后需调用CheckpointCache.release(long, String)方法释放评测数据.
      * @param problemId - 试题的唯一标识符
+     * @param checkpoints - 试题各测试点的元数据
+     * @return 测试点目录
      * @throws Exception
      */
-    public void fetchTestPoints(long problemId) throws Exception {
-        String checkpointsFilePath = String.format("%s/%s",
-                new Object[] {checkpointDirectory, problemId});
-        File checkpointsDirFile = new File(checkpointsFilePath);
-        if ( !checkpointsDirFile.exists() && !checkpointsDirFile.mkdirs() ) {
-            throw new CreateDirectoryException("Failed to create the checkpoints directory: " + checkpointsFilePath);
-        }
-        List<Checkpoint> checkpoints = checkpointMapper.getProblemCheckpoints(problemId);
-        for ( Checkpoint checkpoint : checkpoints ) {
-            long checkpointId = checkpoint.getCheckpointId();
-            { // Standard Input File
-                String filePath = String.format("%s/input#%s.txt",
-                        new Object[] { checkpointsFilePath, checkpointId });
-                FileOutputStream outputStream = new FileOutputStream(new File(filePath));
-                String input = checkpoint.getInput();
-                IOUtils.write(input, outputStream, "UTF-8");
-//                IOUtils.closeQuietly(outputStream);
-                outputStream.close();
-            }
-            { // Standard Output File
-                String filePath = String.format("%s/output#%s.txt",
-                        new Object[] { checkpointsFilePath, checkpointId });
-                FileOutputStream outputStream = new FileOutputStream(new File(filePath));
-                String output = checkpoint.getOutput();
-                IOUtils.write(output, outputStream, "UTF-8");
-//                IOUtils.closeQuietly(outputStream);
-                outputStream.close();
-            }
-        }
+    public String fetchTestPoints(long problemId, List<CheckpointMetadata> checkpoints) throws Exception {
+        return checkpointCache.acquire(problemId, checkpoints);
     }
 
     /**
      * 设置代码文件所在目录的读写权限.
-     * 在Linux下, 代码以UID=1536的用户运行, 因此需要为Others用户组分配写权限.
+     * 在Linux下, 编译器和程序以评测槽位的低权限用户运行, 因此目录属于该用户;
+     * Others用户组没有任何权限, 其他槽位的用户无法读取代码或写入文件.
      * @param workDirectory 用于产生编译输出的目录
+     * @param systemUsername 评测槽位的低权限用户名
      */
-    private void setWorkDirectoryPermission(File workDirectory) throws IOException {
-        if ( !System.getProperty("os.name").contains("Windows") ) {
-            Set<PosixFilePermission> permissions = new HashSet<>();
-
-            permissions.add(PosixFilePermission.OWNER_READ);
-            permissions.add(PosixFilePermission.OWNER_WRITE);
-            permissions.add(PosixFilePermission.OWNER_EXECUTE);
-
-            permissions.add(PosixFilePermission.GROUP_READ);
-            permissions.add(PosixFilePermission.GROUP_WRITE);
-            permissions.add(PosixFilePermission.GROUP_EXECUTE);
-
-            permissions.add(PosixFilePermission.OTHERS_READ);
-            permissions.add(PosixFilePermission.OTHERS_WRITE);
-            permissions.add(PosixFilePermission.OTHERS_EXECUTE);
-            Files.setPosixFilePermissions(workDirectory.toPath(), permissions);
-        }
+    private void setWorkDirectoryPermission(File workDirectory, String systemUsername) throws IOException {
+        PrivateFiles.setOwner(workDirectory, systemUsername, PrivateFiles.OWNER_AND_GROUP);
     }
 
     /**
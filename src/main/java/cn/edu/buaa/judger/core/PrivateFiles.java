@@ -0,0 +1,86 @@
+package cn.edu.buaa.judger.core;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.nio.file.attribute.UserPrincipal;
+
+/**
+ * 评测槽位的私有目录和文件.
+ * 槽位目录和工作目录属于槽位的低权限用户, 且不对其他用户开放, 其他槽位中的程序无法读取或修改;
+ * 测试点目录只有评测机(root)可以访问, 程序只能读到当前测试点的输入.
+ */
+class PrivateFiles {
+    /**
+     * 只有所有者可以访问
+     */
+    static final String OWNER_ONLY = "rwx------";
+
+    /**
+     * 所有者和所属组可以访问
+     */
+    static final String OWNER_AND_GROUP = "rwxrwx---";
+
+    private PrivateFiles() { }
+
+    /**
+     * 创建目录(若不存在), 并设置其所有者和权限.
+     * @param dirFile - 目录
+     * @param systemUsername - 目录的所有者(为null时不改变所有者)
+     * @param permissions - 目录的权限(如rwx------)
+     * @throws IOException
+     */
+    static void createDirectory(File dirFile, String systemUsername, String permissions) throws IOException {
+        if ( Files.isSymbolicLink(dirFile.toPath()) ) {
+            throw new IOException("Refusing to use a symbolic link as a directory: " + dirFile.getPath());
+        }
+        if ( !dirFile.isDirectory() && !dirFile.mkdirs() ) {
+            throw new IOException("Failed to create directory: " + dirFile.getPath());
+        }
+        setOwner(dirFile, systemUsername, permissions);
+    }
+
+    /**
+     * 创建只有评测机(当前用户)可以访问的目录.
+     * 目录已存在时, 若其为符号链接或属于其他用户则拒绝使用, 以免其他用户替换其中的文件.
+     * @param dirFile - 目录
+     * @throws IOException
+     */
+    static void createOwnDirectory(File dirFile) throws IOException {
+        Path dirPath = dirFile.toPath();
+        if ( Files.exists(dirPath, LinkOption.NOFOLLOW_LINKS) ) {
+            if ( !Files.isDirectory(dirPath, LinkOption.NOFOLLOW_LINKS) ) {
+                throw new IOException("Refusing to use a non-directory as a directory: " + dirFile.getPath());
+            }
+            String owner = Files.getOwner(dirPath, LinkOption.NOFOLLOW_LINKS).getName();
+            if ( !owner.equals(System.getProperty("user.name")) ) {
+                throw new IOException(String.format("Refusing to use %s owned by %s",
+                        new Object[] { dirFile.getPath(), owner }));
+            }
+        }
+        createDirectory(dirFile, null, OWNER_ONLY);
+    }
+
+    /**
+     * 设置文件的所有者和权限(不跟随符号链接). 在Windows下不做任何操作.
+     * @param file - 文件或目录
+     * @param systemUsername - 文件的所有者(为null时不改变所有者)
+     * @param permissions - 文件的权限(如rwx------)
+     * @throws IOException
+     */
+    static void setOwner(File file, String systemUsername, String permissions) throws IOException {
+        if ( System.getProperty("os.name").contains("Windows") ) {
+            return;
+        }
+        if ( systemUsername != null ) {
+            UserPrincipal owner = FileSystems.getDefault().getUserPrincipalLookupService()
+                    .lookupPrincipalByName(systemUsername);
+            Files.setAttribute(file.toPath(), "posix:owner", owner, LinkOption.NOFOLLOW_LINKS);
+        }
+        Files.setPosixFilePermissions(file.toPath(), PosixFilePermissions.fromString(permissions));
+    }
+}
@@ -1,59 +1,77 @@
 package cn.edu.buaa.judger.core;
 
-import cn.edu.buaa.judger.mapper.LanguageMapper;
-import cn.edu.buaa.judger.mapper.ProblemMapper;
 import cn.edu.buaa.judger.model.Language;
 import cn.edu.buaa.judger.model.Problem;
-import cn.edu.buaa.judger.model.Submission;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
+/**
+ * 程序运行器.
+ * 通过judger.sandbox配置项选择的沙箱后端运行程序(编译命令或用户程序).
+ */
 @Component
 public class Runner {
     private static final Logger LOGGER = LoggerFactory.getLogger(Runner.class);
 
     /**
-     * 登录操作系统的用户名.
-     * 为了安全, 我们建议评测程序以低权限的用户运行.
+     * 使用的沙箱后端的名称(jni, cgroup或forkserver)
      */
-    @Value("${system.username}")
-    private String systemUsername;
-
-    /**
-     * 登录操作系统的密码.
-     * 为了安全, 我们建议评测程序以低权限的用户运行.
-     */
-    @Value("${system.password}")
-    private String systemPassword;
+    @Value("${judger.sandbox:jni}")
+    private String sandboxName;
 
     @Autowired
-    private LanguageMapper languageMapper;
+    private List<SandboxBackend> sandboxBackends;
 
     @Autowired
-    private ProblemMapper problemMapper;
+    private JavaRunnerPool javaRunnerPool;
+
+    /**
+     * 使用的沙箱后端
+     */
+    private SandboxBackend sandboxBackend;
 
+    /**
+     * 根据配置选择沙箱后端.
+     */
+    @PostConstruct
+    private void initialize() {
+        for ( SandboxBackend backend : sandboxBackends ) {
+            if ( backend.getName().equalsIgnoreCase(sandboxName.trim()) ) {
+                sandboxBackend = backend;
+            }
+        }
+        if ( sandboxBackend == null ) {
+            throw new IllegalStateException("Unknown sandbox backend: " + sandboxName);
+        }
+        LOGGER.info("Using sandbox backend: " + sandboxBackend.getName());
+    }
 
     /**
      * 获取程序运行（编译）结果.
+     * 程序将以评测槽位对应的低权限用户运行, 标准错误输出同样写入输出文件(编译日志).
      * @param commandLine - 待执行程序的命令行
+     * @param slot - 评测槽位
      * @param inputFilePath - 输入文件路径(可为NULL)
      * @param outputFilePath - 输出文件路径(可为NULL)
      * @param timeLimit - 时间限制(单位ms, 0表示不限制)
      * @param memoryLimit - 内存限制(单位KB, 0表示不限制)
      * @return 一个包含程序运行结果的Map<String, Object>对象
      */
-    public Map<String, Object> getRuntimeResult(String commandLine, String inputFilePath,
+    public Map<String, Object> getRuntimeResult(String commandLine, JudgeSlot slot, String inputFilePath,
                                                 String outputFilePath, int timeLimit, int memoryLimit) {
         Map<String, Object> result = null;
         try {
-            result = getRuntimeResult(commandLine, systemUsername, systemPassword,
-                    inputFilePath, outputFilePath, timeLimit, memoryLimit);
+            result = sandboxBackend.getRuntimeResult(commandLine, slot, inputFilePath, outputFilePath,
+                    true, timeLimit, memoryLimit, -1);
         } catch ( Exception ex ) {
             ex.printStackTrace();
         }
@@ -63,32 +81,35 @@ public class Runner {
     /**
      * 获取(用户)程序运行结果.
      *
-     * @param submission - 评测记录对象
-     * @param workDirectory - 编译生成结果的目录以及程序输出的目录
-     * @param baseFileName - 待执行的应用程序文件名(不包含文件后缀)
+     * @param context - 评测上下文
+     * @param slot - 评测槽位
      * @param inputFilePath - 输入文件路径
      * @param outputFilePath - 输出文件路径
+     * @param cpu - 程序绑定的CPU核心编号(负数表示不绑定)
      * @return 一个包含程序运行结果的Map<String, Object>对象
      */
-    public Map<String, Object> getRuntimeResult(Submission submission, String workDirectory,
-                                                String baseFileName, String inputFilePath, String outputFilePath) {
-        String commandLine = getRunCommand(submission, workDirectory, baseFileName);
-        int timeLimit = getTimeLimit(submission);
-        int memoryLimit = getMemoryLimit(submission);
+    public Map<String, Object> getRuntimeResult(JudgeContext context, JudgeSlot slot,
+                                                String inputFilePath, String outputFilePath, int cpu) {
+        String commandLine = context.getRunCommand();
+        int timeLimit = context.getTimeLimit();
+        int memoryLimit = context.getMemoryLimit();
         Map<String, Object> result = new HashMap<>();
         String runtimeResultSlug = "SE";
         int usedTime = 0;
         int usedMemory = 0;
         try {
             LOGGER.info(String.format("[Submission #%d] Start running with command %s (TimeLimit=%d, MemoryLimit=%s)",
-                    new Object[] { submission.getSubmissionId(), commandLine, timeLimit, memoryLimit }));
-            Map<String, Object> runtimeResult = getRuntimeResult(commandLine,
-                    systemUsername, systemPassword, inputFilePath, outputFilePath,
-                    timeLimit, memoryLimit);
+                    new Object[] { context.getSubmissionId(), commandLine, timeLimit, memoryLimit }));
+            boolean isJavaRunnerPoolUsed = isJavaRunnerPoolUsed(context.getLanguage());
+            Map<String, Object> runtimeResult = isJavaRunnerPoolUsed ?
+                    javaRunnerPool.getRuntimeResult(context, slot, inputFilePath, outputFilePath) :
+                    sandboxBackend.getRuntimeResult(commandLine, slot, inputFilePath, outputFilePath,
+                            false, timeLimit, memoryLimit, cpu);
             int exitCode = (int) runtimeResult.get("exitCode");
             usedTime = (int) runtimeResult.get("usedTime");
             usedMemory = (int) runtimeResult.get("usedMemory");
-            runtimeResultSlug = getRuntimeResultSlug(exitCode, timeLimit, usedTime, memoryLimit, usedMemory);
+            runtimeResultSlug = getRuntimeResultSlug(exitCode, timeLimit, usedTime, memoryLimit, usedMemory,
+                    isJavaRunnerPoolUsed || sandboxBackend.isUsageMeasuredAfterExit());
         } catch ( Exception ex ) {
             ex.printStackTrace();
         }
@@ -98,8 +119,71 @@ public class Runner {
         return result;
     }
 
+    /**
+     * 是否可以一次运行(用户)程序的多个测试点.
+     * 使用预先启动的JVM或沙箱后端不支持批量运行时, getRuntimeResults实际逐个运行测试点.
+     * @param context - 评测上下文
+     * @return 是否可以一次运行多个测试点
+     */
+    public boolean isBatchSupported(JudgeContext context) {
+        return !isJavaRunnerPoolUsed(context.getLanguage()) && sandboxBackend.isBatchSupported();
+    }
+
+    /**
+     * 使用一个CPU核心依次运行(用户)程序的多个测试点.
+     * 沙箱后端可以一次完成所有测试点的运行(如JNI的批量运行方法), 从而减少每个测试点的开销;
+     * 使用预先启动的JVM时逐个运行.
+     * @param context - 评测上下文
+     * @param slot - 评测槽位
+     * @param inputFilePaths - 各测试点的输入文件路径
+     * @param outputFilePaths - 各测试点的输出文件路径
+     * @param cpu - 程序绑定的CPU核心编号(负数表示不绑定)
+     * @return 各测试点的运行结果
+     */
+    public List<Map<String, Object>> getRuntimeResults(JudgeContext context, JudgeSlot slot,
+                                                       String[] inputFilePaths, String[] outputFilePaths, int cpu) {
+        if ( isJavaRunnerPoolUsed(context.getLanguage()) ) {
+            List<Map<String, Object>> results = new ArrayList<>(inputFilePaths.length);
+            for ( int i = 0; i < inputFilePaths.length; ++ i ) {
+                results.add(getRuntimeResult(context, slot, inputFilePaths[i], outputFilePaths[i], cpu));
+            }
+            return results;
+        }
+        String commandLine = context.getRunCommand();
+        int timeLimit = context.getTimeLimit();
+        int memoryLimit = context.getMemoryLimit();
+        int[] runtimeResults = null;
+        try {
+            LOGGER.info(String.format("[Submission #%d] Start running %d checkpoints with command %s (TimeLimit=%d, MemoryLimit=%s)",
+                    new Object[] { context.getSubmissionId(), inputFilePaths.length, commandLine, timeLimit, memoryLimit }));
+            runtimeResults = sandboxBackend.getRuntimeResults(commandLine, slot, inputFilePaths, outputFilePaths,
+                    timeLimit, memoryLimit, cpu);
+        } catch ( Exception ex ) {
+            ex.printStackTrace();
+        }
+        List<Map<String, Object>> results = new ArrayList<>(inputFilePaths.length);
+        for ( int i = 0; i < inputFilePaths.length; ++ i ) {
+            Map<String, Object> result = new HashMap<>();
+            String runtimeResultSlug = "SE";
+            int usedTime = 0;
+            int usedMemory = 0;
+            if ( runtimeResults != null ) {
+                usedTime = runtimeResults[i * 3 + 1];
+                usedMemory = runtimeResults[i * 3 + 2];
+                runtimeResultSlug = getRuntimeResultSlug(runtimeResults[i * 3], timeLimit, usedTime,
+                        memoryLimit, usedMemory, sandboxBackend.isUsageMeasuredAfterExit());
+            }
+            result.put("runtimeResult", runtimeResultSlug);
+            result.put("usedTime", usedTime);
+            result.put("usedMemory", usedMemory);
+            results.add(result);
+        }
+        return results;
+    }
+
     /**
      * 获取程序运行（编译）结果.
+     * 由JniSandboxBackend调用, JNI库中的符号名与该方法绑定.
      * @param commandLine - 待执行程序的命令行
      * @param systemUsername - 登录操作系统的用户名
      * @param systemPassword - 登录操作系统的密码
@@ -113,16 +197,31 @@ public class Runner {
                                                        String systemPassword, String inputFilePath,
                                                        String outputFilePath, int timeLimit, int memoryLimit);
 
+    /**
+     * 使用相同的限制依次运行程序的多个测试点.
+     * 由JniSandboxBackend调用, 所有测试点只需一次JNI调用以及一次命令行解析和用户认证.
+     * 旧版本的JNI库不提供该方法, 此时调用将抛出UnsatisfiedLinkError.
+     * @param commandLine - 待执行程序的命令行
+     * @param systemUsername - 登录操作系统的用户名
+     * @param systemPassword - 登录操作系统的密码
+     * @param inputFilePaths - 各测试点的输入文件路径
+     * @param outputFilePaths - 各测试点的输出文件路径
+     * @param timeLimit - 时间限制(单位ms, 0表示不限制)
+     * @param memoryLimit - 内存限制(单位KB, 0表示不限制)
+     * @return 依次包含各测试点的exitCode, usedTime, usedMemory的数组(长度为测试点数量的3倍)
+     */
+    public native int[] getRuntimeResults(String commandLine, String systemUsername,
+                                          String systemPassword, String[] inputFilePaths,
+                                          String[] outputFilePaths, int timeLimit, int memoryLimit);
+
     /**
      * 获取待执行的命令行
-     * @param submission - 评测记录对象
+     * @param language - 编程语言对象
      * @param workDirectory - 编译生成结果的目录以及程序输出的目录
      * @param baseFileName - 待执行的应用程序文件名(不包含文件后缀)
      * @return 待执行的命令行
      */
-    private String getRunCommand(Submission submission,
-                                 String workDirectory, String baseFileName) {
-        Language language = languageMapper.getLanguageById(submission.getLanguageId());
+    public String getRunCommand(Language language, String workDirectory, String baseFileName) {
         String filePathWithoutExtension = String.format("%s/%s",
                 new Object[] {workDirectory, baseFileName});
         StringBuilder runCommand = new StringBuilder(language.getRunCommand()
@@ -137,27 +236,36 @@ public class Runner {
     }
 
     /**
-     * 根据不同语言获取最大时间限制
-     * @param submission - 评测记录对象
+     * 根据不同语言获取最大时间限制.
+     * 使用运行命令的Java程序每次运行都需启动JVM, 因此时间限制加倍;
+     * 使用预先启动的JVM运行时不再加倍.
+     * @param language - 编程语言对象
+     * @param problem - 试题对象
      * @return 最大时间限制
      */
-    private int getTimeLimit(Submission submission) {
-        Problem problem = problemMapper.getProblemById(submission.getProblemId());
-        Language language = languageMapper.getLanguageById(submission.getLanguageId());
+    public int getTimeLimit(Language language, Problem problem) {
         int timeLimit = problem.getTimeLimit();
-        if ( language.getLanguageName().equalsIgnoreCase("Java") ) {
+        if ( language.getLanguageName().equalsIgnoreCase("Java") && !isJavaRunnerPoolUsed(language) ) {
             timeLimit *= 2;
         }
         return timeLimit;
     }
 
+    /**
+     * 判断编程语言是否使用预先启动的JVM运行.
+     * @param language - 编程语言对象
+     * @return 编程语言的运行方式为jvm-pool时返回true
+     */
+    private boolean isJavaRunnerPoolUsed(Language language) {
+        return JavaRunnerPool.NAME.equalsIgnoreCase(language.getRunBackend());
+    }
+
     /**
      * 根据不同语言获取最大空间限制.
-     * @param submission - 评测记录对象
+     * @param problem - 试题对象
      * @return 最大空间限制
      */
-    private int getMemoryLimit(Submission submission) {
-        Problem problem = problemMapper.getProblemById(submission.getProblemId());
+    public int getMemoryLimit(Problem problem) {
         int memoryLimit = problem.getMemoryLimit();
         return memoryLimit;
     }
@@ -169,9 +277,18 @@ public class Runner {
      * @param timeUsed - 程序运行所用时间
      * @param memoryLimit - 最大空间限制
      * @param memoryUsed - 程序运行所用空间(最大值)
+     * @param isUsageMeasuredAfterExit - 资源占用是否在程序结束后统计(预先启动的JVM或fork-server),
+     *                                   此时超出限制的程序仍可能正常退出
      * @return 程序运行结果的唯一英文缩写
      */
-    private String getRuntimeResultSlug(int exitCode, int timeLimit, int timeUsed, int memoryLimit, int memoryUsed) {
+    private String getRuntimeResultSlug(int exitCode, int timeLimit, int timeUsed, int memoryLimit, int memoryUsed,
+                                        boolean isUsageMeasuredAfterExit) {
+        if ( isUsageMeasuredAfterExit && timeLimit > 0 && timeUsed > timeLimit ) {
+            return "TLE";
+        }
+        if ( isUsageMeasuredAfterExit && memoryLimit > 0 && memoryUsed > memoryLimit ) {
+            return "MLE";
+        }
         if ( exitCode == 0 ) {
             // Output will be compared in next stage
             return "AC";
@@ -0,0 +1,81 @@
+package cn.edu.buaa.judger.core;
+
+import java.util.Map;
+
+/**
+ * 沙箱后端.
+ * 以评测槽位对应的低权限用户运行程序, 并限制和统计程序使用的时间和内存.
+ * 由Runner根据judger.sandbox配置项选择使用的沙箱后端.
+ */
+public interface SandboxBackend {
+    /**
+     * 获取沙箱后端的名称(judger.sandbox配置项的值).
+     * @return 沙箱后端的名称
+     */
+    String getName();
+
+    /**
+     * 沙箱后端是否只在程序结束后(或定期)统计资源占用.
+     * 此时超出限制的程序仍可能在被终止前正常退出, Runner将按统计的资源占用判定TLE或MLE.
+     * @return 默认为false, 即程序超出限制时由沙箱终止
+     */
+    default boolean isUsageMeasuredAfterExit() {
+        return false;
+    }
+
+    /**
+     * 沙箱后端是否真正批量运行测试点(getRuntimeResults不是逐个调用getRuntimeResult).
+     * 不支持时评测机逐个运行测试点, 每个测试点运行前才创建其输入输出管道.
+     * @return 默认为false
+     */
+    default boolean isBatchSupported() {
+        return false;
+    }
+
+    /**
+     * 获取程序运行（编译）结果.
+     * 编译时输出文件同时接收标准输出和标准错误输出(即编译日志); 运行用户程序时丢弃标准错误输出,
+     * 以免其混入用户输出.
+     * @param commandLine - 待执行程序的命令行
+     * @param slot - 评测槽位
+     * @param inputFilePath - 输入文件路径(可为NULL)
+     * @param outputFilePath - 输出文件路径(可为NULL)
+     * @param isErrorMerged - 标准错误输出是否写入输出文件(为false时丢弃)
+     * @param timeLimit - 时间限制(单位ms, 0表示不限制)
+     * @param memoryLimit - 内存限制(单位KB, 0表示不限制)
+     * @param cpu - 程序绑定的CPU核心编号(负数表示不绑定)
+     * @return 一个包含程序运行结果的Map<String, Object>对象(exitCode, usedTime, usedMemory)
+     * @throws Exception
+     */
+    Map<String, Object> getRuntimeResult(String commandLine, JudgeSlot slot, String inputFilePath,
+                                         String outputFilePath, boolean isErrorMerged, int timeLimit,
+                                         int memoryLimit, int cpu) throws Exception;
+
+    /**
+     * 使用相同的限制依次运行程序的多个测试点.
+     * 默认逐个调用getRuntimeResult, 沙箱后端可覆盖该方法以减少每个测试点的开销.
+     * 只用于运行用户程序, 标准错误输出被丢弃.
+     * @param commandLine - 待执行程序的命令行
+     * @param slot - 评测槽位
+     * @param inputFilePaths - 各测试点的输入文件路径
+     * @param outputFilePaths - 各测试点的输出文件路径
+     * @param timeLimit - 时间限制(单位ms, 0表示不限制)
+     * @param memoryLimit - 内存限制(单位KB, 0表示不限制)
+     * @param cpu - 程序绑定的CPU核心编号(负数表示不绑定)
+     * @return 依次包含各测试点的exitCode, usedTime, usedMemory的数组(长度为测试点数量的3倍)
+     * @throws Exception
+     */
+    default int[] getRuntimeResults(String commandLine, JudgeSlot slot, String[] inputFilePaths,
+                                    String[] outputFilePaths, int timeLimit, int memoryLimit,
+                                    int cpu) throws Exception {
+        int[] results = new int[inputFilePaths.length * 3];
+        for ( int i = 0; i < inputFilePaths.length; ++ i ) {
+            Map<String, Object> result = getRuntimeResult(commandLine, slot, inputFilePaths[i],
+                    outputFilePaths[i], false, timeLimit, memoryLimit, cpu);
+            results[i * 3] = (int) result.get("exitCode");
+            results[i * 3 + 1] = (int) result.get("usedTime");
+            results[i * 3 + 2] = (int) result.get("usedMemory");
+        }
+        return results;
+    }
+}
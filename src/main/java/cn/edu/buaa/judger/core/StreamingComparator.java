@@ -0,0 +1,257 @@
+package cn.edu.buaa.judger.core;
+
+import cn.edu.buaa.judger.model.JudgePolicy;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * 流式比对用户输出.
+ * 程序的标准输出被重定向至评测机创建的命名管道(FIFO), 评测机在程序运行的同时读取管道并与标准输出增量比对,
+ * 用户输出既不写入磁盘, 也无需在比对阶段重新读取.
+ * 输出长度超出judger.output.limit时评测机关闭管道(程序随后因SIGPIPE退出), 评测结果为OLE.
+ * 对于judger.output.stopOnMismatch中的评测策略, 用户输出一旦确定与标准输出不同即关闭管道, 评测结果为WA,
+ * 使错误的程序尽早结束并释放评测槽位.
+ *
+ * 所有沙箱后端均以普通文件的方式打开输出文件路径, 因此无需区分输出是否为管道.
+ * judger.output.streaming为false时用户输出仍写入文件, 以便调试.
+ */
+@Component
+public class StreamingComparator {
+    private static final Logger LOGGER = LoggerFactory.getLogger(StreamingComparator.class);
+
+    /**
+     * 比对结果: 输出相同, 输出不同, 输出超出长度限制
+     */
+    public static final String RESULT_ACCEPTED = "AC";
+
+    public static final String RESULT_WRONG_ANSWER = "WA";
+
+    public static final String RESULT_OUTPUT_LIMIT_EXCEEDED = "OLE";
+
+    /**
+     * 每次从管道中读取的最大长度
+     */
+    private static final int BUFFER_SIZE = 65536;
+
+    /**
+     * 程序结束后等待管道中剩余输出读取完成的时间限制(单位ms).
+     * 超时说明程序创建的子进程仍持有管道, 此时以已读取的输出作为比对依据.
+     */
+    private static final long DRAIN_TIMEOUT = 1000;
+
+    /**
+     * 是否流式比对用户输出
+     */
+    @Value("${judger.output.streaming}")
+    private boolean isEnabled;
+
+    /**
+     * 用户输出的长度限制(字节, 不大于0时不限制)
+     */
+    @Value("${judger.output.limit}")
+    private long outputLimit;
+
+    /**
+     * 输出确定不同时立即停止程序的评测策略(逗号分隔)
+     */
+    @Value("${judger.output.stopOnMismatch:}")
+    private String stopOnMismatch;
+
+    /**
+     * 输出确定不同时立即停止程序的评测策略
+     */
+    private final Set<JudgePolicy> stopOnMismatchPolicies = EnumSet.noneOf(JudgePolicy.class);
+
+    /**
+     * 读取管道的线程.
+     * 每个管道由一个线程读取: 批量运行测试点时各管道依次被程序打开, 需同时等待.
+     */
+    private final ExecutorService readerExecutor = Executors.newCachedThreadPool(runnable -> {
+        Thread thread = new Thread(runnable, "output-reader");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    @PostConstruct
+    private void initialize() {
+        for ( String policyName : stopOnMismatch.split(",") ) {
+            JudgePolicy judgePolicy = JudgePolicy.of(policyName);
+            if ( judgePolicy != null ) {
+                stopOnMismatchPolicies.add(judgePolicy);
+            } else if ( !policyName.trim().isEmpty() ) {
+                LOGGER.warn("Unknown judge policy in judger.output.stopOnMismatch: " + policyName);
+            }
+        }
+    }
+
+    @PreDestroy
+    private void destroy() {
+        readerExecutor.shutdownNow();
+    }
+
+    /**
+     * 是否流式比对用户输出.
+     * @return judger.output.streaming的值
+     */
+    public boolean isEnabled() {
+        return isEnabled;
+    }
+
+    /**
+     * 输出确定不同时是否立即停止程序.
+     * @param judgePolicy - 评测策略
+     * @return 评测策略是否包含在judger.output.stopOnMismatch中
+     */
+    public boolean isStoppedOnMismatch(JudgePolicy judgePolicy) {
+        return stopOnMismatchPolicies.contains(judgePolicy);
+    }
+
+    /**
+     * 创建命名管道, 并开始读取和比对各管道中的用户输出.
+     * 程序运行结束后需调用OutputPipe.finish()获取比对结果.
+     * @param pipeFilePaths - 各管道的路径
+     * @param systemUsername - 评测槽位的低权限用户名(管道的所有者)
+     * @param standardOutputs - 各管道对应的标准输出
+     * @param isStoppedOnMismatch - 输出确定不同时是否立即关闭管道以停止程序
+     * @return 各管道对象
+     * @throws IOException - 无法创建管道
+     */
+    public List<OutputPipe> open(String[] pipeFilePaths, String systemUsername, ByteBuffer[] standardOutputs,
+                                 boolean isStoppedOnMismatch) throws IOException {
+        NamedPipes.create(pipeFilePaths, systemUsername);
+        List<OutputPipe> pipes = new ArrayList<>(pipeFilePaths.length);
+        for ( int i = 0; i < pipeFilePaths.length; ++ i ) {
+            OutputPipe pipe = new OutputPipe(pipeFilePaths[i], new OutputComparison(standardOutputs[i]),
+                    isStoppedOnMismatch);
+            pipe.reader = readerExecutor.submit(pipe::read);
+            pipes.add(pipe);
+        }
+        return pipes;
+    }
+
+    /**
+     * 用户输出的命名管道
+     */
+    public class OutputPipe {
+        private final String pipeFilePath;
+
+        /**
+         * 用户输出和标准输出的增量比对(由读取线程和finish()共同访问, 需同步)
+         */
+        private final OutputComparison comparison;
+
+        /**
+         * 输出确定不同时是否立即关闭管道
+         */
+        private final boolean isStoppedOnMismatch;
+
+        private volatile boolean isOutputLimitExceeded = false;
+
+        /**
+         * 是否因输出确定不同而提前关闭了管道
+         */
+        private volatile boolean isStopped = false;
+
+        private Future<?> reader;
+
+        OutputPipe(String pipeFilePath, OutputComparison comparison, boolean isStoppedOnMismatch) {
+            this.pipeFilePath = pipeFilePath;
+            this.comparison = comparison;
+            this.isStoppedOnMismatch = isStoppedOnMismatch;
+        }
+
+        /**
+         * 获取管道的路径(作为程序的输出文件路径).
+         * @return 管道的路径
+         */
+        public String getPipeFilePath() {
+            return pipeFilePath;
+        }
+
+        /**
+         * 是否因输出确定不同而提前关闭了管道.
+         * 此时程序的退出状态(如因SIGPIPE退出)不再代表程序自身的运行结果.
+         * @return 是否因输出确定不同而提前关闭了管道
+         */
+        public boolean isStopped() {
+            return isStopped;
+        }
+
+        /**
+         * 在程序运行结束后获取比对结果.
+         * @return 比对结果(AC, WA或OLE)
+         */
+        public String finish() {
+            try {
+                NamedPipes.await(pipeFilePath, reader, DRAIN_TIMEOUT);
+            } catch ( TimeoutException ex ) {
+                LOGGER.warn("Output pipe is still held after the program exited: " + pipeFilePath);
+                reader.cancel(true);
+            } catch ( InterruptedException ex ) {
+                Thread.currentThread().interrupt();
+                reader.cancel(true);
+            } catch ( ExecutionException ex ) {
+                ex.printStackTrace();
+            }
+            if ( isOutputLimitExceeded ) {
+                return RESULT_OUTPUT_LIMIT_EXCEEDED;
+            }
+            synchronized ( comparison ) {
+                return comparison.isOutputTheSame() ? RESULT_ACCEPTED : RESULT_WRONG_ANSWER;
+            }
+        }
+
+        /**
+         * 读取管道直至程序关闭输出或输出超出长度限制.
+         * 打开管道的读端将阻塞至程序打开写端.
+         */
+        private void read() {
+            try ( FileChannel channel = FileChannel.open(new File(pipeFilePath).toPath(), StandardOpenOption.READ) ) {
+                ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                long length = 0;
+                int count;
+                while ( (count = channel.read(buffer)) >= 0 ) {
+                    length += count;
+                    if ( outputLimit > 0 && length > outputLimit ) {
+                        // 关闭读端后程序继续输出将收到SIGPIPE
+                        isOutputLimitExceeded = true;
+                        return;
+                    }
+                    boolean isMatched;
+                    synchronized ( comparison ) {
+                        isMatched = comparison.update(buffer.array(), 0, count);
+                    }
+                    if ( !isMatched && isStoppedOnMismatch ) {
+                        // 此后的输出不影响比对结果, 关闭读端使程序在下一次输出时因SIGPIPE退出
+                        isStopped = true;
+                        return;
+                    }
+                    buffer.clear();
+                }
+            } catch ( IOException ex ) {
+                if ( !Thread.currentThread().isInterrupted() ) {
+                    ex.printStackTrace();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,106 @@
+package cn.edu.buaa.judger.core;
+
+import cn.edu.buaa.judger.model.Language;
+import org.apache.commons.io.IOUtils;
+import org.springframework.stereotype.Component;
+
+import java.io.File;
+import java.io.InputStream;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 编译工具链.
+ * 用于获取各编程语言编译器的版本信息, 版本信息在首次获取后缓存于内存中,
+ * 编译程序的文件被修改(如升级编译器)后重新获取.
+ */
+@Component
+public class Toolchain {
+    /**
+     * 获取编译器版本信息的超时时间(单位ms)
+     */
+    private static final long VERSION_TIMEOUT = 5000;
+
+    /**
+     * 各编译程序的版本信息
+     */
+    private final Map<String, String> versions = new ConcurrentHashMap<>();
+
+    /**
+     * 获取版本信息时各编译程序文件的最后修改时间
+     */
+    private final Map<String, Long> lastModifiedTimes = new ConcurrentHashMap<>();
+
+    /**
+     * 获取编程语言所使用的编译器的版本信息.
+     * @param language - 编程语言对象
+     * @return 编译器的版本信息, 无法获取时返回"Not Found"
+     */
+    public String getCompilerVersion(Language language) {
+        String compileProgram = getCompileProgram(language.getCompileCommand());
+        long lastModified = getLastModified(compileProgram);
+        Long previousLastModified = lastModifiedTimes.put(compileProgram, lastModified);
+        if ( previousLastModified != null && previousLastModified != lastModified ) {
+            versions.remove(compileProgram);
+        }
+        return versions.computeIfAbsent(compileProgram, this::getVersion);
+    }
+
+    /**
+     * 获取编译程序的命令行.
+     * @param compileCommand - 编译命令的命令行
+     * @return 编译程序的命令行
+     */
+    public String getCompileProgram(String compileCommand) {
+        String command = compileCommand.trim();
+        int firstSpaceIndex = command.indexOf(" ");
+        return firstSpaceIndex < 0 ? command : command.substring(0, firstSpaceIndex);
+    }
+
+    /**
+     * 获取编译程序文件的最后修改时间.
+     * @param compileProgram - 编译程序
+     * @return 编译程序文件的最后修改时间, 无法找到编译程序时返回0
+     */
+    private long getLastModified(String compileProgram) {
+        if ( compileProgram.contains(File.separator) ) {
+            return new File(compileProgram).lastModified();
+        }
+        String path = System.getenv("PATH");
+        if ( path == null ) {
+            return 0;
+        }
+        for ( String directory : path.split(File.pathSeparator) ) {
+            File programFile = new File(directory, compileProgram);
+            if ( programFile.isFile() ) {
+                return programFile.lastModified();
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * 执行编译程序以获取其版本信息.
+     * @param compileProgram - 编译程序
+     * @return 编译程序的版本信息
+     */
+    private String getVersion(String compileProgram) {
+        String versionOption = "javac".equalsIgnoreCase(compileProgram) ? "-version" : "--version";
+        try {
+            Process process = new ProcessBuilder(compileProgram, versionOption)
+                    .redirectErrorStream(true).start();
+            String version;
+            try ( InputStream inputStream = process.getInputStream() ) {
+                version = IOUtils.toString(inputStream, "UTF-8");
+            }
+            if ( !process.waitFor(VERSION_TIMEOUT, TimeUnit.MILLISECONDS) ) {
+                process.destroyForcibly();
+                return "Not Found";
+            }
+            return version.trim();
+        } catch ( Exception ex ) {
+            return "Not Found";
+        }
+    }
+}
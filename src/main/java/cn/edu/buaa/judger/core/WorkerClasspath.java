@@ -0,0 +1,56 @@
+package cn.edu.buaa.judger.core;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.filefilter.TrueFileFilter;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+
+/**
+ * 常驻工作进程(如JavaCompileWorker)的类路径.
+ * 评测机可能以可执行JAR的形式运行, 因此需将工作进程的类文件复制至临时目录.
+ * 工作进程只能使用JDK自身的类以及其静态内部类(不能使用匿名类).
+ */
+class WorkerClasspath {
+    private WorkerClasspath() { }
+
+    /**
+     * 将工作进程的类文件复制至新的临时目录.
+     * @param workerClasses - 工作进程使用的类(包括主类)
+     * @return 类文件所在的临时目录
+     * @throws IOException
+     */
+    static File create(Class<?>... workerClasses) throws IOException {
+        File directory = Files.createTempDirectory("buaaoj-worker").toFile();
+        for ( Class<?> workerClass : workerClasses ) {
+            copyClassFile(workerClass, directory);
+        }
+        // 工作进程可能以低权限用户运行
+        for ( File file : FileUtils.listFilesAndDirs(directory, TrueFileFilter.INSTANCE, TrueFileFilter.INSTANCE) ) {
+            file.setReadable(true, false);
+            file.setExecutable(file.isDirectory(), false);
+        }
+        return directory;
+    }
+
+    /**
+     * 复制类及其内部类的类文件.
+     * @param clazz - 类
+     * @param directory - 目标目录
+     * @throws IOException
+     */
+    private static void copyClassFile(Class<?> clazz, File directory) throws IOException {
+        String classFilePath = clazz.getName().replace('.', '/') + ".class";
+        try ( InputStream inputStream = clazz.getClassLoader().getResourceAsStream(classFilePath) ) {
+            if ( inputStream == null ) {
+                throw new IOException("Class file not found: " + classFilePath);
+            }
+            FileUtils.copyInputStreamToFile(inputStream, new File(directory, classFilePath));
+        }
+        for ( Class<?> innerClass : clazz.getDeclaredClasses() ) {
+            copyClassFile(innerClass, directory);
+        }
+    }
+}
@@ -1,11 +1,32 @@
 package cn.edu.buaa.judger.mapper;
 
-import cn.edu.buaa.judger.model.Checkpoint;
+import cn.edu.buaa.judger.model.CheckpointMetadata;
+import cn.edu.buaa.judger.model.CheckpointStream;
+import org.apache.ibatis.annotations.Param;
+import org.apache.ibatis.session.ResultHandler;
+import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
 
 @Repository
 public interface CheckpointMapper {
-    List<Checkpoint> getProblemCheckpoints(long problemId);
+    /**
+     * 获取试题各测试点的元数据.
+     * 查询结果不包含测试点的输入输出数据, 但数据库需读取全部测试点数据以计算其长度和摘要,
+     * 因此结果按试题缓存; 修改测试点后需发送失效通知(cache为checkpoints, key为试题ID).
+     * @param problemId - 试题ID
+     * @return 按测试点序号排列的测试点元数据
+     */
+    @Cacheable(cacheNames = "checkpoints", unless = "#result == null || #result.isEmpty()")
+    List<CheckpointMetadata> getProblemCheckpointMetadata(long problemId);
+
+    /**
+     * 以流的形式逐个读取试题的测试点数据.
+     * 结果集逐行从数据库读取, 每行读取后立即交由resultHandler处理, 不会将全部测试点数据载入内存.
+     * @param problemId - 试题ID
+     * @param resultHandler - 测试点数据的处理器
+     */
+    void streamProblemCheckpoints(@Param("problemId") long problemId,
+                                  ResultHandler<CheckpointStream> resultHandler);
 }
@@ -0,0 +1,11 @@
+package cn.edu.buaa.judger.mapper;
+
+import cn.edu.buaa.judger.model.Contest;
+import org.springframework.cache.annotation.Cacheable;
+import org.springframework.stereotype.Repository;
+
+@Repository
+public interface ContestMapper {
+    @Cacheable(cacheNames = "contests", unless = "#result == null")
+    Contest getContestById(int contestId);
+}
@@ -1,9 +1,19 @@
 package cn.edu.buaa.judger.mapper;
 
 import cn.edu.buaa.judger.model.JudgeResult;
+import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Repository;
 
+import java.util.List;
+
 @Repository
 public interface JudgeResultMapper {
+    @Cacheable(cacheNames = "judgeResults", unless = "#result == null")
     JudgeResult getJudgeResultBySlug(String judgeResultSlug);
+
+    /**
+     * 获取所有评测结果对象
+     * @return JudgeResult对象列表
+     */
+    List<JudgeResult> getAllJudgeResults();
 }
@@ -1,6 +1,7 @@
 package cn.edu.buaa.judger.mapper;
 
 import cn.edu.buaa.judger.model.Language;
+import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Repository;
 
 import java.util.List;
@@ -12,6 +13,7 @@ public interface LanguageMapper {
      * @param languageId - 编程语言ID
      * @return Language对象
      */
+    @Cacheable(cacheNames = "languages", unless = "#result == null")
     Language getLanguageById(int languageId);
 
     /**
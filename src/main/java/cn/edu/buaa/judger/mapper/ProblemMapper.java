@@ -1,9 +1,11 @@
 package cn.edu.buaa.judger.mapper;
 
 import cn.edu.buaa.judger.model.Problem;
+import org.springframework.cache.annotation.Cacheable;
 import org.springframework.stereotype.Repository;
 
 @Repository
 public interface ProblemMapper {
+    @Cacheable(cacheNames = "problems", unless = "#result == null")
     Problem getProblemById(long problemId);
 }
@@ -0,0 +1,38 @@
+package cn.edu.buaa.judger.mapper.handler;
+
+import org.apache.ibatis.type.BaseTypeHandler;
+import org.apache.ibatis.type.JdbcType;
+
+import java.io.InputStream;
+import java.sql.CallableStatement;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+
+/**
+ * 以二进制流的形式读取文本或二进制列.
+ * 与读取为String相比, 不进行字符解码, 也不在堆中产生UTF-16字符串.
+ * 返回的流仅在结果集停留在当前行时有效, 应在ResultHandler中消费.
+ */
+public class InputStreamTypeHandler extends BaseTypeHandler<InputStream> {
+    @Override
+    public void setNonNullParameter(PreparedStatement ps, int i,
+                                    InputStream parameter, JdbcType jdbcType) throws SQLException {
+        ps.setBinaryStream(i, parameter);
+    }
+
+    @Override
+    public InputStream getNullableResult(ResultSet rs, String columnName) throws SQLException {
+        return rs.getBinaryStream(columnName);
+    }
+
+    @Override
+    public InputStream getNullableResult(ResultSet rs, int columnIndex) throws SQLException {
+        return rs.getBinaryStream(columnIndex);
+    }
+
+    @Override
+    public InputStream getNullableResult(CallableStatement cs, int columnIndex) throws SQLException {
+        throw new SQLException("Streaming from a callable statement is not supported.");
+    }
+}
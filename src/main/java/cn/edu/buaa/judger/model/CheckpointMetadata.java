@@ -0,0 +1,114 @@
+package cn.edu.buaa.judger.model;
+
+/**
+ * 测试点的元数据.
+ * 仅包含测试点的标识、分值、大小和摘要, 不包含输入输出数据本身,
+ * 用于制定评测计划以及判断磁盘上缓存的测试点是否过期.
+ */
+public class CheckpointMetadata {
+    /**
+     * 测试点ID
+     */
+    private long checkpointId;
+
+    /**
+     * 题目ID
+     */
+    private long problemId;
+
+    /**
+     * 指定题目的测试点序号
+     */
+    private int checkpointNumber;
+
+    /**
+     * 通过该测试点所得分值
+     */
+    private int score = Checkpoint.SCORE_PER_CHECKPOINT;
+
+    /**
+     * 标准输入的大小(字节)
+     */
+    private long inputSize;
+
+    /**
+     * 标准输出的大小(字节)
+     */
+    private long outputSize;
+
+    /**
+     * 标准输入的MD5摘要
+     */
+    private String inputHash;
+
+    /**
+     * 标准输出的MD5摘要
+     */
+    private String outputHash;
+
+    public CheckpointMetadata() { }
+
+    public long getCheckpointId() {
+        return checkpointId;
+    }
+
+    public void setCheckpointId(long checkpointId) {
+        this.checkpointId = checkpointId;
+    }
+
+    public long getProblemId() {
+        return problemId;
+    }
+
+    public void setProblemId(long problemId) {
+        this.problemId = problemId;
+    }
+
+    public int getCheckpointNumber() {
+        return checkpointNumber;
+    }
+
+    public void setCheckpointNumber(int checkpointNumber) {
+        this.checkpointNumber = checkpointNumber;
+    }
+
+    public int getScore() {
+        return score;
+    }
+
+    public void setScore(int score) {
+        this.score = score;
+    }
+
+    public long getInputSize() {
+        return inputSize;
+    }
+
+    public void setInputSize(long inputSize) {
+        this.inputSize = inputSize;
+    }
+
+    public long getOutputSize() {
+        return outputSize;
+    }
+
+    public void setOutputSize(long outputSize) {
+        this.outputSize = outputSize;
+    }
+
+    public String getInputHash() {
+        return inputHash;
+    }
+
+    public void setInputHash(String inputHash) {
+        this.inputHash = inputHash;
+    }
+
+    public String getOutputHash() {
+        return outputHash;
+    }
+
+    public void setOutputHash(String outputHash) {
+        this.outputHash = outputHash;
+    }
+}
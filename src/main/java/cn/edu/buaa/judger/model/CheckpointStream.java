@@ -0,0 +1,63 @@
+package cn.edu.buaa.judger.model;
+
+import java.io.InputStream;
+
+/**
+ * 以流的形式读取的测试点数据.
+ * 输入输出数据仅在ResultHandler处理当前行时可读.
+ */
+public class CheckpointStream {
+    /**
+     * 测试点ID
+     */
+    private long checkpointId;
+
+    /**
+     * 指定题目的测试点序号
+     */
+    private int checkpointNumber;
+
+    /**
+     * 测试点的标准输入
+     */
+    private InputStream input;
+
+    /**
+     * 测试点的标准输出
+     */
+    private InputStream output;
+
+    public CheckpointStream() { }
+
+    public long getCheckpointId() {
+        return checkpointId;
+    }
+
+    public void setCheckpointId(long checkpointId) {
+        this.checkpointId = checkpointId;
+    }
+
+    public int getCheckpointNumber() {
+        return checkpointNumber;
+    }
+
+    public void setCheckpointNumber(int checkpointNumber) {
+        this.checkpointNumber = checkpointNumber;
+    }
+
+    public InputStream getInput() {
+        return input;
+    }
+
+    public void setInput(InputStream input) {
+        this.input = input;
+    }
+
+    public InputStream getOutput() {
+        return output;
+    }
+
+    public void setOutput(InputStream output) {
+        this.output = output;
+    }
+}
@@ -0,0 +1,39 @@
+package cn.edu.buaa.judger.model;
+
+public class Contest {
+    /**
+     * 竞赛ID
+     */
+    private int contestId;
+
+    /**
+     * 竞赛的评测策略(ICPC或OI), 为空时使用题目的评测策略
+     */
+    private String judgePolicy;
+
+    public Contest() { }
+
+    public int getContestId() {
+        return contestId;
+    }
+
+    public void setContestId(int contestId) {
+        this.contestId = contestId;
+    }
+
+    public String getJudgePolicy() {
+        return judgePolicy;
+    }
+
+    public void setJudgePolicy(String judgePolicy) {
+        this.judgePolicy = judgePolicy;
+    }
+
+    @Override
+    public String toString() {
+        return "Contest{" +
+                "contestId=" + contestId +
+                ", judgePolicy='" + judgePolicy + '\'' +
+                '}';
+    }
+}
@@ -0,0 +1,33 @@
+package cn.edu.buaa.judger.model;
+
+/**
+ * 评测策略
+ */
+public enum JudgePolicy {
+    /**
+     * ICPC赛制: 遇到第一个未通过的测试点即停止评测, 其余测试点记为跳过
+     */
+    ICPC,
+
+    /**
+     * OI赛制: 运行全部测试点, 按通过的测试点计分
+     */
+    OI;
+
+    /**
+     * 根据评测策略的名称获取评测策略.
+     * @param name - 评测策略的名称(不区分大小写)
+     * @return 评测策略, 名称为空或无效时返回null
+     */
+    public static JudgePolicy of(String name) {
+        if ( name == null ) {
+            return null;
+        }
+        for ( JudgePolicy judgePolicy : values() ) {
+            if ( judgePolicy.name().equalsIgnoreCase(name.trim()) ) {
+                return judgePolicy;
+            }
+        }
+        return null;
+    }
+}
@@ -25,6 +25,20 @@ public class Language {
     @JsonIgnore
     private String runCommand;
 
+    /**
+     * 编程语言的编译方式
+     * 为空时执行编译命令, 为"javax.tools"时使用常驻的Java编译进程(仅适用于Java)
+     */
+    @JsonIgnore
+    private String compileBackend;
+
+    /**
+     * 编程语言的运行方式
+     * 为空时执行运行命令, 为"jvm-pool"时使用预先启动的JVM运行(仅适用于Java)
+     */
+    @JsonIgnore
+    private String runBackend;
+
     /**
      * 编程语言的默认构造方法
      */
@@ -76,6 +90,22 @@ public class Language {
         this.runCommand = runCommand;
     }
 
+    public String getCompileBackend() {
+        return compileBackend;
+    }
+
+    public void setCompileBackend(String compileBackend) {
+        this.compileBackend = compileBackend;
+    }
+
+    public String getRunBackend() {
+        return runBackend;
+    }
+
+    public void setRunBackend(String runBackend) {
+        this.runBackend = runBackend;
+    }
+
     @Override
     public String toString() {
         return "Language{" +
@@ -83,6 +113,8 @@ public class Language {
                 ", languageName='" + languageName + '\'' +
                 ", compileCommand='" + compileCommand + '\'' +
                 ", runCommand='" + runCommand + '\'' +
+                ", compileBackend='" + compileBackend + '\'' +
+                ", runBackend='" + runBackend + '\'' +
                 '}';
     }
 }
@@ -21,6 +21,17 @@ public class Problem {
      */
     private String code;
 
+    /**
+     * 是否允许并行运行该题目的测试点.
+     * 对计时敏感的题目应保持顺序运行.
+     */
+    private boolean parallelCheckpoints;
+
+    /**
+     * 题目的评测策略(ICPC或OI), 为空时使用评测机的默认评测策略
+     */
+    private String judgePolicy;
+
     public Problem() { }
 
     public long getProblemId() {
@@ -54,4 +65,20 @@ public class Problem {
     public void setCode(String code) {
         this.code = code;
     }
+
+    public boolean isParallelCheckpoints() {
+        return parallelCheckpoints;
+    }
+
+    public void setParallelCheckpoints(boolean parallelCheckpoints) {
+        this.parallelCheckpoints = parallelCheckpoints;
+    }
+
+    public String getJudgePolicy() {
+        return judgePolicy;
+    }
+
+    public void setJudgePolicy(String judgePolicy) {
+        this.judgePolicy = judgePolicy;
+    }
 }
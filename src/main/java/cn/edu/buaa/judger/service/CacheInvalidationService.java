@@ -0,0 +1,101 @@
+package cn.edu.buaa.judger.service;
+
+import cn.edu.buaa.judger.config.CacheConfig;
+import cn.edu.buaa.judger.mapper.JudgeResultMapper;
+import cn.edu.buaa.judger.model.JudgeResult;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.cache.Cache;
+import org.springframework.cache.CacheManager;
+import org.springframework.context.event.EventListener;
+import org.springframework.jms.annotation.JmsListener;
+import org.springframework.stereotype.Service;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import java.util.List;
+
+/**
+ * 基础数据缓存的维护.
+ * 评测机启动时预先载入评测结果, 并在收到失效通知时删除对应的缓存项.
+ * 失效通知的格式为MapMessage: cache为缓存名称(languages, problems, checkpoints, contests, judgeResults),
+ * key为缓存项的ID(缺省时清空整个缓存).
+ */
+@Service
+public class CacheInvalidationService {
+    private static final Logger LOGGER = LoggerFactory.getLogger(CacheInvalidationService.class);
+
+    @Autowired
+    private CacheManager cacheManager;
+
+    @Autowired
+    private JudgeResultMapper judgeResultMapper;
+
+    /**
+     * 预先载入所有评测结果.
+     * 数据库不可用时跳过, 评测结果将在首次使用时载入.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void preloadJudgeResults() {
+        try {
+            List<JudgeResult> judgeResults = judgeResultMapper.getAllJudgeResults();
+            Cache cache = cacheManager.getCache(CacheConfig.JUDGE_RESULTS);
+            for ( JudgeResult judgeResult : judgeResults ) {
+                cache.put(judgeResult.getJudgeResultSlug(), judgeResult);
+            }
+            LOGGER.info(String.format("%d judge result(s) preloaded.", new Object[] { judgeResults.size() }));
+        } catch ( Exception ex ) {
+            LOGGER.warn("Failed to preload judge results: " + ex.getMessage());
+        }
+    }
+
+    /**
+     * 接收缓存失效通知.
+     * @param message - 缓存失效通知
+     * @throws JMSException
+     */
+    @JmsListener(destination = "judger_cache_invalidation", containerFactory = "topicListenerContainerFactory")
+    public void receiveMessage(Message message) throws JMSException {
+        if ( !(message instanceof MapMessage) ) {
+            return;
+        }
+        MapMessage mapMessage = (MapMessage) message;
+        String cacheName = mapMessage.getString("cache");
+        Cache cache = cacheName == null ? null : cacheManager.getCache(cacheName);
+        if ( cache == null ) {
+            LOGGER.warn("Invalid cache received: " + cacheName);
+            return;
+        }
+        String key = mapMessage.getString("key");
+        if ( key == null || key.isEmpty() ) {
+            cache.clear();
+            LOGGER.info("Cache cleared: " + cacheName);
+        } else {
+            cache.evict(getCacheKey(cacheName, key));
+            LOGGER.info(String.format("Cache evicted: %s[%s]", new Object[] { cacheName, key }));
+        }
+    }
+
+    /**
+     * 将通知中的ID转换为缓存项的键.
+     * 缓存项的键即为Mapper方法的参数, 其类型与缓存有关.
+     * @param cacheName - 缓存名称
+     * @param key - 缓存项的ID
+     * @return 缓存项的键
+     */
+    private Object getCacheKey(String cacheName, String key) {
+        switch ( cacheName ) {
+            case CacheConfig.LANGUAGES:
+            case CacheConfig.CONTESTS:
+                return Integer.valueOf(key);
+            case CacheConfig.PROBLEMS:
+            case CacheConfig.CHECKPOINTS:
+                return Long.valueOf(key);
+            default:
+                return key;
+        }
+    }
+}
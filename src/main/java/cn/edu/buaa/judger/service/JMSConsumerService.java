@@ -1,32 +1,367 @@
 package cn.edu.buaa.judger.service;
 
+import cn.edu.buaa.judger.application.ApplicationDispatcher;
+import cn.edu.buaa.judger.application.SubmissionPriority;
+import cn.edu.buaa.judger.application.SubmissionScheduler;
+import cn.edu.buaa.judger.exception.IllegalSubmissionException;
+import org.apache.activemq.ActiveMQSession;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
-import org.springframework.jms.annotation.JmsListener;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.jms.connection.SingleConnectionFactory;
 import org.springframework.stereotype.Service;
 
+import javax.annotation.PreDestroy;
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
 import javax.jms.JMSException;
 import javax.jms.MapMessage;
 import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageProducer;
+import javax.jms.Queue;
+import javax.jms.Session;
+import java.util.Enumeration;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
 
+/**
+ * 评测请求的接收.
+ * 评测请求由一个专用的线程(submission-receiver)从消息队列中拉取, 该线程独占一个连接和会话:
+ * JMS会话不是线程安全的, 因此消息的接收、确认和重新发送均在该线程中进行, 评测线程只将评测结果放入队列.
+ * 只有SubmissionScheduler的等待队列中有空闲位置时才拉取新的评测请求(消费者的预取数量为0),
+ * 其余评测请求留在消息队列中, 可由其他评测机接收.
+ * 重新评测使用单独的消息队列(submission_queue中的重新评测被转发至judger_rejudge_queue),
+ * 且只能占用等待队列的一半, 大量重新评测积压时竞赛提交不会排在其后.
+ */
 @Service
 public class JMSConsumerService {
     private static final Logger LOGGER = LoggerFactory.getLogger(JMSConsumerService.class);
 
-    @JmsListener(destination = "submission_queue")
-    public void receiveMessage(Message message){
+    /**
+     * 评测请求的消息队列名称
+     */
+    private static final String DESTINATION_NAME = "submission_queue";
+
+    /**
+     * 重新评测请求的消息队列名称
+     */
+    public static final String REJUDGE_DESTINATION_NAME = "judger_rejudge_queue";
+
+    /**
+     * 记录评测请求已尝试评测次数的消息属性
+     */
+    private static final String ATTEMPTS_PROPERTY = "judgerAttempts";
+
+    /**
+     * 等待新的评测请求或评测结果的时间间隔(单位ms)
+     */
+    private static final long POLL_INTERVAL = 100;
+
+    /**
+     * 连接断开后重新连接的时间间隔(单位ms)
+     */
+    private static final long RECONNECT_INTERVAL = 5000;
+
+    /**
+     * 停止接收线程时等待其结束的时间限制(单位ms)
+     */
+    private static final long STOP_TIMEOUT = 5000;
+
+    /**
+     * 评测请求最多尝试评测的次数.
+     * 因评测机自身的原因评测失败时, 评测请求被重新发送至消息队列, 超出次数后不再重试.
+     */
+    @Value("${judger.jms.maxAttempts}")
+    private int maxAttempts;
+
+    @Autowired
+    private ApplicationDispatcher applicationDispatcher;
+
+    @Autowired
+    private SubmissionScheduler submissionScheduler;
+
+    @Autowired
+    private ConnectionFactory connectionFactory;
+
+    /**
+     * 已结束评测的请求, 由接收线程确认
+     */
+    private final BlockingQueue<Verdict> verdicts = new LinkedBlockingQueue<>();
+
+    /**
+     * 接收评测请求的线程
+     */
+    private Thread receiver;
+
+    private volatile boolean isRunning = false;
+
+    /**
+     * 评测机启动完成后开始接收评测请求.
+     */
+    @EventListener(ApplicationReadyEvent.class)
+    public void start() {
+        isRunning = true;
+        receiver = new Thread(this::receive, "submission-receiver");
+        receiver.setDaemon(true);
+        receiver.start();
+    }
+
+    @PreDestroy
+    private void stop() {
+        isRunning = false;
+        if ( receiver == null ) {
+            return;
+        }
+        try {
+            receiver.join(STOP_TIMEOUT);
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * 接收线程的主循环: 建立连接, 接收评测请求并确认评测结果; 连接断开后重新连接.
+     * 连接断开时未确认的消息将由消息队列重新投递, 此前会话的评测结果不再确认.
+     */
+    private void receive() {
+        while ( isRunning ) {
+            Connection connection = null;
+            try {
+                connection = getTargetConnectionFactory().createConnection();
+                connection.start();
+                Session session = connection.createSession(false, ActiveMQSession.INDIVIDUAL_ACKNOWLEDGE);
+                MessageConsumer consumer = session.createConsumer(
+                        session.createQueue(DESTINATION_NAME + "?consumer.prefetchSize=0"));
+                MessageConsumer rejudgeConsumer = session.createConsumer(
+                        session.createQueue(REJUDGE_DESTINATION_NAME + "?consumer.prefetchSize=0"));
+                Queue rejudgeQueue = session.createQueue(REJUDGE_DESTINATION_NAME);
+                MessageProducer producer = session.createProducer(null);
+                LOGGER.info("Receiving submissions from " + DESTINATION_NAME + " and " + REJUDGE_DESTINATION_NAME);
+                while ( isRunning ) {
+                    Verdict verdict = verdicts.poll();
+                    if ( verdict != null ) {
+                        onVerdict(session, producer, verdict);
+                        continue;
+                    }
+                    // 竞赛和练习提交优先于重新评测
+                    Message message = null;
+                    boolean isFromRejudgeQueue = false;
+                    if ( submissionScheduler.isAccepting(SubmissionPriority.CONTEST) ) {
+                        message = consumer.receiveNoWait();
+                    }
+                    if ( message == null && submissionScheduler.isAccepting(SubmissionPriority.REJUDGE) ) {
+                        message = rejudgeConsumer.receiveNoWait();
+                        isFromRejudgeQueue = message != null;
+                    }
+                    if ( message != null ) {
+                        onMessage(session, producer, rejudgeQueue, message, isFromRejudgeQueue);
+                        continue;
+                    }
+                    verdict = verdicts.poll(POLL_INTERVAL, TimeUnit.MILLISECONDS);
+                    if ( verdict != null ) {
+                        onVerdict(session, producer, verdict);
+                    }
+                }
+            } catch ( JMSException ex ) {
+                LOGGER.warn("Failed to receive submissions, reconnecting in " + RECONNECT_INTERVAL + " ms: " +
+                        ex.getMessage());
+                sleep(RECONNECT_INTERVAL);
+            } catch ( InterruptedException ex ) {
+                break;
+            } finally {
+                close(connection);
+            }
+        }
+    }
+
+    /**
+     * 将评测请求交给SubmissionScheduler.
+     * 消息在评测结果发布后才被确认(见onVerdict), 无效的消息立即确认;
+     * submission_queue中的重新评测请求被转发至重新评测的消息队列后确认.
+     * @param session - 接收消息的会话
+     * @param producer - 当前会话的消息生产者
+     * @param rejudgeQueue - 重新评测请求的消息队列
+     * @param message - 评测请求消息
+     * @param isFromRejudgeQueue - 消息是否来自重新评测请求的消息队列
+     * @throws JMSException
+     */
+    private void onMessage(Session session, MessageProducer producer, Queue rejudgeQueue,
+                           Message message, boolean isFromRejudgeQueue) throws JMSException {
         if( message instanceof MapMessage){
             final MapMessage mapMessage = (MapMessage)message;
-            try {
-                long submissionId = mapMessage.getLong("submissionId");
-                if( submissionId > 0 ){
-                    LOGGER.info("<<<<<<============ 收到待评测消息，submissionId = " + submissionId);
-                } else{
-                    LOGGER.warn("Invalid submissionId received.");
+            long submissionId = mapMessage.getLong("submissionId");
+            if( submissionId > 0 ){
+                boolean isRejudge = isFromRejudgeQueue ||
+                        mapMessage.itemExists("isRejudge") && mapMessage.getBoolean("isRejudge");
+                if ( isRejudge && !isFromRejudgeQueue ) {
+                    producer.send(rejudgeQueue, copy(session, mapMessage, getAttempts(mapMessage)),
+                            message.getJMSDeliveryMode(), message.getJMSPriority(), 0);
+                    message.acknowledge();
+                    return;
                 }
-            } catch (JMSException e) {
-                e.printStackTrace();
+                LOGGER.info("<<<<<<============ 收到待评测消息，submissionId = " + submissionId);
+                long studentId = mapMessage.itemExists("studentId") ? mapMessage.getLong("studentId") : 0;
+                int contestId = mapMessage.itemExists("contestId") ? mapMessage.getInt("contestId") : 0;
+                applicationDispatcher.onSubmissionCreated(submissionId, studentId, contestId, isRejudge)
+                        .whenComplete((result, ex) -> verdicts.add(new Verdict(session, mapMessage, submissionId, ex)));
+                return;
+            } else{
+                LOGGER.warn("Invalid submissionId received.");
+            }
+        }
+        message.acknowledge();
+    }
+
+    /**
+     * 评测结束后确认消息.
+     * 无效的评测记录无法通过重新投递完成评测, 因此同样确认消息;
+     * 因评测机自身的原因评测失败时, 将评测请求重新发送至原消息队列后确认原消息, 超出最大尝试次数后只确认消息.
+     * @param session - 当前的会话
+     * @param producer - 当前会话的消息生产者
+     * @param verdict - 评测结果
+     * @throws JMSException
+     */
+    private void onVerdict(Session session, MessageProducer producer, Verdict verdict) throws JMSException {
+        long submissionId = verdict.getSubmissionId();
+        if ( verdict.getSession() != session ) {
+            // 消息已由消息队列重新投递
+            LOGGER.warn("Submission #" + submissionId + " was received by a closed session, it is not acknowledged.");
+            return;
+        }
+        Throwable ex = verdict.getException();
+        MapMessage message = verdict.getMessage();
+        if ( ex != null && !(ex instanceof IllegalSubmissionException) ) {
+            int attempts = getAttempts(message) + 1;
+            if ( attempts < maxAttempts ) {
+                LOGGER.error(String.format("Failed to judge submission #%d (attempt %d of %d), requeued.",
+                        new Object[] { submissionId, attempts, maxAttempts }), ex);
+                producer.send(message.getJMSDestination(), copy(session, message, attempts),
+                        message.getJMSDeliveryMode(), message.getJMSPriority(), 0);
+            } else {
+                LOGGER.error(String.format("Failed to judge submission #%d after %d attempts, dropped.",
+                        new Object[] { submissionId, attempts }), ex);
             }
+        } else if ( ex != null ) {
+            LOGGER.warn(ex.getMessage());
+        }
+        message.acknowledge();
+    }
+
+    /**
+     * 复制评测请求消息, 用于重新发送.
+     * @param session - 当前的会话
+     * @param message - 评测请求消息
+     * @param attempts - 已尝试评测的次数
+     * @return 新的评测请求消息
+     * @throws JMSException
+     */
+    private MapMessage copy(Session session, MapMessage message, int attempts) throws JMSException {
+        MapMessage copy = session.createMapMessage();
+        Enumeration<?> names = message.getMapNames();
+        while ( names.hasMoreElements() ) {
+            String name = (String) names.nextElement();
+            copy.setObject(name, message.getObject(name));
+        }
+        copy.setIntProperty(ATTEMPTS_PROPERTY, attempts);
+        return copy;
+    }
+
+    /**
+     * 获取评测请求已尝试评测的次数.
+     * @param message - 评测请求消息
+     * @return 已尝试评测的次数
+     * @throws JMSException
+     */
+    private int getAttempts(Message message) throws JMSException {
+        return message.propertyExists(ATTEMPTS_PROPERTY) ? message.getIntProperty(ATTEMPTS_PROPERTY) : 0;
+    }
+
+    /**
+     * 获取底层的连接工厂.
+     * Spring Boot默认提供的连接工厂共享同一个连接并缓存会话, 接收线程需要独占的连接和会话.
+     * @return 连接工厂
+     */
+    private ConnectionFactory getTargetConnectionFactory() {
+        if ( connectionFactory instanceof SingleConnectionFactory ) {
+            ConnectionFactory targetConnectionFactory =
+                    ((SingleConnectionFactory) connectionFactory).getTargetConnectionFactory();
+            if ( targetConnectionFactory != null ) {
+                return targetConnectionFactory;
+            }
+        }
+        return connectionFactory;
+    }
+
+    private void close(Connection connection) {
+        if ( connection == null ) {
+            return;
+        }
+        try {
+            connection.close();
+        } catch ( JMSException ex ) {
+            LOGGER.warn("Failed to close the connection: " + ex.getMessage());
+        }
+    }
+
+    private void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch ( InterruptedException ex ) {
+            Thread.currentThread().interrupt();
+            isRunning = false;
+        }
+    }
+
+    /**
+     * 已结束评测的请求
+     */
+    private static class Verdict {
+        /**
+         * 接收评测请求的会话
+         */
+        private final Session session;
+
+        /**
+         * 评测请求消息
+         */
+        private final MapMessage message;
+
+        /**
+         * 评测记录的唯一标识符
+         */
+        private final long submissionId;
+
+        /**
+         * 评测失败的原因(评测成功时为null)
+         */
+        private final Throwable exception;
+
+        Verdict(Session session, MapMessage message, long submissionId, Throwable exception) {
+            this.session = session;
+            this.message = message;
+            this.submissionId = submissionId;
+            this.exception = exception;
+        }
+
+        Session getSession() {
+            return session;
+        }
+
+        MapMessage getMessage() {
+            return message;
+        }
+
+        long getSubmissionId() {
+            return submissionId;
+        }
+
+        Throwable getException() {
+            return exception;
         }
     }
 }
@@ -0,0 +1,358 @@
+/*
+ * Fork-server launcher of BUAA Online Judge Judger.
+ *
+ * Started as root by ForkServerSandboxBackend with the low-privilege user of
+ * a judge slot as its only argument. It reads requests from stdin and forks
+ * and execs the requested program as that user, so a checkpoint no longer pays
+ * for a full native launch with user switching.
+ *
+ * Every program runs in a new PID namespace below a small init process, so all
+ * processes left behind by the program (including those which called setsid())
+ * are killed when the program exits. The program does not share its uid with
+ * the launcher and cannot stop or kill it.
+ *
+ * Request:  <fieldCount>\n followed by fieldCount fields, each as <length>:<bytes>
+ *           timeLimitMs, memoryLimitKB, cpu, isErrorMerged (0 or 1), inputPath,
+ *           outputPath, argv[0], argv[1], ...
+ * Response: <exitCode> <usedTimeMs> <usedMemoryKB> <spawnLatencyUs>\n
+ *
+ * Fields are length-prefixed, so paths and arguments may contain any byte but
+ * NUL. An empty path means /dev/null. Stderr goes to the output file when
+ * isErrorMerged is 1 (compilers) and to /dev/null otherwise (user programs).
+ * A malformed request ends the launcher, as the stream can not be resynchronized.
+ *
+ * A time or memory limit of 0 means unlimited, a negative cpu means no pinning.
+ * The program is killed when its CPU time reaches the time limit, when its resident
+ * memory exceeds the memory limit or when the wall-clock time exceeds twice the time
+ * limit plus one second (MAX_WALL_TIME_MS without a time limit).
+ */
+#define _GNU_SOURCE
+#include <errno.h>
+#include <fcntl.h>
+#include <sched.h>
+#include <signal.h>
+#include <stdio.h>
+#include <stdlib.h>
+#include <string.h>
+#include <time.h>
+#include <grp.h>
+#include <pwd.h>
+#include <unistd.h>
+#include <sys/prctl.h>
+#include <sys/resource.h>
+#include <sys/syscall.h>
+#include <sys/time.h>
+#include <sys/wait.h>
+
+#define MAX_REQUEST_LENGTH 65536
+#define MAX_ARGUMENTS 256
+#define REQUEST_FIELDS 6
+#define POLL_INTERVAL_NS 5000000L
+#define MAX_WALL_TIME_MS 60000L
+
+/* The low-privilege user which runs the programs */
+static const char *username;
+static uid_t user_id;
+static gid_t group_id;
+
+static long long get_time_us(void) {
+    struct timespec ts;
+    clock_gettime(CLOCK_MONOTONIC, &ts);
+    return ts.tv_sec * 1000000LL + ts.tv_nsec / 1000;
+}
+
+static long get_resident_memory_kb(pid_t pid) {
+    char path[64], line[256];
+    long rss = 0;
+    snprintf(path, sizeof(path), "/proc/%d/status", (int) pid);
+    FILE *file = fopen(path, "r");
+    if ( file == NULL ) {
+        return 0;
+    }
+    while ( fgets(line, sizeof(line), file) != NULL ) {
+        if ( strncmp(line, "VmRSS:", 6) == 0 ) {
+            rss = strtol(line + 6, NULL, 10);
+            break;
+        }
+    }
+    fclose(file);
+    return rss;
+}
+
+static long get_cpu_time_ms(pid_t pid) {
+    char path[64], stat[1024];
+    unsigned long user_time = 0, system_time = 0;
+    snprintf(path, sizeof(path), "/proc/%d/stat", (int) pid);
+    FILE *file = fopen(path, "r");
+    if ( file == NULL ) {
+        return 0;
+    }
+    size_t length = fread(stat, 1, sizeof(stat) - 1, file);
+    fclose(file);
+    stat[length] = '\0';
+    /* The command name may contain spaces, fields are counted after the last ')' */
+    char *fields = strrchr(stat, ')');
+    if ( fields == NULL || sscanf(fields + 2, "%*c %*d %*d %*d %*d %*d %*u %*u %*u %*u %*u %lu %lu",
+                                  &user_time, &system_time) != 2 ) {
+        return 0;
+    }
+    return (long) ((user_time + system_time) * 1000 / sysconf(_SC_CLK_TCK));
+}
+
+/* The first child of a process, the program below the init process of its namespace. */
+static pid_t get_child_pid(pid_t pid) {
+    char path[64];
+    int child = 0;
+    snprintf(path, sizeof(path), "/proc/%d/task/%d/children", (int) pid, (int) pid);
+    FILE *file = fopen(path, "r");
+    if ( file == NULL ) {
+        return 0;
+    }
+    if ( fscanf(file, "%d", &child) != 1 ) {
+        child = 0;
+    }
+    fclose(file);
+    return (pid_t) child;
+}
+
+static void redirect(const char *path, int flags, int fd) {
+    int file = open(path[0] == '\0' ? "/dev/null" : path, flags, 0644);
+    if ( file < 0 ) {
+        _exit(126);
+    }
+    if ( file != fd ) {
+        dup2(file, fd);
+        close(file);
+    }
+}
+
+static void run_program(char **argv, const char *input_path, const char *output_path,
+                        int is_error_merged, long time_limit, int cpu) {
+    sigset_t empty_mask;
+    struct rlimit limit;
+
+    if ( initgroups(username, group_id) != 0 || setgid(group_id) != 0 || setuid(user_id) != 0 ) {
+        _exit(126);
+    }
+    /* Files are opened with the permissions of the user */
+    redirect(input_path, O_RDONLY, STDIN_FILENO);
+    redirect(output_path, O_WRONLY | O_CREAT | O_TRUNC, STDOUT_FILENO);
+    if ( is_error_merged ) {
+        dup2(STDOUT_FILENO, STDERR_FILENO);
+    } else {
+        redirect("", O_WRONLY, STDERR_FILENO);
+    }
+    if ( time_limit > 0 ) {
+        limit.rlim_cur = (time_limit + 999) / 1000 + 1;
+        limit.rlim_max = limit.rlim_cur + 1;
+        setrlimit(RLIMIT_CPU, &limit);
+    }
+    limit.rlim_cur = limit.rlim_max = 0;
+    setrlimit(RLIMIT_CORE, &limit);
+    if ( cpu >= 0 ) {
+        cpu_set_t cpu_set;
+        CPU_ZERO(&cpu_set);
+        CPU_SET(cpu, &cpu_set);
+        sched_setaffinity(0, sizeof(cpu_set), &cpu_set);
+    }
+    sigemptyset(&empty_mask);
+    sigprocmask(SIG_SETMASK, &empty_mask, NULL);
+    execvp(argv[0], argv);
+    _exit(127);
+}
+
+/*
+ * The init process of the namespace of a program. It exits with the status of
+ * the program, and the kernel then kills every other process in the namespace.
+ */
+static void run_init(char **argv, const char *input_path, const char *output_path,
+                     int is_error_merged, long time_limit, int cpu, int exec_pipe) {
+    int status = 0;
+
+    /* The namespace is torn down with the launcher */
+    prctl(PR_SET_PDEATHSIG, SIGKILL);
+    pid_t pid = fork();
+    if ( pid < 0 ) {
+        _exit(126);
+    }
+    if ( pid == 0 ) {
+        run_program(argv, input_path, output_path, is_error_merged, time_limit, cpu);
+    }
+    close(exec_pipe);
+    while ( waitpid(pid, &status, 0) < 0 ) {
+        if ( errno != EINTR ) {
+            _exit(126);
+        }
+    }
+    _exit(WIFEXITED(status) ? WEXITSTATUS(status) : 128 + WTERMSIG(status));
+}
+
+/*
+ * Reads a non-negative decimal number followed by the terminator.
+ * Returns -1 on end of file, on any other character or when the number exceeds max_value.
+ */
+static long read_number(int terminator, long max_value) {
+    long value = 0;
+    int digits = 0;
+    int c;
+
+    while ( (c = getchar()) != EOF ) {
+        if ( c == terminator && digits > 0 ) {
+            return value;
+        }
+        if ( c < '0' || c > '9' ) {
+            return -1;
+        }
+        value = value * 10 + (c - '0');
+        ++ digits;
+        if ( value > max_value ) {
+            return -1;
+        }
+    }
+    return -1;
+}
+
+/*
+ * Reads the fields of a request into the buffer.
+ * Returns the number of fields, 0 on end of file and -1 on a malformed request.
+ */
+static int read_request(char *buffer, char **fields) {
+    long field_count = read_number('\n', REQUEST_FIELDS + MAX_ARGUMENTS);
+    size_t used_length = 0;
+    int i;
+
+    if ( field_count < 0 ) {
+        return feof(stdin) ? 0 : -1;
+    }
+    if ( field_count <= REQUEST_FIELDS ) {
+        return -1;
+    }
+    for ( i = 0; i < field_count; ++ i ) {
+        long length = read_number(':', MAX_REQUEST_LENGTH);
+        if ( length < 0 || used_length + length + 1 > MAX_REQUEST_LENGTH ) {
+            return -1;
+        }
+        fields[i] = buffer + used_length;
+        if ( length > 0 && fread(fields[i], 1, (size_t) length, stdin) != (size_t) length ) {
+            return -1;
+        }
+        fields[i][length] = '\0';
+        if ( strlen(fields[i]) != (size_t) length ) {
+            return -1;
+        }
+        used_length += length + 1;
+    }
+    fields[field_count] = NULL;
+    return (int) field_count;
+}
+
+static void handle_request(char **fields, const sigset_t *child_mask) {
+    char **arguments = fields + REQUEST_FIELDS;
+    long time_limit = strtol(fields[0], NULL, 10);
+    long memory_limit = strtol(fields[1], NULL, 10);
+    int cpu = (int) strtol(fields[2], NULL, 10);
+    int is_error_merged = strcmp(fields[3], "1") == 0;
+
+    /* The pipe is closed by exec, which marks the end of the spawn. */
+    int exec_pipe[2];
+    if ( pipe2(exec_pipe, O_CLOEXEC) != 0 ) {
+        printf("-1 0 0 0\n");
+        return;
+    }
+    long long start_time = get_time_us();
+    /* fork() into a new PID namespace */
+    pid_t pid = (pid_t) syscall(SYS_clone, CLONE_NEWPID | SIGCHLD, NULL, NULL, NULL, NULL);
+    if ( pid < 0 ) {
+        close(exec_pipe[0]);
+        close(exec_pipe[1]);
+        printf("-1 0 0 0\n");
+        return;
+    }
+    if ( pid == 0 ) {
+        close(exec_pipe[0]);
+        run_init(arguments, fields[4], fields[5], is_error_merged, time_limit, cpu, exec_pipe[1]);
+    }
+    close(exec_pipe[1]);
+    char byte;
+    while ( read(exec_pipe[0], &byte, 1) < 0 && errno == EINTR ) { }
+    close(exec_pipe[0]);
+    long long spawn_latency = get_time_us() - start_time;
+    /* Usage is polled on the program itself, the init process only waits */
+    pid_t program_pid = get_child_pid(pid);
+    if ( program_pid <= 0 ) {
+        program_pid = pid;
+    }
+
+    long long deadline = start_time + (time_limit > 0 ? time_limit * 2 + 1000 : MAX_WALL_TIME_MS) * 1000LL;
+    struct timespec poll_interval = { 0, POLL_INTERVAL_NS };
+    struct rusage usage;
+    int status = 0;
+    int is_time_limit_exceeded = 0;
+    int is_memory_limit_exceeded = 0;
+    while ( wait4(pid, &status, WNOHANG, &usage) == 0 ) {
+        if ( get_time_us() >= deadline || (time_limit > 0 && get_cpu_time_ms(program_pid) >= time_limit) ) {
+            is_time_limit_exceeded = 1;
+        } else if ( memory_limit > 0 && get_resident_memory_kb(program_pid) > memory_limit ) {
+            is_memory_limit_exceeded = 1;
+        } else {
+            sigtimedwait(child_mask, NULL, &poll_interval);
+            continue;
+        }
+        /* Killing the init process kills the whole namespace */
+        kill(pid, SIGKILL);
+        wait4(pid, &status, 0, &usage);
+        break;
+    }
+
+    long used_time = usage.ru_utime.tv_sec * 1000 + usage.ru_utime.tv_usec / 1000 +
+                     usage.ru_stime.tv_sec * 1000 + usage.ru_stime.tv_usec / 1000;
+    long used_memory = usage.ru_maxrss;
+    if ( is_time_limit_exceeded && used_time < time_limit ) {
+        used_time = time_limit;
+    }
+    if ( is_memory_limit_exceeded && used_memory < memory_limit ) {
+        used_memory = memory_limit;
+    }
+    int exit_code = WIFEXITED(status) ? WEXITSTATUS(status) : 128 + WTERMSIG(status);
+    printf("%d %ld %ld %lld\n", exit_code, used_time, used_memory, spawn_latency);
+}
+
+int main(int argc, char *argv[]) {
+    static char request[MAX_REQUEST_LENGTH];
+    char *fields[REQUEST_FIELDS + MAX_ARGUMENTS + 1];
+    sigset_t child_mask;
+    int field_count;
+
+    if ( argc != 2 ) {
+        fprintf(stderr, "Usage: %s <username>\n", argv[0]);
+        return 1;
+    }
+    struct passwd *user = getpwnam(argv[1]);
+    if ( user == NULL ) {
+        fprintf(stderr, "Unknown user: %s\n", argv[1]);
+        return 1;
+    }
+    if ( geteuid() != 0 || user->pw_uid == 0 ) {
+        fprintf(stderr, "The launcher must run as root and run programs as another user.\n");
+        return 1;
+    }
+    username = argv[1];
+    user_id = user->pw_uid;
+    group_id = user->pw_gid;
+
+    sigemptyset(&child_mask);
+    sigaddset(&child_mask, SIGCHLD);
+    sigprocmask(SIG_BLOCK, &child_mask, NULL);
+
+    printf("READY\n");
+    fflush(stdout);
+    while ( (field_count = read_request(request, fields)) > 0 ) {
+        handle_request(fields, &child_mask);
+        fflush(stdout);
+    }
+    if ( field_count < 0 ) {
+        fprintf(stderr, "Malformed request.\n");
+        return 1;
+    }
+    return 0;
+}
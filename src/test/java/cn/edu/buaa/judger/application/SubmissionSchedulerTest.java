@@ -0,0 +1,150 @@
+package cn.edu.buaa.judger.application;
+
+import cn.edu.buaa.judger.core.JudgeSlotPool;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.mockito.Mockito;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * SubmissionScheduler的调度顺序测试.
+ * 不启动评测线程, 直接从等待队列中取出评测请求以检查其顺序.
+ * 期望评测时间远大于测试的运行时间, 因此请求到达时间的差异不影响结果.
+ */
+public class SubmissionSchedulerTest {
+    private static final int SLOTS = 4;
+
+    private static final long CONTEST_DEADLINE = 10000;
+
+    private static final long PRACTICE_DEADLINE = 60000;
+
+    private static final long REJUDGE_DEADLINE = 600000;
+
+    private SubmissionScheduler scheduler;
+
+    @BeforeEach
+    public void setUp() {
+        JudgeSlotPool judgeSlotPool = Mockito.mock(JudgeSlotPool.class);
+        Mockito.when(judgeSlotPool.getSlots()).thenReturn(SLOTS);
+
+        scheduler = new SubmissionScheduler();
+        ReflectionTestUtils.setField(scheduler, "capacity", 8);
+        ReflectionTestUtils.setField(scheduler, "contestDeadline", CONTEST_DEADLINE);
+        ReflectionTestUtils.setField(scheduler, "practiceDeadline", PRACTICE_DEADLINE);
+        ReflectionTestUtils.setField(scheduler, "rejudgeDeadline", REJUDGE_DEADLINE);
+        ReflectionTestUtils.setField(scheduler, "judgeSlotPool", judgeSlotPool);
+    }
+
+    @Test
+    public void testEarliestDeadlineFirst() {
+        submit(1, 1, 0, SubmissionPriority.REJUDGE);
+        submit(2, 2, 0, SubmissionPriority.PRACTICE);
+        submit(3, 3, 1, SubmissionPriority.CONTEST);
+
+        assertEquals(1, (int) scheduler.getQueueDepths().get(SubmissionPriority.REJUDGE));
+        assertTakeOrder(3, 2, 1);
+        assertEquals(0, scheduler.getQueueDepth());
+        assertEquals(0, (int) scheduler.getQueueDepths().get(SubmissionPriority.REJUDGE));
+    }
+
+    @Test
+    public void testStudentFairShare() {
+        SubmissionRequest first = submit(1, 1, 0, SubmissionPriority.PRACTICE);
+        SubmissionRequest second = submit(2, 1, 0, SubmissionPriority.PRACTICE);
+        SubmissionRequest third = submit(3, 1, 0, SubmissionPriority.PRACTICE);
+        SubmissionRequest other = submit(4, 2, 0, SubmissionPriority.PRACTICE);
+
+        // 同一学生的请求依次顺延一个期望评测时间
+        assertEquals(first.getArrivalTime() + PRACTICE_DEADLINE, first.getDeadline());
+        assertEquals(first.getDeadline() + PRACTICE_DEADLINE, second.getDeadline());
+        assertEquals(second.getDeadline() + PRACTICE_DEADLINE, third.getDeadline());
+        assertEquals(other.getArrivalTime() + PRACTICE_DEADLINE, other.getDeadline());
+
+        // 后到达的学生不必等待前一学生积压的请求
+        List<Long> order = takeAll();
+        assertTrue(order.indexOf(4L) < order.indexOf(2L));
+        assertEquals(2L, (long) order.get(2));
+        assertEquals(3L, (long) order.get(3));
+    }
+
+    @Test
+    public void testContestFairShare() {
+        List<SubmissionRequest> requests = new ArrayList<>();
+        for ( int i = 1; i <= 6; ++ i ) {
+            requests.add(submit(i, i, 1, SubmissionPriority.CONTEST));
+        }
+        SubmissionRequest other = submit(7, 7, 2, SubmissionPriority.CONTEST);
+
+        // 同一竞赛的请求依次顺延期望评测时间与槽位数量之比
+        for ( int i = 1; i < requests.size(); ++ i ) {
+            assertEquals(requests.get(i - 1).getDeadline() + CONTEST_DEADLINE / SLOTS,
+                    requests.get(i).getDeadline());
+        }
+        assertEquals(other.getArrivalTime() + CONTEST_DEADLINE, other.getDeadline());
+
+        // 其他竞赛的请求排在该竞赛积压的请求之前
+        List<Long> order = takeAll();
+        assertTrue(order.indexOf(7L) < order.indexOf(2L));
+    }
+
+    @Test
+    public void testDeadlinesResetAfterFinished() {
+        SubmissionRequest first = submit(1, 1, 1, SubmissionPriority.CONTEST);
+        takeAll();
+        ReflectionTestUtils.invokeMethod(scheduler, "onFinished", first);
+
+        SubmissionRequest second = submit(2, 1, 1, SubmissionPriority.CONTEST);
+        assertEquals(second.getArrivalTime() + CONTEST_DEADLINE, second.getDeadline());
+    }
+
+    @Test
+    public void testRejudgeCapacity() {
+        for ( int i = 1; i <= 4; ++ i ) {
+            assertTrue(scheduler.isAccepting(SubmissionPriority.REJUDGE));
+            submit(i, i, 0, SubmissionPriority.REJUDGE);
+        }
+        // 重新评测最多占用等待队列的一半
+        assertFalse(scheduler.isAccepting(SubmissionPriority.REJUDGE));
+        assertTrue(scheduler.isAccepting(SubmissionPriority.PRACTICE));
+        assertThrows(RejectedExecutionException.class, () -> submit(5, 5, 0, SubmissionPriority.REJUDGE));
+
+        for ( int i = 6; i <= 9; ++ i ) {
+            submit(i, i, 0, SubmissionPriority.PRACTICE);
+        }
+        assertFalse(scheduler.isAccepting(SubmissionPriority.CONTEST));
+        assertThrows(RejectedExecutionException.class, () -> submit(10, 10, 1, SubmissionPriority.CONTEST));
+        assertEquals(8, scheduler.getQueueDepth());
+    }
+
+    private SubmissionRequest submit(long submissionId, long studentId, int contestId, SubmissionPriority priority) {
+        SubmissionRequest request = new SubmissionRequest(submissionId, studentId, contestId, priority);
+        scheduler.submit(request);
+        return request;
+    }
+
+    private List<Long> takeAll() {
+        List<Long> order = new ArrayList<>();
+        while ( scheduler.getQueueDepth() > 0 ) {
+            SubmissionRequest request = ReflectionTestUtils.invokeMethod(scheduler, "take");
+            order.add(request.getSubmissionId());
+        }
+        return order;
+    }
+
+    private void assertTakeOrder(long... submissionIds) {
+        List<Long> order = takeAll();
+        assertEquals(submissionIds.length, order.size());
+        for ( int i = 0; i < submissionIds.length; ++ i ) {
+            assertEquals(submissionIds[i], (long) order.get(i));
+        }
+    }
+}
@@ -0,0 +1,211 @@
+package cn.edu.buaa.judger.core;
+
+import cn.edu.buaa.judger.config.CacheConfig;
+import cn.edu.buaa.judger.mapper.CheckpointMapper;
+import cn.edu.buaa.judger.model.CheckpointMetadata;
+import cn.edu.buaa.judger.model.CheckpointStream;
+import org.apache.ibatis.executor.result.DefaultResultContext;
+import org.apache.ibatis.session.ResultHandler;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.cache.CacheManager;
+import org.springframework.cache.concurrent.ConcurrentMapCacheManager;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.util.DigestUtils;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * CheckpointCache的引用计数与按最近最少使用顺序删除的测试.
+ * 测试点数据由内存中的CheckpointMapper提供, 每个试题只有一个测试点.
+ */
+public class CheckpointCacheTest {
+    /**
+     * 每个试题的数据包大小: 文件头和索引(对齐至4096字节), 输入数据(对齐至4096字节), 4字节的输出数据
+     */
+    private static final long PACK_SIZE = 4096 + 4096 + 4;
+
+    @TempDir
+    File checkpointDirectory;
+
+    /**
+     * 数据库中各试题的测试点: 输入和输出
+     */
+    private final Map<Long, String[]> problemCheckpoints = new HashMap<>();
+
+    /**
+     * 从数据库读取测试点的次数
+     */
+    private int fetches = 0;
+
+    private final CacheManager cacheManager = new ConcurrentMapCacheManager(CacheConfig.CHECKPOINTS);
+
+    private CheckpointCache checkpointCache;
+
+    @BeforeEach
+    public void setUp() {
+        checkpointCache = new CheckpointCache();
+        ReflectionTestUtils.setField(checkpointCache, "checkpointDirectory", checkpointDirectory.getPath());
+        // 可容纳两个试题的测试点
+        ReflectionTestUtils.setField(checkpointCache, "capacity", PACK_SIZE * 2 + 100);
+        ReflectionTestUtils.setField(checkpointCache, "checkpointMapper", new CheckpointMapper() {
+            @Override
+            public List<CheckpointMetadata> getProblemCheckpointMetadata(long problemId) {
+                return getMetadata(problemId);
+            }
+
+            @Override
+            public void streamProblemCheckpoints(long problemId, ResultHandler<CheckpointStream> resultHandler) {
+                ++ fetches;
+                String[] data = problemCheckpoints.get(problemId);
+                CheckpointStream checkpoint = new CheckpointStream();
+                checkpoint.setCheckpointId(problemId * 100);
+                checkpoint.setCheckpointNumber(0);
+                checkpoint.setInput(new ByteArrayInputStream(data[0].getBytes(StandardCharsets.UTF_8)));
+                checkpoint.setOutput(new ByteArrayInputStream(data[1].getBytes(StandardCharsets.UTF_8)));
+                DefaultResultContext<CheckpointStream> resultContext = new DefaultResultContext<>();
+                resultContext.nextResultObject(checkpoint);
+                resultHandler.handleResult(resultContext);
+            }
+        });
+        ReflectionTestUtils.setField(checkpointCache, "cacheManager", cacheManager);
+        ReflectionTestUtils.invokeMethod(checkpointCache, "initialize");
+
+        for ( long problemId = 1; problemId <= 3; ++ problemId ) {
+            problemCheckpoints.put(problemId, new String[] { "input of #" + problemId, "ok#" + problemId });
+        }
+    }
+
+    @Test
+    public void testAcquireAndRelease() throws Exception {
+        String versionDirectory = checkpointCache.acquire(1, getMetadata(1));
+        assertEquals(1, checkpointCache.getMisses());
+        assertEquals(PACK_SIZE, checkpointCache.getSize());
+        assertEquals("ok#1", toString(checkpointCache.getCheckpointPack(versionDirectory).getOutput(100)));
+
+        // 同一版本的测试点只获取一次
+        assertEquals(versionDirectory, checkpointCache.acquire(1, getMetadata(1)));
+        assertEquals(1, checkpointCache.getHits());
+        assertEquals(1, fetches);
+
+        checkpointCache.release(1, versionDirectory);
+        checkpointCache.release(1, versionDirectory);
+        assertEquals(1, checkpointCache.getProblems());
+        assertNotNull(checkpointCache.getCheckpointPack(versionDirectory));
+    }
+
+    @Test
+    public void testStaleVersionKeptWhileInUse() throws Exception {
+        String oldVersionDirectory = checkpointCache.acquire(1, getMetadata(1));
+
+        problemCheckpoints.put(1L, new String[] { "new input of #1", "ok#1" });
+        String newVersionDirectory = checkpointCache.acquire(1, getMetadata(1));
+        assertNotEquals(oldVersionDirectory, newVersionDirectory);
+        // 旧版本仍在使用, 不会被删除
+        assertTrue(new File(oldVersionDirectory).exists());
+        assertEquals("input of #1", toString(checkpointCache.getCheckpointPack(oldVersionDirectory).getInput(100)));
+
+        checkpointCache.release(1, oldVersionDirectory);
+        checkpointCache.release(1, newVersionDirectory);
+        checkpointCache.acquire(1, getMetadata(1));
+        assertFalse(new File(oldVersionDirectory).exists());
+        assertNull(checkpointCache.getCheckpointPack(oldVersionDirectory));
+        assertEquals(PACK_SIZE, checkpointCache.getSize());
+    }
+
+    @Test
+    public void testLeastRecentlyUsedEviction() throws Exception {
+        String versionDirectory1 = acquireAndRelease(1);
+        String versionDirectory2 = acquireAndRelease(2);
+        // 试题1成为最近使用的试题
+        acquireAndRelease(1);
+        String versionDirectory3 = acquireAndRelease(3);
+
+        assertEquals(1, checkpointCache.getEvictions());
+        assertTrue(new File(versionDirectory1).exists());
+        assertFalse(new File(versionDirectory2).exists());
+        assertNull(checkpointCache.getCheckpointPack(versionDirectory2));
+        assertTrue(new File(versionDirectory3).exists());
+        assertEquals(2, checkpointCache.getProblems());
+        assertEquals(PACK_SIZE * 2, checkpointCache.getSize());
+
+        // 被删除的试题再次使用时重新获取
+        acquireAndRelease(2);
+        assertEquals(4, fetches);
+        assertFalse(new File(versionDirectory1).exists());
+    }
+
+    @Test
+    public void testInUseProblemNotEvicted() throws Exception {
+        String versionDirectory1 = checkpointCache.acquire(1, getMetadata(1));
+        String versionDirectory2 = acquireAndRelease(2);
+        acquireAndRelease(3);
+
+        // 试题1最近最少使用, 但仍在使用
+        assertTrue(new File(versionDirectory1).exists());
+        assertEquals("ok#1", toString(checkpointCache.getCheckpointPack(versionDirectory1).getOutput(100)));
+        assertFalse(new File(versionDirectory2).exists());
+
+        checkpointCache.release(1, versionDirectory1);
+        acquireAndRelease(2);
+        assertFalse(new File(versionDirectory1).exists());
+        assertEquals(2, checkpointCache.getEvictions());
+    }
+
+    @Test
+    public void testOutdatedMetadata() throws Exception {
+        List<CheckpointMetadata> checkpoints = getMetadata(1);
+        cacheManager.getCache(CacheConfig.CHECKPOINTS).put(1L, checkpoints);
+        problemCheckpoints.put(1L, new String[] { "changed input of #1", "ok#1" });
+
+        assertThrows(IllegalStateException.class, () -> checkpointCache.acquire(1, checkpoints));
+        assertNull(cacheManager.getCache(CacheConfig.CHECKPOINTS).get(1L));
+        // 读取到的数据已按其自身的版本保存
+        checkpointCache.acquire(1, getMetadata(1));
+        assertEquals(1, fetches);
+    }
+
+    private String acquireAndRelease(long problemId) throws Exception {
+        String versionDirectory = checkpointCache.acquire(problemId, getMetadata(problemId));
+        checkpointCache.release(problemId, versionDirectory);
+        return versionDirectory;
+    }
+
+    /**
+     * 由数据库中的测试点数据生成测试点元数据.
+     * @param problemId - 试题的唯一标识符
+     * @return 测试点元数据
+     */
+    private List<CheckpointMetadata> getMetadata(long problemId) {
+        String[] data = problemCheckpoints.get(problemId);
+        CheckpointMetadata checkpoint = new CheckpointMetadata();
+        checkpoint.setCheckpointId(problemId * 100);
+        checkpoint.setProblemId(problemId);
+        checkpoint.setCheckpointNumber(0);
+        checkpoint.setInputHash(DigestUtils.md5DigestAsHex(data[0].getBytes(StandardCharsets.UTF_8)));
+        checkpoint.setOutputHash(DigestUtils.md5DigestAsHex(data[1].getBytes(StandardCharsets.UTF_8)));
+        List<CheckpointMetadata> checkpoints = new ArrayList<>();
+        checkpoints.add(checkpoint);
+        return checkpoints;
+    }
+
+    private static String toString(ByteBuffer buffer) {
+        return StandardCharsets.UTF_8.decode(buffer).toString();
+    }
+}
@@ -0,0 +1,161 @@
+package cn.edu.buaa.judger.core;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+/**
+ * CheckpointPack的测试.
+ * 写入数据包后重新打开, 检查索引和各测试点的数据是否与写入的内容一致.
+ */
+public class CheckpointPackTest {
+    @TempDir
+    File temporaryDirectory;
+
+    private final byte[] buffer = new byte[1024];
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        // 跨越多个页以及复制缓冲区的数据
+        byte[] largeInput = new byte[3 * 4096 + 17];
+        new Random(20200317).nextBytes(largeInput);
+        File file = writePack(3,
+                1001, largeInput, "1001".getBytes(StandardCharsets.US_ASCII),
+                1002, null, "empty input\n".getBytes(StandardCharsets.US_ASCII),
+                1003, "3 4\n".getBytes(StandardCharsets.US_ASCII), new byte[0]);
+
+        try ( CheckpointPack pack = CheckpointPack.open(file) ) {
+            assertArrayEquals(largeInput, toBytes(pack.getInput(1001)));
+            assertArrayEquals("1001".getBytes(StandardCharsets.US_ASCII), toBytes(pack.getOutput(1001)));
+            assertEquals(0, pack.getInput(1002).remaining());
+            assertArrayEquals("empty input\n".getBytes(StandardCharsets.US_ASCII), toBytes(pack.getOutput(1002)));
+            assertArrayEquals("3 4\n".getBytes(StandardCharsets.US_ASCII), toBytes(pack.getInput(1003)));
+            assertEquals(0, pack.getOutput(1003).remaining());
+            assertNull(pack.getInput(1004));
+            assertNull(pack.getOutput(1004));
+
+            // 每次取出的缓冲区相互独立
+            ByteBuffer input = pack.getInput(1003);
+            input.get();
+            assertEquals(4, pack.getInput(1003).remaining());
+        }
+    }
+
+    @Test
+    public void testPartiallyFilledPack() throws IOException {
+        // 测试点数量少于预留的索引项时, 只读取已写入的索引项
+        File file = writePack(4, 7, "in".getBytes(StandardCharsets.US_ASCII), "out".getBytes(StandardCharsets.US_ASCII));
+
+        try ( CheckpointPack pack = CheckpointPack.open(file) ) {
+            assertArrayEquals("in".getBytes(StandardCharsets.US_ASCII), toBytes(pack.getInput(7)));
+            assertArrayEquals("out".getBytes(StandardCharsets.US_ASCII), toBytes(pack.getOutput(7)));
+            assertNull(pack.getInput(0));
+        }
+    }
+
+    @Test
+    public void testWriteAndTransferInput() throws IOException {
+        byte[] input = new byte[10000];
+        new Random(1).nextBytes(input);
+        File file = writePack(2,
+                1, "first".getBytes(StandardCharsets.US_ASCII), null,
+                2, input, null);
+
+        try ( CheckpointPack pack = CheckpointPack.open(file) ) {
+            File inputFile = new File(temporaryDirectory, "input#2.txt");
+            pack.writeInput(2, inputFile);
+            assertArrayEquals(input, Files.readAllBytes(inputFile.toPath()));
+            // 不覆盖已存在的文件
+            assertThrows(IOException.class, () -> pack.writeInput(1, inputFile));
+            assertThrows(IOException.class, () -> pack.writeInput(3, new File(temporaryDirectory, "input#3.txt")));
+
+            File transferredFile = new File(temporaryDirectory, "transferred.txt");
+            try ( FileChannel channel = FileChannel.open(transferredFile.toPath(),
+                    StandardOpenOption.CREATE_NEW, StandardOpenOption.WRITE) ) {
+                pack.transferInput(2, channel);
+                pack.transferInput(1, channel);
+            }
+            byte[] transferred = Files.readAllBytes(transferredFile.toPath());
+            assertEquals(input.length + 5, transferred.length);
+            assertArrayEquals(input, Arrays.copyOf(transferred, input.length));
+            assertEquals("first", new String(transferred, input.length, 5, StandardCharsets.US_ASCII));
+        }
+    }
+
+    @Test
+    public void testClose() throws IOException {
+        File file = writePack(1, 1, "1".getBytes(StandardCharsets.US_ASCII), "1".getBytes(StandardCharsets.US_ASCII));
+
+        CheckpointPack pack = CheckpointPack.open(file);
+        ByteBuffer output = pack.getOutput(1);
+        pack.close();
+        assertNull(pack.getInput(1));
+        assertNull(pack.getOutput(1));
+        // 已取出的缓冲区仍然有效
+        assertEquals('1', output.get(0));
+    }
+
+    @Test
+    public void testInvalidPack() throws IOException {
+        File file = new File(temporaryDirectory, CheckpointPack.FILE_NAME);
+        Files.write(file.toPath(), new byte[64]);
+        assertThrows(IOException.class, () -> CheckpointPack.open(file));
+
+        File truncatedFile = new File(temporaryDirectory, "truncated.pack");
+        Files.write(truncatedFile.toPath(), new byte[8]);
+        assertThrows(IOException.class, () -> CheckpointPack.open(truncatedFile));
+    }
+
+    @Test
+    public void testWriterCapacity() throws IOException {
+        File file = new File(temporaryDirectory, CheckpointPack.FILE_NAME);
+        try ( CheckpointPack.Writer writer = new CheckpointPack.Writer(file, 1) ) {
+            writer.addEntry(1, null, null, buffer);
+            assertThrows(IOException.class, () -> writer.addEntry(2, null, null, buffer));
+        }
+        // 数据包已存在时不覆盖
+        assertThrows(IOException.class, () -> new CheckpointPack.Writer(file, 1));
+    }
+
+    /**
+     * 写入数据包.
+     * @param capacity - 数据包可容纳的测试点数量
+     * @param entries - 依次为各测试点的ID, 标准输入和标准输出(可为null)
+     * @return 数据包文件
+     */
+    private File writePack(int capacity, Object... entries) throws IOException {
+        File file = new File(temporaryDirectory, CheckpointPack.FILE_NAME);
+        try ( CheckpointPack.Writer writer = new CheckpointPack.Writer(file, capacity) ) {
+            for ( int i = 0; i < entries.length; i += 3 ) {
+                writer.addEntry(((Number) entries[i]).longValue(), toStream((byte[]) entries[i + 1]),
+                        toStream((byte[]) entries[i + 2]), buffer);
+            }
+        }
+        return file;
+    }
+
+    private static ByteArrayInputStream toStream(byte[] data) {
+        return data == null ? null : new ByteArrayInputStream(data);
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        byte[] bytes = new byte[buffer.remaining()];
+        buffer.get(bytes);
+        return bytes;
+    }
+}
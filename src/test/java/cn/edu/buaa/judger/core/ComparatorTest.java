@@ -0,0 +1,226 @@
+package cn.edu.buaa.judger.core;
+
+import org.junit.jupiter.api.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * Comparator(按字比对)与OutputComparison(流式比对)的测试.
+ * 两者的比对规则相同: 行以\n, \r\n或\r分隔, 忽略行尾空格以及输出结尾的空行.
+ */
+public class ComparatorTest {
+    private final Comparator comparator = new Comparator();
+
+    @Test
+    public void testLineBreaksAcrossWordBoundary() {
+        // \r位于第8个字节, \n位于下一个字
+        assertOutput(true, "abcdefg\r\nhijklmn", "abcdefg\nhijklmn");
+        assertOutput(true, "abcdefg\r\nhijklmn", "abcdefg\rhijklmn");
+        assertOutput(true, "abcdefg\rhijklmn", "abcdefg\r\nhijklmn");
+        assertOutput(true, "abcdefghijklmno\r\n", "abcdefghijklmno\n");
+        assertOutput(true, "abcdefg\r\n\r\nhijklmn", "abcdefg\n\nhijklmn");
+        // \r\n是一个行结束符, \n\r是两个
+        assertOutput(false, "abcdefg\r\nhijklmn", "abcdefg\n\rhijklmn");
+        assertOutput(false, "abcdefg\r\n\r\nhijklmn", "abcdefg\r\nhijklmn");
+        assertOutput(false, "abcdefg\r\r\nhijklmn", "abcdefg\r\nhijklmn");
+        // 行结束符位于字的开头
+        assertOutput(true, "abcdefgh\r\nijklmnop", "abcdefgh\rijklmnop");
+        assertOutput(false, "abcdefgh\r\nijklmnop", "abcdefgh\r\nijklmnoq");
+    }
+
+    @Test
+    public void testTrailingSpaces() {
+        assertOutput(true, "1 2 3\n4 5 6\n", "1 2 3   \n4 5 6 \n");
+        assertOutput(true, "1 2 3        \n4 5 6", "1 2 3\n4 5 6");
+        assertOutput(true, "abcdefgh        \r\nijk", "abcdefgh\nijk        ");
+        assertOutput(false, "1 2 3\n", " 1 2 3\n");
+        assertOutput(false, "1 2 3\n", "1  2 3\n");
+        assertOutput(false, "abcdefgh        x\n", "abcdefgh\n");
+    }
+
+    @Test
+    public void testTrailingBlankLines() {
+        assertOutput(true, "a", "a\n\n\n");
+        assertOutput(true, "a\r\n\r\n", "a\n");
+        assertOutput(true, "a\n  \n \r\n", "a");
+        assertOutput(true, "", " \n \r\n");
+        assertOutput(true, "", "");
+        assertOutput(false, "", "x");
+        assertOutput(false, "a\n\nb", "a\nb");
+        assertOutput(false, "a\nb\n", "a\n");
+    }
+
+    @Test
+    public void testNonZeroBufferPosition() {
+        String[][] cases = {
+                { "abcdefg\r\nhijklmn\n", "abcdefg\nhijklmn  \n\n" },
+                { "\r\nabcdefgh", "\nabcdefgh" },
+                { "12345678 12345678\n", "12345678 12345678" },
+                { "12345678 12345678\n", "12345678 12345679" },
+                { "\nx", "\rx" },
+        };
+        for ( String[] testCase : cases ) {
+            boolean expected = isOutputTheSame(testCase[0], testCase[1]);
+            for ( int offset = 1; offset <= 9; ++ offset ) {
+                ByteBuffer stdOutput = wrap(testCase[0], offset);
+                ByteBuffer output = wrap(testCase[1], offset + 3);
+                assertEquals(expected, comparator.isOutputTheSame(stdOutput, output),
+                        describe(testCase[0], testCase[1]) + " at offset " + offset);
+                assertEquals(offset, stdOutput.position());
+                assertEquals(expected, isStreamedOutputTheSame(stdOutput, bytes(testCase[1]), 1),
+                        describe(testCase[0], testCase[1]) + " streamed at offset " + offset);
+            }
+        }
+    }
+
+    /**
+     * 随机生成的输出分别由Comparator和OutputComparison(以随机长度分段)比对, 结果均应与逐行比对的结果相同.
+     */
+    @Test
+    public void testComparatorAgreesWithOutputComparison() {
+        Random random = new Random(20200315);
+        for ( int round = 0; round < 20000; ++ round ) {
+            String stdOutput = getRandomOutput(random);
+            String output = random.nextInt(4) == 0 ? getRandomOutput(random) : mutate(stdOutput, random);
+            boolean expected = isOutputTheSame(stdOutput, output);
+            String message = describe(stdOutput, output);
+
+            assertEquals(expected, comparator.isOutputTheSame(wrap(stdOutput, 0), wrap(output, 0)), message);
+            int offset = random.nextInt(16);
+            assertEquals(expected, comparator.isOutputTheSame(wrap(stdOutput, offset),
+                    wrap(output, random.nextInt(16))), message + " at offset " + offset);
+
+            int maxChunkSize = 1 + random.nextInt(Math.max(1, output.length()));
+            assertEquals(expected, isStreamedOutputTheSame(wrap(stdOutput, offset), bytes(output), maxChunkSize),
+                    message + " streamed in chunks of at most " + maxChunkSize);
+        }
+    }
+
+    private void assertOutput(boolean expected, String stdOutput, String output) {
+        String message = describe(stdOutput, output);
+        assertEquals(expected, isOutputTheSame(stdOutput, output), message + " (reference)");
+        assertEquals(expected, comparator.isOutputTheSame(wrap(stdOutput, 0), wrap(output, 0)), message);
+        for ( int chunkSize = 1; chunkSize <= Math.max(1, output.length()); ++ chunkSize ) {
+            assertEquals(expected, isStreamedOutputTheSame(wrap(stdOutput, 0), bytes(output), chunkSize),
+                    message + " streamed in chunks of at most " + chunkSize);
+        }
+    }
+
+    /**
+     * 将用户输出分段交给OutputComparison比对.
+     * @param stdOutput - 标准输出
+     * @param output - 用户输出
+     * @param maxChunkSize - 每段的最大长度(各段长度随机)
+     * @return 比对结果
+     */
+    private boolean isStreamedOutputTheSame(ByteBuffer stdOutput, byte[] output, int maxChunkSize) {
+        OutputComparison comparison = new OutputComparison(stdOutput);
+        Random random = new Random(output.length * 31L + maxChunkSize);
+        // 每段从数组的不同位置开始, 以检查offset的处理
+        byte[] buffer = new byte[maxChunkSize + 8];
+        int position = 0;
+        while ( position < output.length ) {
+            int count = Math.min(output.length - position, 1 + random.nextInt(maxChunkSize));
+            int offset = random.nextInt(buffer.length - count + 1);
+            System.arraycopy(output, position, buffer, offset, count);
+            comparison.update(buffer, offset, count);
+            position += count;
+        }
+        assertEquals(output.length, comparison.getLength());
+        return comparison.isOutputTheSame();
+    }
+
+    /**
+     * 逐行比对的参考实现.
+     */
+    private static boolean isOutputTheSame(String stdOutput, String output) {
+        return getLines(stdOutput).equals(getLines(output));
+    }
+
+    private static List<String> getLines(String output) {
+        List<String> lines = new ArrayList<>();
+        for ( String line : output.split("\r\n|\r|\n", -1) ) {
+            lines.add(line.replaceAll(" +$", ""));
+        }
+        while ( !lines.isEmpty() && lines.get(lines.size() - 1).isEmpty() ) {
+            lines.remove(lines.size() - 1);
+        }
+        return lines;
+    }
+
+    /**
+     * 生成由少量字符组成的随机输出, 使行结束符和空格频繁出现在8字节边界附近.
+     */
+    private static String getRandomOutput(Random random) {
+        final String alphabet = "ab  \n\r";
+        int length = random.nextInt(40);
+        StringBuilder stringBuilder = new StringBuilder(length);
+        for ( int i = 0; i < length; ++ i ) {
+            stringBuilder.append(alphabet.charAt(random.nextInt(alphabet.length())));
+        }
+        return stringBuilder.toString();
+    }
+
+    /**
+     * 对标准输出做(多数情况下)不改变比对结果的修改: 替换行结束符, 增减行尾空格, 增加结尾的空行;
+     * 偶尔修改一个字符.
+     */
+    private static String mutate(String stdOutput, Random random) {
+        String[] lineBreaks = { "\n", "\r\n", "\r" };
+        List<String> lines = getLines(stdOutput);
+        StringBuilder stringBuilder = new StringBuilder();
+        for ( int i = 0; i < lines.size(); ++ i ) {
+            stringBuilder.append(lines.get(i));
+            for ( int spaces = random.nextInt(3) == 0 ? random.nextInt(10) : 0; spaces > 0; -- spaces ) {
+                stringBuilder.append(' ');
+            }
+            if ( i < lines.size() - 1 || random.nextBoolean() ) {
+                stringBuilder.append(lineBreaks[random.nextInt(lineBreaks.length)]);
+            }
+        }
+        for ( int blankLines = random.nextInt(3); blankLines > 0; -- blankLines ) {
+            stringBuilder.append(random.nextBoolean() ? " " : "").append(lineBreaks[random.nextInt(lineBreaks.length)]);
+        }
+        if ( stringBuilder.length() > 0 && random.nextInt(5) == 0 ) {
+            int index = random.nextInt(stringBuilder.length());
+            stringBuilder.setCharAt(index, "ab \n\r".charAt(random.nextInt(5)));
+        }
+        return stringBuilder.toString();
+    }
+
+    private static byte[] bytes(String output) {
+        return output.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    /**
+     * 将输出放入一个更大的缓冲区中, 输出之前和之后均为无关内容.
+     * @param output - 输出
+     * @param offset - 输出在缓冲区中的起始位置(缓冲区的position)
+     * @return position和limit限定了输出的缓冲区
+     */
+    private static ByteBuffer wrap(String output, int offset) {
+        byte[] content = bytes(output);
+        byte[] array = new byte[offset + content.length + 8];
+        Arrays.fill(array, (byte) 'x');
+        System.arraycopy(content, 0, array, offset, content.length);
+        ByteBuffer buffer = ByteBuffer.wrap(array);
+        buffer.limit(offset + content.length);
+        buffer.position(offset);
+        return buffer;
+    }
+
+    private static String describe(String stdOutput, String output) {
+        return escape(stdOutput) + " vs " + escape(output);
+    }
+
+    private static String escape(String output) {
+        return "\"" + output.replace("\r", "\\r").replace("\n", "\\n") + "\"";
+    }
+}
@@ -0,0 +1,135 @@
+package cn.edu.buaa.judger.core;
+
+import cn.edu.buaa.judger.model.JudgePolicy;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.Timeout;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+/**
+ * StreamingComparator的测试.
+ * 测试代替用户程序向命名管道写入输出, 检查输出确定不同或超出长度限制时管道是否被提前关闭.
+ * 管道的读端关闭后, 写入将失败(Java忽略SIGPIPE, 写入时得到EPIPE).
+ */
+@Timeout(10)
+public class StreamingComparatorTest {
+    private static final String STANDARD_OUTPUT = "1\n2\n3\n";
+
+    /**
+     * 最多写入的次数(每次4096字节), 超过后认为管道未被关闭.
+     * 写入的总长度远大于管道的缓冲区, 且小于输出长度限制.
+     */
+    private static final int MAX_WRITES = 1024;
+
+    private static final long OUTPUT_LIMIT = 64 * 1024 * 1024;
+
+    @TempDir
+    File workDirectory;
+
+    private StreamingComparator streamingComparator;
+
+    @BeforeEach
+    public void setUp() {
+        streamingComparator = new StreamingComparator();
+        ReflectionTestUtils.setField(streamingComparator, "isEnabled", true);
+        ReflectionTestUtils.setField(streamingComparator, "outputLimit", OUTPUT_LIMIT);
+        ReflectionTestUtils.setField(streamingComparator, "stopOnMismatch", "ICPC, unknown");
+        ReflectionTestUtils.invokeMethod(streamingComparator, "initialize");
+    }
+
+    @AfterEach
+    public void tearDown() {
+        ReflectionTestUtils.invokeMethod(streamingComparator, "destroy");
+    }
+
+    @Test
+    public void testStopOnMismatchPolicies() {
+        assertTrue(streamingComparator.isStoppedOnMismatch(JudgePolicy.ICPC));
+        assertFalse(streamingComparator.isStoppedOnMismatch(JudgePolicy.OI));
+    }
+
+    @Test
+    public void testStoppedOnMismatch() throws IOException {
+        StreamingComparator.OutputPipe pipe = open(true);
+        // 第二行不同, 此后的输出不再被读取
+        assertTrue(isClosedWhileWriting(pipe, "1\n9\n"));
+        assertEquals(StreamingComparator.RESULT_WRONG_ANSWER, pipe.finish());
+        assertTrue(pipe.isStopped());
+    }
+
+    @Test
+    public void testNotStoppedOnMismatch() throws IOException {
+        StreamingComparator.OutputPipe pipe = open(false);
+        assertFalse(isClosedWhileWriting(pipe, "1\n9\n"));
+        assertEquals(StreamingComparator.RESULT_WRONG_ANSWER, pipe.finish());
+        assertFalse(pipe.isStopped());
+    }
+
+    @Test
+    public void testNotStoppedWhileMatching() throws IOException {
+        // 行尾空格和结尾的空行不影响比对结果, 因此不会提前关闭管道
+        StreamingComparator.OutputPipe pipe = open(true);
+        try ( OutputStream outputStream = new FileOutputStream(pipe.getPipeFilePath()) ) {
+            outputStream.write("1 \n2\r\n".getBytes(StandardCharsets.US_ASCII));
+            outputStream.flush();
+            outputStream.write("3\n\n".getBytes(StandardCharsets.US_ASCII));
+        }
+        assertEquals(StreamingComparator.RESULT_ACCEPTED, pipe.finish());
+        assertFalse(pipe.isStopped());
+    }
+
+    @Test
+    public void testOutputLimitExceeded() throws IOException {
+        ReflectionTestUtils.setField(streamingComparator, "outputLimit", 100000L);
+        StreamingComparator.OutputPipe pipe = open(false);
+        assertTrue(isClosedWhileWriting(pipe, ""));
+        assertEquals(StreamingComparator.RESULT_OUTPUT_LIMIT_EXCEEDED, pipe.finish());
+        assertFalse(pipe.isStopped());
+    }
+
+    /**
+     * 创建一个命名管道并开始读取.
+     * @param isStoppedOnMismatch - 输出确定不同时是否立即关闭管道
+     * @return 管道对象
+     */
+    private StreamingComparator.OutputPipe open(boolean isStoppedOnMismatch) throws IOException {
+        String pipeFilePath = new File(workDirectory, "output#0.txt").getPath();
+        ByteBuffer standardOutput = ByteBuffer.wrap(STANDARD_OUTPUT.getBytes(StandardCharsets.US_ASCII));
+        return streamingComparator.open(new String[] { pipeFilePath }, System.getProperty("user.name"),
+                new ByteBuffer[] { standardOutput }, isStoppedOnMismatch).get(0);
+    }
+
+    /**
+     * 向管道写入输出, 随后不断写入空格, 直至管道被关闭或达到写入次数上限.
+     * @param pipe - 管道对象
+     * @param output - 首先写入的输出
+     * @return 管道是否在写入过程中被关闭
+     */
+    private static boolean isClosedWhileWriting(StreamingComparator.OutputPipe pipe, String output) {
+        byte[] spaces = new byte[4096];
+        Arrays.fill(spaces, (byte) ' ');
+        try ( OutputStream outputStream = new FileOutputStream(pipe.getPipeFilePath()) ) {
+            outputStream.write(output.getBytes(StandardCharsets.US_ASCII));
+            for ( int i = 0; i < MAX_WRITES; ++ i ) {
+                outputStream.write(spaces);
+            }
+        } catch ( IOException ex ) {
+            return true;
+        }
+        return false;
+    }
+}